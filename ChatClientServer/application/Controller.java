@@ -1,18 +1,25 @@
 package application;
 
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
 
 import application.listcells.MessageCell;
 import application.listcells.UserCell;
+import chat.Capabilities;
 import chat.Vocabulary;
 import chat.client.ChatClient;
-import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
@@ -32,15 +39,23 @@ import javafx.scene.control.TextField;
 import javafx.scene.control.Toggle;
 import javafx.scene.control.ToggleButton;
 import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
 import logger.LoggerFactory;
+import models.AuthorIndex;
 import models.AuthorListFilter;
+import models.AuthorRegistry;
 import models.Message;
 import models.Message.MessageOrder;
+import models.MessageLog;
+import models.MessageOrdering;
+import models.MessageSorter;
+import models.MessageView;
 import models.MessagesHandler;
 import models.ModifiableObservableList;
 import models.OSCheck;
+import models.SequenceTracker;
 import models.messagesRunners.AbstractMessagesRunner;
-import models.messagesRunners.ObjectMessagesRunner;
+import models.messagesRunners.QueueMessagesRunner;
 
 /**
  * Controller associated with ClientFrame.fxml
@@ -69,12 +84,61 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	protected Logger logger;
 
 	/**
-	 * List of all received messages.
-	 * This list might be sorted and/or fitlered in {@link #updateMessages()}
-	 * in order to display sorted and/or filtered messages in {@link #messagesObservableList}
-	 * associated with {@link #messagesListView}
+	 * Log of all received messages.
+	 * Snapshots of this log might be sorted and/or fitlered in
+	 * {@link #recomputeMessages(long)} (while new messages are appended) in order
+	 * to display sorted and/or filtered messages in {@link #messagesObservableList}
+	 * associated with {@link #messagesListView}.
+	 * Old messages of this log are spilled into a temporary file (deleted
+	 * when the parent stage is hidden, on quit or at JVM shutdown, see
+	 * {@link #closeMessagesStore()}) so that long sessions don't grow the
+	 * heap.
 	 */
-	private List<Message> messagesList;
+	private MessageLog messagesList;
+
+	/**
+	 * Shutdown hook closing {@link #messagesList} at JVM shutdown, removed
+	 * once the store has been closed (or null once removed)
+	 */
+	private Thread storeCleanup;
+
+	/**
+	 * Sorted and/or filtered view of {@link #messagesList}, mirroring
+	 * {@link #messagesObservableList} once pending operations of
+	 * {@link #messagesSink} have been applied
+	 */
+	private MessageView messageView;
+
+	/**
+	 * Registry assigning ids to authors, shared by {@link #authorFilter} and
+	 * {@link #authorIndex}
+	 */
+	private AuthorRegistry authorRegistry;
+
+	/**
+	 * Index of {@link #messagesList} by author used to add or remove
+	 * messages of (de)selected authors without scanning all messages
+	 */
+	private AuthorIndex authorIndex;
+
+	/**
+	 * Number of messages of {@link #messagesList} indexed in
+	 * {@link #authorIndex}
+	 */
+	private int indexedMessages;
+
+	/**
+	 * Sequence numbers of the messages received by the {@link ChatClient}
+	 * (which drops the ones received twice, e.g. replayed by a catch up),
+	 * used to ask only for missing messages when catching up.
+	 */
+	private SequenceTracker receivedSequences;
+
+	/**
+	 * Capabilities negotiated with server (used to ask only for missing
+	 * messages when server supports delta catch ups)
+	 */
+	private Supplier<Capabilities> capabilities;
 
 	/**
 	 * List of messages displayed in {@link #messagesListView}
@@ -109,19 +173,43 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	private boolean filtering;
 
 	/**
-	 * Flag indicating the orderding status of messages (on/off)
+	 * Ordering of displayed messages (no ordering when empty)
 	 */
-	private boolean ordering;
+	private MessageOrdering ordering;
 
 	/**
 	 * Flag indicating an update of all displayed messages is requested
-	 * @implSpec This flag is necessary when filterting or ordering is turned
-	 * off to redraw all messages
-	 * @implNote shoud be cleared at the end of {@link #updateMessages()} after
-	 * full update
+	 * @implSpec This flag is necessary when filterting or ordering criteria
+	 * change to redraw all messages (otherwise new messages are inserted in
+	 * displayed messages)
+	 * @implNote shoud be cleared at the end of {@link #recomputeMessages(long)}
+	 * after full update
 	 */
 	private boolean fullUpdateRequested;
 
+	/**
+	 * Flag indicating a recompute of {@link #messageView} by
+	 * {@link #viewWorker} is pending: new messages are not inserted in
+	 * displayed messages meanwhile (they will be once recomputed)
+	 */
+	private boolean recomputePending;
+
+	/**
+	 * Authors selected since last recompute (when filtering)
+	 */
+	private Set<String> addedAuthors;
+
+	/**
+	 * Authors deselected since last recompute (when filtering)
+	 */
+	private Set<String> removedAuthors;
+
+	/**
+	 * Background worker recomputing {@link #messageView} when filtering or
+	 * ordering criteria change
+	 */
+	private MessagesViewWorker viewWorker;
+
 	/**
 	 * Helper runnable to handle messages
 	 * 	- messageRunner runs in a thread where it receicves messages from the
@@ -130,15 +218,17 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	 * 	- it cand also be used to send messages to server with
 	 * {@link AbstractMessagesRunner#sendMessage(String)}
 	 * @implNote All operations affecting JavaFX Scenegraph performed in
-	 * {@link ObjectMessagesRunner#run()} method should be performed through
-	 * {@link Platform#runLater(Runnable)} calls to {@link Runnable} in order
-	 * to be performed on JavaFX thread to preserve JavaFX Scenegraph consistency.
-	 * Several local Runnables can be used to do just that.
-	 * @see AddUserNameRunnable
-	 * @see AppendMessageRunnable
-	 * @see ClearMessagesRunnable
+	 * {@link QueueMessagesRunner#run()} method should be performed on JavaFX
+	 * thread to preserve JavaFX Scenegraph consistency: they are posted to
+	 * {@link #messagesSink} which applies them once per pulse.
+	 */
+	private QueueMessagesRunner messagesRunner;
+
+	/**
+	 * Sink applying messages and users updates to {@link #messagesObservableList}
+	 * and {@link #authorsObservableList} in batches on JavaFX thread
 	 */
-	private ObjectMessagesRunner messagesRunner;
+	private MessagesSink messagesSink;
 
 	/**
 	 * List of buttons to change with either
@@ -286,16 +376,32 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 		                                       Level.INFO);
 		
 		commonRun = null;
-		messagesList = new ArrayList<Message>();
+		authorRegistry = new AuthorRegistry();
+		messagesList = new MessageLog(authorRegistry,
+		                              Paths.get(System.getProperty("java.io.tmpdir")));
 		messagesObservableList = new ModifiableObservableList<Message>();
 		author = null;
 		authorsObservableList = new ModifiableObservableList<String>();
-		authorFilter = new AuthorListFilter();
+		authorFilter = new AuthorListFilter(authorRegistry);
+		messageView = new MessageView(null, authorFilter);
+		authorIndex = new AuthorIndex(authorRegistry);
+		indexedMessages = 0;
+		receivedSequences = new SequenceTracker();
+		capabilities = () -> Capabilities.LEGACY;
 		filtering = false;
-		ordering = false;
+		ordering = MessageOrdering.NONE;
 		fullUpdateRequested = false;
+		recomputePending = false;
+		addedAuthors = new HashSet<String>();
+		removedAuthors = new HashSet<String>();
+		viewWorker = new MessagesViewWorker(logger);
 		messagesRunner = null;
+		messagesSink = new MessagesSink(messagesObservableList,
+		                                authorsObservableList,
+		                                logger);
 		displayLabeled = new ArrayList<Labeled>();
+		storeCleanup = new Thread(this::closeMessagesStore, "Messages store cleanup");
+		Runtime.getRuntime().addShutdownHook(storeCleanup);
 	}
 
 	/**
@@ -322,10 +428,13 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 		usersListView.setCellFactory(userCell -> new UserCell());
 		usersListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
 		usersListView.getSelectionModel().getSelectedItems().addListener(this);
+		authorFilter = new AuthorListFilter(authorRegistry, usersListView.getSelectionModel());
+		messageView.setFilter(new AuthorListFilter(authorFilter));
 		
 		
 		messagesListView.setItems(messagesObservableList);
 		messagesListView.setCellFactory(messageCell -> new MessageCell());
+		messagesSink.setMessagesView(messagesListView);
 		
 		graphicsOnlyMenuItem.setSelected(true);
 		
@@ -388,25 +497,55 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	}
 
 	/**
-	 * Set parent stage (so it can be closed on quit)
+	 * Set negotiated capabilities.
+	 * used by Main to get the capabilities negotiated by {@link ChatClient}
+	 * @param capabilities the supplier of the capabilities negotiated with
+	 * server
+	 */
+	public void setCapabilities(Supplier<Capabilities> capabilities)
+	{
+		this.capabilities = capabilities;
+	}
+
+	/**
+	 * Set received sequence numbers.
+	 * used by Main to share the sequence numbers tracked by
+	 * {@link ChatClient}
+	 * @param sequences the sequence numbers of messages received from
+	 * server
+	 */
+	public void setReceivedSequences(SequenceTracker sequences)
+	{
+		receivedSequences = sequences;
+	}
+
+	/**
+	 * Set parent stage (so it can be closed on quit, the messages store
+	 * being closed once it is hidden)
 	 * @param stage the new parent stage to set
 	 */
 	public void setParentStage(Stage stage)
 	{
 		parentStage = stage;
+		if (stage != null)
+		{
+			stage.addEventHandler(WindowEvent.WINDOW_HIDDEN, e -> closeMessagesStore());
+		}
 	}
 
 	/**
-	 * Adds new message to {@link #messagesList}
+	 * Adds new message to {@link #messagesList} (duplicates have already been
+	 * dropped by the {@link ChatClient})
 	 * @param m the message to add
+	 * @implNote messages are appended without any lock (only the runner
+	 * thread adds messages) and indexed later by {@link #updateMessages()}
 	 * @see MessageHandler
 	 */
 	@Override
 	public void addMessage(Message m)
 	{
-		
-		messagesList.add(m);
-		logger.info("adding message: " + m);
+		messagesList.append(m);
+		logger.fine("adding message: " + m);
 	}
 
 	/**
@@ -421,220 +560,297 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	}
 
 	/**
-	 * Adds a new user to {@link #authorsObservableList}
+	 * Adds a new user to {@link #authorsObservableList} (if not already
+	 * there)
 	 * @param user the new user to add
 	 * @implNote Since this operation might be triggered by another thread
 	 * (where {@link #messagesRunner} is running) the actual modification of
-	 * {@link #authorsObservableList} shall be performed with
-	 * {@link Platform#runLater(Runnable)} on JavaFX thread for JavaFX scene
-	 * graph consistency:
+	 * {@link #authorsObservableList} is performed by {@link #messagesSink} on
+	 * JavaFX thread for JavaFX scene graph consistency
 	 * @see MessageHandler
 	 */
 	@Override
 	public void addUserName(String user)
 	{
-		/*
-		 * Platform#runLater ensures this operation is performed on
-		 * JavaFX thread to preserve JavaFX Scenegraph consistency
-		 */
-		Platform.runLater(new AddUserNameRunnable(user));
+		messagesSink.addAuthor(user);
 	}
 
 	/**
-	 * Update all messages according to internal filtering and sorting policies
-	 * @implNote All the operations influencing JavaFX scene graph must be
-	 * launched from the JavaFX thread with a {@link Platform#runLater(Runnable)}
+	 * Update all messages according to internal filtering and sorting policies:
+	 * new messages are inserted in displayed messages (at their position
+	 * when messages are sorted). When filtering or ordering criteria have
+	 * changed, displayed messages are recomputed by {@link #viewWorker}
+	 * instead (see {@link #requestRecompute(boolean)}).
+	 * @implNote All the operations influencing JavaFX scene graph are
+	 * posted to {@link #messagesSink} which applies them on JavaFX thread
 	 * @see MessageHandler
 	 */
 	@Override
-	public void updateMessages()
+	public synchronized void updateMessages()
 	{
-		logger.info("Update all messages");
+		/*
+		 * Work on a consistent snapshot of all received messages
+		 */
+		List<Message> messages = indexMessages();
 
 		/*
-		 * Full update of all messages (evt filtered and/or sorted)
+		 * New messages will be inserted once recomputed view is published
 		 */
-		if (filtering || ordering || fullUpdateRequested)
+		if (recomputePending)
 		{
-			/*
-			 * Clears all displayed messages
-			 * Platform#runLater ensures this operation is performed on
-			 * JavaFX thread to preserve JavaFX Scenegraph consistency
-			 */
-			Platform.runLater(new ClearMessagesRunnable());
-
-			/*
-			 * reates a stream from #messagesList
-			 */
-			Stream<Message> stream = messagesList.stream();
-
-			/*
-			 * If Message has any orders then sort the stream
-			 */
-			if(ordering) 
-				stream = stream.sorted(); 
-			
+			return;
+		}
 
-			/*
-			 * If filtering is on then filter the stream with authorFilter
-			 */
-			if(filtering) 
-				stream = stream.filter(authorFilter);
-			
+		insertMessages(messages);
+	}
 
-			/*
-			 * Finally append all remaining messages on the stream with
-			 * appenMessage(...)
-			 */
-			stream.forEach((Message m) -> appendMessage(m));
-			/*
-			 * Reset #fullUpdateRequested
-			 */
-			fullUpdateRequested = false;
-		}
-		else
+	/**
+	 * Inserts messages received since last update at their position in
+	 * displayed messages (if not filtered out)
+	 * @param messages a snapshot of all received messages
+	 */
+	private void insertMessages(List<Message> messages)
+	{
+		for (int i = messageView.getApplied(); i < messages.size(); i++)
 		{
-			/*
-			 * Only appends last received message
-			 */
-			appendMessage(messagesList.get(messagesList.size() - 1));
+			int index = messageView.insert(messages);
+			if (index == (messageView.getMessages().size() - 1))
+			{
+				appendMessage(messages.get(i));
+			}
+			else if (index >= 0)
+			{
+				messagesSink.insert(index, messages.get(i));
+			}
 		}
 	}
 
 	/**
-	 * Appends new message at the end of {@link #messagesListView}
-	 * @param message The message to display
-	 * @implNote Since this operation might be triggered by another thread
-	 * (where {@link #messagesRunner} is running) the actual modification of
-	 * {@link #messagesObservableList} shall be performed with
-	 * {@link Platform#runLater(Runnable)} on JavaFX thread for JavaFX scene
-	 * graph consistency:
-	 * @see AppendMessageRunnable
+	 * Requests a recompute of displayed messages by {@link #viewWorker}
+	 * after a change of filtering or ordering criteria. Rapid changes are
+	 * debounced and superseded recomputes are cancelled.
+	 * @param full true if all displayed messages should be recomputed, false
+	 * if only messages of {@link #addedAuthors} and {@link #removedAuthors}
+	 * need to be added to or removed from displayed messages
 	 */
-	protected void appendMessage(Message message)
+	private synchronized void requestRecompute(boolean full)
 	{
-		/*
-		 * Platform#runLater ensures this operation is performed on
-		 * JavaFX thread to preserve JavaFX Scenegraph consistency
-		 */
-		Platform.runLater(new AppendMessageRunnable(message));
+		fullUpdateRequested |= full;
+		recomputePending = true;
+		viewWorker.request(this::recomputeMessages, this::recomputeFailed);
 	}
 
 	/**
-	 * Get controller's runner.
-	 * If current {@link #messagesRunner} is null then it is created and returned,
-	 * otherwise it is simply returned.
-	 * @return the controller's runner.
+	 * Recomputes displayed messages (on {@link #viewWorker} thread).
+	 * Selection changes are applied to {@link #messageView} by merging or
+	 * removing (de)selected authors' messages, other changes rebuild a new
+	 * view from a snapshot of all messages without holding any lock. The
+	 * result is published only if no other recompute has been requested
+	 * meanwhile.
+	 * @param generation the generation of the recompute request
 	 */
-	public AbstractMessagesRunner getRunner()
+	private void recomputeMessages(long generation)
 	{
-		if (messagesRunner ==  null)
+		List<Message> messages;
+		MessageOrdering criteria;
+		Comparator<Message> order;
+		AuthorListFilter filter;
+		int[] positions = null;
+		synchronized (this)
+		{
+			if (!viewWorker.isCurrent(generation))
+			{
+				return;
+			}
+			messages = indexMessages();
+			filter = new AuthorListFilter(authorFilter);
+
+			if (!fullUpdateRequested)
+			{
+				/*
+				 * Selection change: only (de)selected authors' messages are
+				 * removed from or merged into current view
+				 */
+				messageView.setFilter(filter);
+				if (!removedAuthors.isEmpty())
+				{
+					messageView.removeRejected();
+				}
+				if (!addedAuthors.isEmpty())
+				{
+					messageView.merge(messages,
+					                  authorIndex.getPositions(addedAuthors,
+					                                           messageView.getApplied()));
+				}
+				publishMessages();
+				return;
+			}
+
+			criteria = ordering;
+			order = (criteria.isEmpty() ? null : criteria.comparator());
+			if (filtering && !filter.isEmpty())
+			{
+				/*
+				 * Only selected authors' messages are gathered from
+				 * #authorIndex
+				 */
+				positions = authorIndex.getPositions(filter.getAuthors(),
+				                                     messages.size());
+			}
+		}
+
+		logger.fine("Update all messages");
+
+		/*
+		 * Full update of all messages (evt filtered and/or sorted) on the
+		 * snapshot, aborted as soon as another recompute is requested
+		 */
+		MessageView view = new MessageView(order != null ? viewWorker.cancellable(order, generation) : null,
+		                                   viewWorker.cancellable(filter, generation));
+		int count = (positions != null ? positions.length : messages.size());
+		if ((order != null) && (count >= MessageSorter.THRESHOLD))
 		{
 			/*
-			 * Create runner with "this" as the MessageHandler,
-			 * commonRun (which needs to be already set) and current logger
+			 * Large sorts use precomputed sort keys and a parallel sort
 			 */
-			messagesRunner = new ObjectMessagesRunner(this, commonRun, logger);
+			if (positions == null)
+			{
+				positions = acceptedPositions(messages,
+				                              viewWorker.cancellable(filter, generation));
+			}
+			view.rebuildSorted(messages,
+			                   MessageSorter.sort(messages,
+			                                      positions,
+			                                      criteria,
+			                                      () -> !viewWorker.isCurrent(generation)));
+		}
+		else if (positions != null)
+		{
+			view.rebuild(messages, positions);
 		}
+		else
+		{
+			view.rebuild(messages);
+		}
+		view.setOrder(order);
+		view.setFilter(filter);
 
-		return messagesRunner;
+		synchronized (this)
+		{
+			if (!viewWorker.isCurrent(generation))
+			{
+				return;
+			}
+			messageView = view;
+
+			/*
+			 * Reset #fullUpdateRequested
+			 */
+			fullUpdateRequested = false;
+			publishMessages();
+		}
 	}
 
 	/**
-	 * Local Runnable to add a user name to {@link #authorsObservableList}.
-	 * Shall be called with {@link Platform#runLater(Runnable)} within
-	 * {@link Controller#addUserName(String)} in order to ensure that all
-	 * operations on JavaFX scene graph components are performed on JavaFX thread,
-	 * thus avoiding JavaFX scene graph inconsistency.
+	 * Restores displayed messages after a failed recompute (on
+	 * {@link #viewWorker} thread): pending changes are dropped and current
+	 * {@link #messageView} is published again, unless another recompute has
+	 * been requested meanwhile
+	 * @param generation the generation of the failed recompute request
 	 */
-	class AddUserNameRunnable implements Runnable
+	private synchronized void recomputeFailed(long generation)
 	{
-		/**
-		 * the user to add to #authorsObservableList
-		 */
-		private String user;
-
-		/**
-		 * Valued constructor to set the user to add to {@link #authorsObservableList}
-		 * @param user the user to set
-		 */
-		public AddUserNameRunnable(String user)
+		if (!viewWorker.isCurrent(generation))
 		{
-			this.user = user;
+			return;
 		}
+		fullUpdateRequested = false;
+		publishMessages();
+	}
 
-		/**
-		 * Adds the specified user to {@link #authorsObservableList}
-		 */
-		@Override
-		public void run()
+	/**
+	 * Positions of messages accepted by a filter
+	 * @param messages a snapshot of all received messages
+	 * @param filter the filter
+	 * @return the ascending positions of the messages accepted by filter
+	 */
+	private static int[] acceptedPositions(List<Message> messages,
+	                                       Predicate<Message> filter)
+	{
+		int[] positions = new int[messages.size()];
+		int count = 0;
+		for (int i = 0; i < positions.length; i++)
 		{
-			
-			if(!authorsObservableList.contains(user)) {
-				authorsObservableList.add(user);
-				logger.info("adding user " + user);
+			if (filter.test(messages.get(i)))
+			{
+				positions[count++] = i;
 			}
-			
 		}
+		return Arrays.copyOf(positions, count);
 	}
 
 	/**
-	 * Local Runnable to add a message to {@link Controller#messagesObservableList}.
-	 * Shall be called with {@link Platform#runLater(Runnable)} within
-	 * {@link Controller#appendMessage(Message)} in order to ensure that all
-	 * operations on JavaFX scene graph components are performed on JavaFX thread,
-	 * thus avoiding JavaFX scene graph inconsistency.
-	 * @implNote It would be nice if #messagesListView could automatically scroll
-	 * down to the newest message
+	 * Publishes recomputed {@link #messageView}: replaces all displayed
+	 * messages at once then inserts messages received during the recompute
 	 */
-	class AppendMessageRunnable implements Runnable
+	private synchronized void publishMessages()
 	{
-		/**
-		 * The message to append to {@link #displayMessages}
-		 */
-		private Message message;
+		addedAuthors.clear();
+		removedAuthors.clear();
+		recomputePending = false;
+		messagesSink.setAll(messageView.getMessages());
+		insertMessages(indexMessages());
+	}
 
-		/**
-		 * Valued constructor to set the message to append
-		 * @param message the message to append
-		 */
-		public AppendMessageRunnable(Message message)
+	/**
+	 * Indexes messages appended to {@link #messagesList} since last call
+	 * @return a snapshot of {@link #messagesList} whose messages are all
+	 * indexed in {@link #authorIndex}
+	 */
+	private synchronized List<Message> indexMessages()
+	{
+		List<Message> messages = messagesList.snapshot();
+		for (int i = indexedMessages; i < messages.size(); i++)
 		{
-			this.message = message;
+			authorIndex.add(messages.get(i), i);
 		}
+		indexedMessages = messages.size();
 
-		/**
-		 * Add the new message to {@link Controller#messagesObservableList}
-		 */
-		@Override
-		public void run()
-		{
-			
-			messagesObservableList.add(message);
-			messagesListView.scrollTo(message);
-			logger.info("adding message " + message);
-		}
+		return messages;
 	}
 
 	/**
-	 * Local Runnable to clear all messages in {@link #messagesObservableList}.
-	 * Shall be called with {@link Platform#runLater(Runnable)} within
-	 * {@link #appendMessage(Message)} in order to ensure that all
-	 * operations on JavaFX scene graph components are performed on JavaFX thread,
-	 * thus avoiding JavaFX scene graph inconsistency.
+	 * Appends new message at the end of {@link #messagesListView}
+	 * @param message The message to display
+	 * @implNote Since this operation might be triggered by another thread
+	 * (where {@link #messagesRunner} is running) the actual modification of
+	 * {@link #messagesObservableList} is performed by {@link #messagesSink}
+	 * on JavaFX thread (together with all other messages appended during the
+	 * same pulse) for JavaFX scene graph consistency
 	 */
-	class ClearMessagesRunnable implements Runnable
+	protected void appendMessage(Message message)
 	{
-		/**
-		 * Clears {@link Controller#messagesObservableList}
-		 */
-		@Override
-		public void run()
+		messagesSink.append(message);
+	}
+
+	/**
+	 * Get controller's runner.
+	 * If current {@link #messagesRunner} is null then it is created and returned,
+	 * otherwise it is simply returned.
+	 * @return the controller's runner.
+	 */
+	public AbstractMessagesRunner getRunner()
+	{
+		if (messagesRunner ==  null)
 		{
-			
-			messagesObservableList.clear();
-			logger.info("clearing messages");
+			/*
+			 * Create runner with "this" as the MessageHandler,
+			 * commonRun (which needs to be already set) and current logger
+			 */
+			messagesRunner = new QueueMessagesRunner(this, commonRun, logger);
 		}
+
+		return messagesRunner;
 	}
 
 	// -------------------------------------------------------------------------
@@ -664,8 +880,60 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	{
 		
 		messagesRunner.sendMessage(Vocabulary.byeCmd);
+		viewWorker.shutdown();
 		if (parentStage != null )  parentStage.close();
 		logger.info("Quit action triggered");
+		logger.info("Messages display " + messagesSink.getBatchSize() + ", "
+			+ messagesSink.getFlushLatency() + ", "
+			+ viewWorker.getRecomputeTime() + ", superseded recomputes: "
+			+ viewWorker.getSuperseded());
+		logger.info("Messages store: " + messagesList.size() + " messages, "
+			+ String.format("%.1f", messagesList.getBytesPerMessage())
+			+ " bytes per message, " + messagesList.getSpilledMessages()
+			+ " spilled, " + receivedSequences);
+		if (messagesList.getSpillError() != null)
+		{
+			logger.warning("Messages store spilling failed: "
+				+ messagesList.getSpillError().getLocalizedMessage());
+		}
+		closeMessagesStore();
+	}
+
+	/**
+	 * Closes {@link #messagesList} so that its spill file is deleted and
+	 * removes {@link #storeCleanup} so that this controller is not retained
+	 * until JVM shutdown.
+	 * Called on quit, when the parent stage is hidden and at JVM shutdown
+	 * (closing the store more than once is harmless)
+	 */
+	private void closeMessagesStore()
+	{
+		Thread cleanup;
+		synchronized (this)
+		{
+			cleanup = storeCleanup;
+			storeCleanup = null;
+		}
+		if ((cleanup != null) && (cleanup != Thread.currentThread()))
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(cleanup);
+			}
+			catch (IllegalStateException e)
+			{
+				// JVM already shutting down: the hook closes the store again
+			}
+		}
+
+		try
+		{
+			messagesList.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("Messages store close failed: " + e.getLocalizedMessage());
+		}
 	}
 
 	/**
@@ -675,20 +943,53 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	@FXML
 	public void onClearMessagesAction(ActionEvent event)
 	{
-		
-		Platform.runLater(new ClearMessagesRunnable());
+		synchronized (this)
+		{
+			/*
+			 * A pending recompute would display messages again
+			 */
+			if (recomputePending)
+			{
+				viewWorker.cancel();
+				recomputePending = false;
+				fullUpdateRequested = false;
+				addedAuthors.clear();
+				removedAuthors.clear();
+				messageView = new MessageView(ordering.isEmpty() ? null : ordering.comparator(),
+				                              new AuthorListFilter(authorFilter));
+				messageView.rebuild(indexMessages(), new int[0]);
+			}
+			messageView.clear();
+			messagesSink.clear();
+		}
 		logger.info("Clear action triggered");
 	}
 
 	/**
-	 * Action to catchup all messages from server
+	 * Action to catchup all messages from server.
+	 * Only the messages following the ones we have received without gap
+	 * since the first one are requested when server supports delta catch
+	 * ups (all messages if we haven't received any sequenced message).
+	 * Replayed messages already received are dropped by the
+	 * {@link ChatClient} and displayed messages are recomputed from
+	 * {@link #messagesList} (so that messages cleared from display show up
+	 * again along with missed messages)
 	 * @param event event associated with this action [not used]
 	 */
 	@FXML
 	public void onCatchupMessagesAction(ActionEvent event)
 	{
-		
-		messagesRunner.sendMessage(Vocabulary.catchUpCmd);
+		requestRecompute(true);
+		long since = receivedSequences.getContiguousFrom(receivedSequences.getFirst());
+		if ((since > 0) && capabilities.get().isDeltaCatchUp())
+		{
+			messagesRunner.sendMessage(Vocabulary.catchUpCmd + " "
+				+ Vocabulary.sinceKeyword + " " + since);
+		}
+		else
+		{
+			messagesRunner.sendMessage(Vocabulary.catchUpCmd);
+		}
 		logger.info("Catchup action triggered");
 	}
 
@@ -749,11 +1050,12 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
         if (filterMessagesMenuItem.isSelected() != selected)
             filterMessagesMenuItem.setSelected(selected);
         
-        authorFilter.setFiltering(selected);
-        
-        filtering = selected;
-        fullUpdateRequested = true;
-        updateMessages();
+        synchronized (this)
+        {
+            authorFilter.setFiltering(selected);
+            filtering = selected;
+            requestRecompute(true);
+        }
 	}
 
 	/**
@@ -761,8 +1063,8 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	 * @param event the event to investigate
 	 * @param order the message order criterium to change according to event
 	 * @return true if the ordering of messages have been changed, false otherwise
-	 * @see Message#addOrder(MessageOrder)
-	 * @see Message#removeOrder(MessageOrder)
+	 * @see MessageOrdering#with(MessageOrder)
+	 * @see MessageOrdering#without(MessageOrder)
 	 * @see onActionSortMessagesByDate
 	 * @see onActionSortMessagesByAuthor
 	 * @see onActionSortMessagesByContent
@@ -772,15 +1074,21 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 		
 		boolean selected = isSelected(event);
 		logger.info("change messages order on " + event + " with "+ order);
-		if(selected) {
-			Message.addOrder(order);	
+		synchronized (this)
+		{
+			MessageOrdering previous = ordering;
+			if(selected) {
+				ordering = ordering.with(order);
+			}
+			else ordering = ordering.without(order);
+			
+			if (ordering.equals(previous))
+			{
+				return false;
+			}
+			requestRecompute(true);
 		}
-		else Message.removeOrder(order);
-		
-		ordering = Message.orderSize() != 0;
-        if (ordering)
-            updateMessages();
-        
+
         return true;
 	
 	}
@@ -917,8 +1225,13 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 
 	/**
 	 * List Change listener method used to react to selection changes in
-	 * {@link #usersListView} which might require an {@link #updateMessages()}
-	 * call when filtering is on.
+	 * {@link #usersListView} which might require to update displayed
+	 * messages when filtering is on.
+	 * (De)selected authors are accumulated until {@link #viewWorker} removes
+	 * deselected authors' messages from {@link #messageView} and merges
+	 * selected authors' messages from {@link #authorIndex}, so rapid
+	 * selection changes lead to a single update whose cost depends on the
+	 * selection change and not on the number of received messages.
 	 * @param c an object representing the change that was done
 	 * @see ListChangeListener
 	 */
@@ -926,31 +1239,55 @@ public class Controller implements Initializable, MessagesHandler, ListChangeLis
 	public void onChanged(Change<? extends String> c)
 	{
 		logger.info("List Change Listener triggered with change=" + c);
-		boolean selectionChanged = false;
-		while (c.next())
+		synchronized (this)
 		{
+			boolean wasAll = authorFilter.isEmpty();
+			boolean selectionChanged = false;
+			while (c.next())
+			{
+				/*
+				 * We only care about elements added to or removed from
+				 * selection so we can update our #authorFilter
+				 */
+				if(c.wasRemoved()) {
+					for(String auth : c.getRemoved())
+						if (authorFilter.remove(auth))
+						{
+							selectionChanged = true;
+							if (!addedAuthors.remove(auth))
+								removedAuthors.add(auth);
+						}
+				}
+				if(c.wasAdded()) {
+					for(String auth : c.getAddedSubList())
+						if (authorFilter.add(auth))
+						{
+							selectionChanged = true;
+							if (!removedAuthors.remove(auth))
+								addedAuthors.add(auth);
+						}
+				}
+			}
+
 			/*
-			 * We only care about elements added to or removed from
-			 * selection so we can update our #authorFilter
+			 * If filtering is off or selection has not changed there is
+			 * nothing to update
 			 */
-			selectionChanged = true;
-			if(c.wasAdded()) {
-				for(String auth : c.getAddedSubList())
-					authorFilter.add(auth);
-				selectionChanged = true;
+			if (!filtering)
+			{
+				addedAuthors.clear();
+				removedAuthors.clear();
+				return;
 			}
-			if(c.wasRemoved()) {
-				for(String auth : c.getRemoved())
-					authorFilter.remove(auth);
-				selectionChanged = true;
+			if (!selectionChanged)
+			{
+				return;
 			}
-		}
 
-		/*
-		 * If filtering is on and selection has changed then
-		 * trigger updateMessages
-		 */
-		if(filtering && selectionChanged)
-			updateMessages();
+			/*
+			 * From or to all authors: all messages need to be redrawn
+			 */
+			requestRecompute(wasAll || authorFilter.isEmpty());
+		}
 	}
 }
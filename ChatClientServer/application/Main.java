@@ -23,7 +23,9 @@ import javafx.scene.SceneAntialiasing;
 import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 import logger.LoggerFactory;
+import models.MessageQueue;
 import models.messagesRunners.AbstractMessagesRunner;
+import models.messagesRunners.QueueMessagesRunner;
 
 
 /**
@@ -71,9 +73,16 @@ public class Main extends Application
 
 	/**
 	 * Output stream to write messages to the user
+	 * (null when messages are delivered through {@link #userQueue})
 	 */
 	private OutputStream userOut = null;
 
+	/**
+	 * Queue to deliver decoded messages to the user in-process
+	 * (null when messages are written to {@link #userOut})
+	 */
+	private MessageQueue userQueue = null;
+
 	/**
 	 * Clients threads pool containg all threads used in the client.
 	 */
@@ -197,20 +206,29 @@ public class Main extends Application
 		// prepare for the ChatClient creation
 		//	- runner : outPipe <--> userIn
 		//	- runner : inPipe <--> userOut
+		//	  or runner : queue <--> userQueue (messages are then handed
+		//	  in-process without being encoded again)
 		// --------------------------------------------------------------------
 		logger.info("setting up I/O connections");
-		@SuppressWarnings("resource") // inPipe is closed at the end of messageRunner Run loop
-		PipedInputStream inPipe = messageRunner.getInPipe();
-		try
+		if (messageRunner instanceof QueueMessagesRunner)
 		{
-			userOut = new PipedOutputStream(inPipe);
+			userQueue = ((QueueMessagesRunner) messageRunner).getQueue();
 		}
-		catch (IOException e1)
+		else
 		{
-			logger.severe(Failure.USER_OUTPUT_STREAM
-			    + " unable to get Piped Output Stream");
-			logger.severe(e1.getLocalizedMessage());
-			System.exit(Failure.USER_OUTPUT_STREAM.toInteger());
+			@SuppressWarnings("resource") // inPipe is closed at the end of messageRunner Run loop
+			PipedInputStream inPipe = messageRunner.getInPipe();
+			try
+			{
+				userOut = new PipedOutputStream(inPipe);
+			}
+			catch (IOException e1)
+			{
+				logger.severe(Failure.USER_OUTPUT_STREAM
+				    + " unable to get Piped Output Stream");
+				logger.severe(e1.getLocalizedMessage());
+				System.exit(Failure.USER_OUTPUT_STREAM.toInteger());
+			}
 		}
 
 		@SuppressWarnings("resource") // outPipe is closed at the end of messageRunner Run loop
@@ -243,16 +261,32 @@ public class Main extends Application
 		// Creates ChatClient
 		// --------------------------------------------------------------------
 		logger.info("Creating ChatClient ... ");
-		ChatClient client = new ChatClient(host,		// server's name or IP
-		                                   port,		// tcp port
-		                                   name,		// user's name
-		                                   userIn,		// user input
-		                                   userOut,		// user output
-		                                   UserOutputType.OBJECT,		// user output type (text or object)
-		                                   commonRun,	// GUI commonRun
-		                                   logger);		// parent logger
+		ChatClient client;
+		if (userQueue != null)
+		{
+			client = new ChatClient(host,		// server's name or IP
+			                        port,		// tcp port
+			                        name,		// user's name
+			                        userIn,		// user input
+			                        userQueue,	// user output queue
+			                        commonRun,	// GUI commonRun
+			                        logger);	// parent logger
+		}
+		else
+		{
+			client = new ChatClient(host,		// server's name or IP
+			                        port,		// tcp port
+			                        name,		// user's name
+			                        userIn,		// user input
+			                        userOut,	// user output
+			                        UserOutputType.BINARY,	// user output type (text, object or binary)
+			                        commonRun,	// GUI commonRun
+			                        logger);	// parent logger
+		}
 		// --------------------------------------------------------------------
 		// If Client is ready then
+		//	- set client's negotiated capabilities and received sequence
+		//	numbers on controller
 		//	- Create a new thread with ChatClient
 		//	- add this thread to threadPool
 		//	- launch this thread
@@ -260,6 +294,8 @@ public class Main extends Application
 		logger.info("Launching ChatClient");
 		if (client.isReady())
 		{
+			controller.setCapabilities(client::getCapabilities);
+			controller.setReceivedSequences(client.getReceivedSequences());
 			Thread clientThread = new Thread(client);
 			clientThread.setName("ChatClient Thread");
 			threadPool.add(clientThread);
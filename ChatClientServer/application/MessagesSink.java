@@ -0,0 +1,391 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.scene.control.ListView;
+import metrics.Distribution;
+import models.Message;
+
+/**
+ * Batching sink between the thread receiving messages and the JavaFX lists
+ * displaying them.
+ * Messages to append or insert (and user names to add) can be posted from
+ * any thread: they are collected and applied once per JavaFX pulse with a
+ * single {@link ObservableList#addAll(java.util.Collection)} per run of
+ * appended messages (or {@link ObservableList#setAll(java.util.Collection)}
+ * after a clear), one {@link ObservableList#add(int, Object)} per inserted
+ * message and a single {@link ListView#scrollTo(int)}, instead of one
+ * {@link Platform#runLater(Runnable)} per message.
+ * The pulse timer only runs while there are pending operations.
+ * @author x0wass
+ */
+class MessagesSink
+{
+	/**
+	 * Operation on displayed messages
+	 */
+	private static class Operation
+	{
+		/**
+		 * The message to add (or null to clear all messages)
+		 */
+		final Message message;
+
+		/**
+		 * The index to insert the message at (or -1 to append it)
+		 */
+		final int index;
+
+		/**
+		 * The messages replacing all displayed messages (or null)
+		 */
+		final List<Message> messages;
+
+		/**
+		 * Operation constructor
+		 * @param message the message to add (or null to clear all messages)
+		 * @param index the index to insert the message at (or -1 to append
+		 * it)
+		 */
+		Operation(Message message, int index)
+		{
+			this.message = message;
+			this.index = index;
+			messages = null;
+		}
+
+		/**
+		 * Replace operation constructor
+		 * @param messages the messages replacing all displayed messages
+		 */
+		Operation(List<Message> messages)
+		{
+			message = null;
+			index = -1;
+			this.messages = messages;
+		}
+	}
+
+	/**
+	 * Operation queued by {@link #clear()}
+	 */
+	private static final Operation CLEAR = new Operation(null, -1);
+
+	/**
+	 * Displayed messages
+	 */
+	private final ObservableList<Message> messages;
+
+	/**
+	 * Displayed authors
+	 */
+	private final ObservableList<String> authors;
+
+	/**
+	 * View to scroll down to the last appended message (may be null)
+	 */
+	private ListView<Message> messagesView;
+
+	/**
+	 * Operations on messages, posted by any thread
+	 */
+	private final Queue<Operation> pendingMessages;
+
+	/**
+	 * Authors to add, posted by any thread
+	 */
+	private final Queue<String> pendingAuthors;
+
+	/**
+	 * Indicates the pulse timer has been started (or is about to be)
+	 */
+	private final AtomicBoolean scheduled;
+
+	/**
+	 * Time (from {@link System#nanoTime()}) the oldest pending operation has
+	 * been posted, or 0 if there is none
+	 */
+	private final AtomicLong oldestPending;
+
+	/**
+	 * Timer applying pending operations once per pulse
+	 */
+	private final AnimationTimer timer;
+
+	/**
+	 * Number of messages added per flush
+	 */
+	private final Distribution batchSize;
+
+	/**
+	 * Delay (in microseconds) between the oldest pending operation and its
+	 * flush
+	 */
+	private final Distribution flushLatency;
+
+	/**
+	 * Logger used to display debug or info messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Sink constructor
+	 * @param messages the displayed messages list
+	 * @param authors the displayed authors list
+	 * @param logger logger to display debug messages
+	 */
+	MessagesSink(ObservableList<Message> messages,
+	             ObservableList<String> authors,
+	             Logger logger)
+	{
+		this.messages = messages;
+		this.authors = authors;
+		this.logger = logger;
+		messagesView = null;
+		pendingMessages = new ConcurrentLinkedQueue<Operation>();
+		pendingAuthors = new ConcurrentLinkedQueue<String>();
+		scheduled = new AtomicBoolean(false);
+		oldestPending = new AtomicLong(0);
+		batchSize = new Distribution("batch size");
+		flushLatency = new Distribution("flush latency (us)");
+		timer = new AnimationTimer()
+		{
+			@Override
+			public void handle(long now)
+			{
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * Sets the view to scroll down when messages are appended
+	 * @param view the view displaying {@link #messages}
+	 */
+	void setMessagesView(ListView<Message> view)
+	{
+		messagesView = view;
+	}
+
+	/**
+	 * Posts a message to append (thread safe)
+	 * @param message the message to append
+	 */
+	void append(Message message)
+	{
+		pendingMessages.add(new Operation(message, -1));
+		schedule();
+	}
+
+	/**
+	 * Posts a message to insert at a specific index (thread safe). The index
+	 * must be valid once all previously posted operations have been applied.
+	 * @param index the index to insert the message at
+	 * @param message the message to insert
+	 */
+	void insert(int index, Message message)
+	{
+		pendingMessages.add(new Operation(message, index));
+		schedule();
+	}
+
+	/**
+	 * Posts a clear of all displayed messages, messages added afterwards
+	 * are kept (thread safe)
+	 */
+	void clear()
+	{
+		pendingMessages.add(CLEAR);
+		schedule();
+	}
+
+	/**
+	 * Posts a replacement of all displayed messages, messages added
+	 * afterwards are kept (thread safe)
+	 * @param replacement the messages to display (copied)
+	 */
+	void setAll(List<Message> replacement)
+	{
+		pendingMessages.add(new Operation(new ArrayList<Message>(replacement)));
+		schedule();
+	}
+
+	/**
+	 * Posts an author to add if not already displayed (thread safe)
+	 * @param author the author to add
+	 */
+	void addAuthor(String author)
+	{
+		pendingAuthors.add(author);
+		schedule();
+	}
+
+	/**
+	 * Batch size accessor
+	 * @return the distribution of the number of messages added per flush
+	 */
+	Distribution getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * Flush latency accessor
+	 * @return the distribution of delays (in microseconds) between the oldest
+	 * pending operation and its flush
+	 */
+	Distribution getFlushLatency()
+	{
+		return flushLatency;
+	}
+
+	/**
+	 * Appends a batch of messages to displayed messages (on JavaFX thread)
+	 * then empties the batch
+	 * @param batch the messages to append
+	 * @param cleared true if displayed messages should be replaced by the
+	 * batch
+	 */
+	private void applyBatch(List<Message> batch, boolean cleared)
+	{
+		if (cleared)
+		{
+			messages.setAll(batch);
+		}
+		else if (!batch.isEmpty())
+		{
+			messages.addAll(batch);
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Starts the pulse timer (on JavaFX thread) if it is not already running
+	 */
+	private void schedule()
+	{
+		oldestPending.compareAndSet(0, System.nanoTime());
+		if (scheduled.compareAndSet(false, true))
+		{
+			Platform.runLater(timer::start);
+		}
+	}
+
+	/**
+	 * Applies all pending operations (on JavaFX thread, once per pulse) then
+	 * stops the timer if nothing is left
+	 */
+	private void flush()
+	{
+		long posted = oldestPending.getAndSet(0);
+
+		/*
+		 * Drain pending operations: a clear (or a replacement) discards
+		 * operations posted before it
+		 */
+		List<Operation> operations = new ArrayList<Operation>();
+		List<Message> batch = new ArrayList<Message>();
+		boolean cleared = false;
+		Operation operation;
+		while ((operation = pendingMessages.poll()) != null)
+		{
+			if ((operation == CLEAR) || (operation.messages != null))
+			{
+				operations.clear();
+				batch = (operation.messages != null ? operation.messages
+				                                    : new ArrayList<Message>());
+				cleared = true;
+			}
+			else
+			{
+				operations.add(operation);
+			}
+		}
+
+		Set<String> newAuthors = new LinkedHashSet<String>();
+		String author;
+		while ((author = pendingAuthors.poll()) != null)
+		{
+			newAuthors.add(author);
+		}
+
+		/*
+		 * Apply them with a single change per list (or per inserted message)
+		 * and a single scroll
+		 */
+		if (!newAuthors.isEmpty())
+		{
+			newAuthors.removeAll(authors);
+			if (!newAuthors.isEmpty())
+			{
+				authors.addAll(newAuthors);
+			}
+		}
+
+		int flushed = operations.size() + batch.size();
+		boolean changed = cleared || !operations.isEmpty();
+		int lastIndex = -1;
+		for (Operation op : operations)
+		{
+			if (op.index < 0)
+			{
+				batch.add(op.message);
+			}
+			else
+			{
+				applyBatch(batch, cleared);
+				cleared = false;
+				messages.add(op.index, op.message);
+				lastIndex = op.index;
+			}
+		}
+		boolean appended = !batch.isEmpty();
+		applyBatch(batch, cleared);
+		if (appended)
+		{
+			lastIndex = messages.size() - 1;
+		}
+
+		if (changed)
+		{
+			batchSize.record(flushed);
+			if ((messagesView != null) && (lastIndex >= 0))
+			{
+				messagesView.scrollTo(lastIndex);
+			}
+		}
+
+		if (posted != 0)
+		{
+			flushLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - posted));
+		}
+		logger.fine("MessagesSink: flushed " + flushed + " messages");
+
+		/*
+		 * Stop the timer when idle (unless operations were posted in the
+		 * meantime)
+		 */
+		if (pendingMessages.isEmpty() && pendingAuthors.isEmpty())
+		{
+			timer.stop();
+			scheduled.set(false);
+			if ((!pendingMessages.isEmpty() || !pendingAuthors.isEmpty())
+				&& scheduled.compareAndSet(false, true))
+			{
+				timer.start();
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package application;
+
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import metrics.Distribution;
+
+/**
+ * Background worker recomputing the messages view off the JavaFX thread.
+ * Each request gets a new generation number and is run after
+ * {@link #DEBOUNCE_DELAY} only if no newer request has been made meanwhile,
+ * so that rapid requests lead to a single recompute. A running recompute is
+ * cancelled as soon as a newer request has been made: tasks check
+ * {@link #isCurrent(long)} before publishing their result, and the
+ * {@link #cancellable(Comparator, long)} and
+ * {@link #cancellable(Predicate, long)} wrappers abort long sorts or
+ * filterings with a {@link CancellationException}. A recompute failing for
+ * any other reason is reported to the failure callback of its request so
+ * that the caller can restore a consistent state.
+ * @author x0wass
+ */
+class MessagesViewWorker
+{
+	/**
+	 * Delay (in ms) between a request and its recompute
+	 */
+	static final long DEBOUNCE_DELAY = 50;
+
+	/**
+	 * Number of comparisons (or tests) between two cancellation checks
+	 */
+	private static final int CHECK_INTERVAL = 4096;
+
+	/**
+	 * Single daemon thread running recomputes
+	 */
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Generation of the last request
+	 */
+	private volatile long generation;
+
+	/**
+	 * Number of requests superseded by a newer one
+	 */
+	private final AtomicLong superseded;
+
+	/**
+	 * Duration (in ms) of completed recomputes
+	 */
+	private final Distribution recomputeTime;
+
+	/**
+	 * Logger used to display debug or info messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Worker constructor
+	 * @param logger logger to display debug messages
+	 */
+	MessagesViewWorker(Logger logger)
+	{
+		this.logger = logger;
+		executor = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+		{
+			Thread thread = new Thread(r, "MessagesViewWorker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		generation = 0;
+		superseded = new AtomicLong(0);
+		recomputeTime = new Distribution("view recompute (ms)");
+	}
+
+	/**
+	 * Requests a recompute (thread safe). Previous requests are cancelled.
+	 * @param task the recompute to run on the worker thread, which receives
+	 * the generation of this request
+	 * @param failure the callback run on the worker thread if task fails
+	 * (otherwise than by being cancelled), which receives the generation of
+	 * this request
+	 * @return the generation of this request
+	 */
+	synchronized long request(LongConsumer task, LongConsumer failure)
+	{
+		long current = ++generation;
+		executor.schedule(() -> run(task, failure, current),
+		                  DEBOUNCE_DELAY,
+		                  TimeUnit.MILLISECONDS);
+		return current;
+	}
+
+	/**
+	 * Cancels pending and running recomputes (thread safe)
+	 */
+	synchronized void cancel()
+	{
+		generation++;
+	}
+
+	/**
+	 * Checks if a request is still the last one
+	 * @param requestGeneration the generation of the request
+	 * @return true if no other request has been made since then
+	 */
+	boolean isCurrent(long requestGeneration)
+	{
+		return requestGeneration == generation;
+	}
+
+	/**
+	 * Wraps a comparator so that it aborts once its request is superseded
+	 * @param <T> the type of compared objects
+	 * @param comparator the comparator to wrap
+	 * @param requestGeneration the generation of the request
+	 * @return a comparator throwing a {@link CancellationException} once
+	 * the request is superseded
+	 */
+	<T> Comparator<T> cancellable(Comparator<T> comparator, long requestGeneration)
+	{
+		int[] count = new int[1];
+		return (T o1, T o2) ->
+		{
+			checkCancelled(count, requestGeneration);
+			return comparator.compare(o1, o2);
+		};
+	}
+
+	/**
+	 * Wraps a predicate so that it aborts once its request is superseded
+	 * @param <T> the type of tested objects
+	 * @param predicate the predicate to wrap
+	 * @param requestGeneration the generation of the request
+	 * @return a predicate throwing a {@link CancellationException} once the
+	 * request is superseded
+	 */
+	<T> Predicate<T> cancellable(Predicate<T> predicate, long requestGeneration)
+	{
+		int[] count = new int[1];
+		return (T t) ->
+		{
+			checkCancelled(count, requestGeneration);
+			return predicate.test(t);
+		};
+	}
+
+	/**
+	 * Superseded requests accessor
+	 * @return the number of requests cancelled by a newer one
+	 */
+	long getSuperseded()
+	{
+		return superseded.get();
+	}
+
+	/**
+	 * Recompute time accessor
+	 * @return the distribution of completed recomputes durations (in ms)
+	 */
+	Distribution getRecomputeTime()
+	{
+		return recomputeTime;
+	}
+
+	/**
+	 * Stops the worker thread
+	 */
+	void shutdown()
+	{
+		cancel();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Runs a recompute on the worker thread
+	 * @param task the recompute to run
+	 * @param failure the callback to run if task fails
+	 * @param requestGeneration the generation of its request
+	 */
+	private void run(LongConsumer task, LongConsumer failure, long requestGeneration)
+	{
+		if (!isCurrent(requestGeneration))
+		{
+			superseded.incrementAndGet();
+			return;
+		}
+
+		long start = System.nanoTime();
+		try
+		{
+			task.accept(requestGeneration);
+			if (isCurrent(requestGeneration))
+			{
+				recomputeTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			else
+			{
+				superseded.incrementAndGet();
+			}
+		}
+		catch (CancellationException e)
+		{
+			superseded.incrementAndGet();
+			logger.fine("MessagesViewWorker: recompute " + requestGeneration + " cancelled");
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.SEVERE, "MessagesViewWorker: recompute failed", e);
+			failure.accept(requestGeneration);
+		}
+	}
+
+	/**
+	 * Throws a {@link CancellationException} every {@link #CHECK_INTERVAL}
+	 * calls if the request has been superseded
+	 * @param count the calls counter
+	 * @param requestGeneration the generation of the request
+	 */
+	private void checkCancelled(int[] count, long requestGeneration)
+	{
+		if ((++count[0] % CHECK_INTERVAL) == 0 && !isCurrent(requestGeneration))
+		{
+			throw new CancellationException();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.server.ChatServer;
+
+/**
+ * Broadcast fan-out benchmark of the {@link ChatServer}: N loopback clients
+ * connect (as legacy clients, so they receive the server's default codec),
+ * one of them sends M lines at once, and the time until all clients have
+ * stopped receiving bytes is measured.
+ * Usage: java benchmarks.FanoutBench [clients [messages [binary]]] where
+ * binary is "-b" to make the server send binary frames instead of
+ * serialized objects.
+ * @author x0wass
+ */
+public class FanoutBench
+{
+	/**
+	 * Default number of clients
+	 */
+	private static final int CLIENTS = 200;
+
+	/**
+	 * Default number of broadcasted messages
+	 */
+	private static final int MESSAGES = 20_000;
+
+	/**
+	 * Number of reactors of the server
+	 */
+	private static final int REACTORS = 2;
+
+	/**
+	 * Time (in ms) without any received byte after which the fan-out is
+	 * considered complete (not counted in the result)
+	 */
+	private static final long QUIET_TIME = 200;
+
+	/**
+	 * Benchmark entry point
+	 * @param args optional number of clients, number of messages and "-b"
+	 * @throws Exception if anything goes wrong
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int clients = (args.length > 0 ? Integer.parseInt(args[0]) : CLIENTS);
+		int messages = (args.length > 1 ? Integer.parseInt(args[1]) : MESSAGES);
+		boolean binary = (args.length > 2) && args[2].equals("-b");
+
+		Logger logger = Logger.getLogger(FanoutBench.class.getName());
+		logger.setLevel(Level.WARNING);
+		int port;
+		try (ServerSocket probe = new ServerSocket(0))
+		{
+			port = probe.getLocalPort();
+		}
+		ChatServer server = new ChatServer(port, REACTORS, binary, List.of(), logger);
+		Thread serverThread = new Thread(server, "ChatServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		AtomicLong received = new AtomicLong(0);
+		List<Socket> sockets = new ArrayList<Socket>(clients);
+		for (int i = 0; i < clients; i++)
+		{
+			Socket socket = new Socket("localhost", port);
+			sockets.add(socket);
+			socket.getOutputStream().write(("user" + i + "\n").getBytes(StandardCharsets.US_ASCII));
+			Thread reader = new Thread(() -> drain(socket, received), "Reader " + i);
+			reader.setDaemon(true);
+			reader.start();
+		}
+		while (server.getClientCount() < clients)
+		{
+			Thread.sleep(10);
+		}
+		Thread.sleep(QUIET_TIME);
+
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < messages; i++)
+		{
+			lines.append("message number ").append(i).append(" with some text\n");
+		}
+		long before = received.get();
+		OutputStream out = sockets.get(0).getOutputStream();
+		long start = System.nanoTime();
+		out.write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+
+		long last = -1;
+		long current;
+		while ((current = received.get()) != last)
+		{
+			last = current;
+			Thread.sleep(QUIET_TIME);
+		}
+		double seconds = (System.nanoTime() - start - (QUIET_TIME * 1_000_000)) / 1e9;
+		System.out.printf("%s: %d clients x %d messages in %.2f s, %.0f deliveries/s, %d MB received%n",
+		                  binary ? "binary frames" : "serialized objects",
+		                  clients,
+		                  messages,
+		                  seconds,
+		                  (clients * (double) messages) / seconds,
+		                  (last - before) >> 20);
+		server.shutdown();
+		System.exit(0);
+	}
+
+	/**
+	 * Reads and counts all bytes received by a client
+	 * @param socket the client's socket
+	 * @param received the bytes counter of all clients
+	 */
+	private static void drain(Socket socket, AtomicLong received)
+	{
+		byte[] buffer = new byte[64 * 1024];
+		try
+		{
+			InputStream in = socket.getInputStream();
+			int count;
+			while ((count = in.read(buffer)) > 0)
+			{
+				received.addAndGet(count);
+			}
+		}
+		catch (IOException e)
+		{
+			// connection closed by server
+		}
+	}
+}
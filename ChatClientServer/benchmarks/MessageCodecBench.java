@@ -0,0 +1,131 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import chat.MessageCodec;
+import models.Message;
+
+/**
+ * Decoding throughput benchmark of {@link MessageCodec} frames against Java
+ * serialized {@link Message}s: the same messages are encoded once in both
+ * formats, then decoded from memory several times, and the best throughput
+ * of each format is printed along with the encoded sizes.
+ * Usage: java benchmarks.MessageCodecBench [messages [rounds]]
+ * @author x0wass
+ */
+public class MessageCodecBench
+{
+	/**
+	 * Default number of messages
+	 */
+	private static final int MESSAGES = 200_000;
+
+	/**
+	 * Default number of rounds (the best one is kept)
+	 */
+	private static final int ROUNDS = 10;
+
+	/**
+	 * Number of distinct authors
+	 */
+	private static final int AUTHORS = 200;
+
+	/**
+	 * Benchmark entry point
+	 * @param args optional number of messages and number of rounds
+	 * @throws Exception if anything goes wrong
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS);
+
+		Random random = new Random(1);
+		Message[] messages = new Message[count];
+		for (int i = 0; i < count; i++)
+		{
+			messages[i] = new Message(i + 1,
+			                          1_700_000_000_000L + i,
+			                          "hello world message number " + random.nextInt(100_000),
+			                          "user" + random.nextInt(AUTHORS));
+		}
+
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(serialized))
+		{
+			for (Message message : messages)
+			{
+				out.writeObject(message);
+			}
+		}
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		try (MessageCodec.Encoder out = new MessageCodec.Encoder(frames))
+		{
+			for (Message message : messages)
+			{
+				out.writeMessage(message);
+			}
+		}
+
+		long bestSerialized = Long.MAX_VALUE;
+		long bestFrames = Long.MAX_VALUE;
+		for (int round = 0; round < rounds; round++)
+		{
+			bestSerialized = Math.min(bestSerialized,
+			                          readSerialized(serialized.toByteArray(), count));
+			bestFrames = Math.min(bestFrames, readFrames(frames.toByteArray(), count));
+		}
+		System.out.printf("ObjectInputStream.readObject: %.2fM msg/s, %.1f MB%n",
+		                  count / (bestSerialized / 1e3),
+		                  serialized.size() / 1e6);
+		System.out.printf("MessageCodec.Decoder:         %.2fM msg/s, %.1f MB%n",
+		                  count / (bestFrames / 1e3),
+		                  frames.size() / 1e6);
+	}
+
+	/**
+	 * Decodes serialized messages
+	 * @param bytes the serialized stream
+	 * @param count the number of messages in stream
+	 * @return the decoding time in ns
+	 * @throws IOException if decoding fails
+	 * @throws ClassNotFoundException if decoding fails
+	 */
+	private static long readSerialized(byte[] bytes, int count)
+	    throws IOException, ClassNotFoundException
+	{
+		long start = System.nanoTime();
+		ObjectInputStream in =
+			new ObjectInputStream(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+		for (int i = 0; i < count; i++)
+		{
+			in.readObject();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Decodes codec frames
+	 * @param bytes the codec stream
+	 * @param count the number of messages in stream
+	 * @return the decoding time in ns
+	 * @throws IOException if decoding fails
+	 */
+	private static long readFrames(byte[] bytes, int count) throws IOException
+	{
+		long start = System.nanoTime();
+		MessageCodec.Decoder in =
+			new MessageCodec.Decoder(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+		for (int i = 0; i < count; i++)
+		{
+			in.readMessage();
+		}
+		return System.nanoTime() - start;
+	}
+}
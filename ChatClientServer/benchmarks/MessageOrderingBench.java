@@ -0,0 +1,182 @@
+package benchmarks;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import models.Message;
+import models.Message.MessageOrder;
+import models.MessageOrdering;
+
+/**
+ * Benchmark of the comparators compiled by {@link MessageOrdering} against a
+ * reference comparator reproducing the former static criteria of
+ * {@link Message} (a synchronized {@link Vector} of criteria iterated and
+ * switched upon for each comparison).
+ * Each round compares all adjacent pairs of a random array of messages and
+ * checks both comparators agree on the sign of every comparison.
+ * Usage: java benchmarks.MessageOrderingBench [messages [rounds]]
+ * @author x0wass
+ */
+public class MessageOrderingBench
+{
+	/**
+	 * Default number of messages
+	 */
+	private static final int MESSAGES = 1 << 20;
+
+	/**
+	 * Default number of rounds (the best one is kept)
+	 */
+	private static final int ROUNDS = 10;
+
+	/**
+	 * Criteria combinations to measure
+	 */
+	private static final List<MessageOrdering> ORDERINGS = List.of(
+		MessageOrdering.of(MessageOrder.DATE),
+		MessageOrdering.of(MessageOrder.AUTHOR, MessageOrder.DATE),
+		MessageOrdering.of(MessageOrder.CONTENT, MessageOrder.AUTHOR, MessageOrder.DATE));
+
+	/**
+	 * Benchmark entry point
+	 * @param args optional number of messages and number of rounds
+	 */
+	public static void main(String[] args)
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS);
+
+		Random random = new Random(5);
+		Message[] messages = new Message[count];
+		for (int i = 0; i < count; i++)
+		{
+			messages[i] = new Message(random.nextInt(1000) * 1000L,
+			                          "c" + random.nextInt(100),
+			                          random.nextInt(10) == 0 ? null : "user" + random.nextInt(50));
+		}
+
+		for (MessageOrdering ordering : ORDERINGS)
+		{
+			Comparator<Message> reference = new StaticOrders(ordering.getCriteria());
+			Comparator<Message> compiled = ordering.comparator();
+			long bestReference = Long.MAX_VALUE;
+			long bestCompiled = Long.MAX_VALUE;
+			long checksum = 0;
+			for (int round = 0; round < rounds; round++)
+			{
+				long start = System.nanoTime();
+				checksum += compareAdjacent(messages, reference);
+				bestReference = Math.min(bestReference, System.nanoTime() - start);
+				start = System.nanoTime();
+				checksum -= compareAdjacent(messages, compiled);
+				bestCompiled = Math.min(bestCompiled, System.nanoTime() - start);
+			}
+
+			System.out.printf("%s: static criteria %.1f ns/comparison, compiled %.1f ns/comparison, same signs %b%n",
+			                  ordering,
+			                  bestReference / (double) (count - 1),
+			                  bestCompiled / (double) (count - 1),
+			                  checksum == 0 && sameSigns(messages, reference, compiled));
+		}
+	}
+
+	/**
+	 * Compares all adjacent pairs of messages
+	 * @param messages the messages to compare
+	 * @param comparator the comparator to use
+	 * @return the sum of the comparisons signs (so that comparisons can't be
+	 * optimized away)
+	 */
+	private static long compareAdjacent(Message[] messages, Comparator<Message> comparator)
+	{
+		long sum = 0;
+		for (int i = 1; i < messages.length; i++)
+		{
+			sum += Integer.signum(comparator.compare(messages[i - 1], messages[i]));
+		}
+		return sum;
+	}
+
+	/**
+	 * Checks two comparators agree on all adjacent pairs of messages
+	 * @param messages the messages to compare
+	 * @param first the first comparator
+	 * @param second the second comparator
+	 * @return true if both comparators give the same sign for every pair
+	 */
+	private static boolean sameSigns(Message[] messages,
+	                                 Comparator<Message> first,
+	                                 Comparator<Message> second)
+	{
+		for (int i = 1; i < messages.length; i++)
+		{
+			if (Integer.signum(first.compare(messages[i - 1], messages[i]))
+				!= Integer.signum(second.compare(messages[i - 1], messages[i])))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reference comparator: the former Message.compareTo loop over a shared
+	 * synchronized vector of criteria
+	 */
+	private static class StaticOrders implements Comparator<Message>
+	{
+		/**
+		 * Sort criteria
+		 */
+		private final Vector<MessageOrder> orders;
+
+		/**
+		 * Reference comparator constructor
+		 * @param criteria the sort criteria
+		 */
+		StaticOrders(List<MessageOrder> criteria)
+		{
+			orders = new Vector<MessageOrder>(criteria);
+		}
+
+		@Override
+		public int compare(Message m1, Message m2)
+		{
+			int compare = 0;
+			for (MessageOrder criterium : orders)
+			{
+				switch (criterium)
+				{
+					case AUTHOR:
+						String a1 = m1.getAuthor();
+						String a2 = m2.getAuthor();
+						if (a1 != null)
+						{
+							compare = (a2 != null ? a1.compareTo(a2) : 1);
+						}
+						else
+						{
+							compare = (a2 != null ? -1 : 0);
+						}
+						break;
+					case DATE:
+						// the former Date fields compared their millis
+						compare = Long.compare(m1.getTime(), m2.getTime());
+						break;
+					case CONTENT:
+						compare = m1.getContent().compareTo(m2.getContent());
+						break;
+					default:
+						break;
+				}
+				if (compare != 0)
+				{
+					break;
+				}
+			}
+			return compare;
+		}
+	}
+}
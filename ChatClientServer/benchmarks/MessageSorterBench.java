@@ -0,0 +1,132 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import models.AuthorRegistry;
+import models.Message;
+import models.Message.MessageOrder;
+import models.MessageOrdering;
+import models.MessageSorter;
+
+/**
+ * Benchmark of {@link MessageSorter} against a stable sort with the
+ * comparator compiled by {@link MessageOrdering}, followed by the speedup of
+ * {@link MessageSorter} with fork/join pools of increasing parallelism (1, 2,
+ * 4, ... up to twice the number of available processors).
+ * Both sorts are checked to produce the same order.
+ * Usage: java benchmarks.MessageSorterBench [messages [rounds]]
+ * @author x0wass
+ */
+public class MessageSorterBench
+{
+	/**
+	 * Default number of messages
+	 */
+	private static final int MESSAGES = 1_000_000;
+
+	/**
+	 * Default number of rounds (the best one is kept)
+	 */
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Contents prefixes, many of them sharing their first characters
+	 */
+	private static final String[] WORDS =
+		{"hello", "help", "hel", "he", "", "zzz", "a", "ab", "abcdefgh", "abcdefgz"};
+
+	/**
+	 * Criteria combinations to measure
+	 */
+	private static final List<MessageOrdering> ORDERINGS = List.of(
+		MessageOrdering.of(MessageOrder.AUTHOR, MessageOrder.DATE),
+		MessageOrdering.of(MessageOrder.DATE),
+		MessageOrdering.of(MessageOrder.CONTENT, MessageOrder.AUTHOR),
+		MessageOrdering.of(MessageOrder.AUTHOR, MessageOrder.CONTENT, MessageOrder.DATE));
+
+	/**
+	 * Benchmark entry point
+	 * @param args optional number of messages and number of rounds
+	 */
+	public static void main(String[] args)
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS);
+
+		Random random = new Random(3);
+		AuthorRegistry registry = new AuthorRegistry();
+		List<Message> messages = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++)
+		{
+			String author = (random.nextInt(20) == 0 ? null : "user" + random.nextInt(200));
+			Message message = new Message(random.nextInt(100_000) * 1000L,
+			                              WORDS[random.nextInt(WORDS.length)] + random.nextInt(50),
+			                              author);
+			registry.register(message);
+			messages.add(message);
+		}
+		int[] positions = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			positions[i] = i;
+		}
+
+		for (MessageOrdering ordering : ORDERINGS)
+		{
+			Comparator<Message> comparator = ordering.comparator();
+			long bestComparator = Long.MAX_VALUE;
+			long bestSorter = Long.MAX_VALUE;
+			boolean same = true;
+			for (int round = 0; round < rounds; round++)
+			{
+				List<Message> reference = new ArrayList<Message>(messages);
+				long start = System.nanoTime();
+				reference.sort(comparator);
+				bestComparator = Math.min(bestComparator, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				int[] sorted = MessageSorter.sort(messages, positions, ordering, null);
+				bestSorter = Math.min(bestSorter, System.nanoTime() - start);
+
+				for (int i = 0; same && (i < count); i++)
+				{
+					same = (reference.get(i) == messages.get(sorted[i]));
+				}
+			}
+			System.out.printf("%s: comparator sort %d ms, sort keys and merge sort %d ms, same order %b%n",
+			                  ordering,
+			                  bestComparator / 1_000_000,
+			                  bestSorter / 1_000_000,
+			                  same);
+		}
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println("Available processors: " + processors);
+		long sequential = 0;
+		for (int parallelism = 1; parallelism <= (2 * processors); parallelism *= 2)
+		{
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < rounds; round++)
+			{
+				long start = System.nanoTime();
+				MessageSorter.sort(messages, positions, ORDERINGS.get(0), pool, null);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			pool.shutdown();
+			if (parallelism == 1)
+			{
+				sequential = best;
+			}
+			System.out.printf("%s with parallelism %d: %d ms, speedup %.2f%n",
+			                  ORDERINGS.get(0),
+			                  parallelism,
+			                  best / 1_000_000,
+			                  sequential / (double) best);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.ResetPolicy;
+import chat.UserOutputType;
+import chat.client.ChatClient;
+import models.Message;
+
+/**
+ * Heap growth soak test of the object stream relayed by a
+ * {@link ChatClient} in {@link UserOutputType#OBJECT} mode: a fake server
+ * sends serialized messages which the client relays to a pipe read by an
+ * {@link ObjectInputStream} (like the GUI's messages runner does), and the
+ * heap used after a full GC is printed every {@link #REPORT_INTERVAL}
+ * messages.
+ * The relayed stream is reset according to
+ * {@link ResetPolicy#fromSystemProperties()}: run it once with the default
+ * policy and once with -Dchat.reset.objects=0 -Dchat.reset.bytes=0 (never
+ * reset) to compare heap growth.
+ * Usage: java [-Xmx1g] benchmarks.ResetPolicySoak [messages]
+ * @author x0wass
+ */
+public class ResetPolicySoak
+{
+	/**
+	 * Default number of relayed messages
+	 */
+	private static final int MESSAGES = 1_000_000;
+
+	/**
+	 * Number of messages between two heap reports
+	 */
+	private static final int REPORT_INTERVAL = 200_000;
+
+	/**
+	 * Number of messages between two resets of the fake server's stream
+	 * (so that only the relayed stream might grow)
+	 */
+	private static final int SERVER_RESET_INTERVAL = 64;
+
+	/**
+	 * Soak test entry point
+	 * @param args optional number of messages
+	 * @throws Exception if anything goes wrong
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES);
+		System.out.println("Relayed stream reset policy: " + ResetPolicy.fromSystemProperties());
+
+		ServerSocket serverSocket = new ServerSocket(0);
+		Thread server = new Thread(() -> serve(serverSocket, count), "Fake server");
+		server.setDaemon(true);
+		server.start();
+
+		Logger logger = Logger.getLogger(ResetPolicySoak.class.getName());
+		logger.setLevel(Level.WARNING);
+		PipedOutputStream relayOut = new PipedOutputStream();
+		PipedInputStream relayIn = new PipedInputStream(relayOut, 1 << 16);
+		PipedOutputStream userOut = new PipedOutputStream();
+		PipedInputStream userIn = new PipedInputStream(userOut);
+		ChatClient client = new ChatClient("localhost",
+		                                   serverSocket.getLocalPort(),
+		                                   "soak",
+		                                   userIn,
+		                                   relayOut,
+		                                   UserOutputType.OBJECT,
+		                                   null,
+		                                   logger);
+		Thread clientThread = new Thread(client, "Soak client");
+		clientThread.setDaemon(true);
+		clientThread.start();
+
+		ObjectInputStream reader = new ObjectInputStream(relayIn);
+		long start = System.nanoTime();
+		for (int i = 1; i <= count; i++)
+		{
+			reader.readObject();
+			if ((i % REPORT_INTERVAL) == 0)
+			{
+				System.out.printf("%8d messages: heap after GC %4d MB%n", i, usedHeap() >> 20);
+			}
+		}
+		System.out.printf("%d messages relayed in %.1f s%n",
+		                  count,
+		                  (System.nanoTime() - start) / 1e9);
+		System.exit(0);
+	}
+
+	/**
+	 * Fake server: reads the client's name then sends serialized messages
+	 * @param serverSocket the server socket to accept the client from
+	 * @param count the number of messages to send
+	 */
+	private static void serve(ServerSocket serverSocket, int count)
+	{
+		try (Socket socket = serverSocket.accept())
+		{
+			new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+			ObjectOutputStream out =
+				new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			for (int i = 0; i < count; i++)
+			{
+				out.writeObject(new Message(i + 1, System.currentTimeMillis(), "soak message " + i, "bob"));
+				if ((i % SERVER_RESET_INTERVAL) == 0)
+				{
+					out.reset();
+				}
+			}
+			out.flush();
+			// keep the connection open until the client is done
+			Thread.sleep(Long.MAX_VALUE);
+		}
+		catch (IOException | InterruptedException e)
+		{
+			System.err.println("Fake server: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Heap used after a full GC
+	 * @return the number of used heap bytes
+	 */
+	private static long usedHeap()
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
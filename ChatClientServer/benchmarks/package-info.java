@@ -0,0 +1,9 @@
+/**
+ * Package containing stand alone benchmark and soak harnesses (each one has
+ * its own main method and prints its results on the standard output).
+ * They are plain Java programs rather than JMH benchmarks since the project
+ * has no build dependencies: each harness warms up and keeps the best of
+ * several rounds, which is enough to compare implementations on a given
+ * machine but not to publish absolute figures.
+ */
+package benchmarks;
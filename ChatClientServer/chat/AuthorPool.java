@@ -0,0 +1,264 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import models.Message;
+
+/**
+ * Pool of canonical author names used when decoding {@link Message}s, so that
+ * all messages of an author share the same {@link String} instead of each
+ * carrying its own copy.
+ * Names are looked up directly from their UTF-8 bytes in an open addressing
+ * table, so that a known author is decoded without creating any intermediate
+ * {@link String}. The pool holds at most {@link #DEFAULT_CAPACITY} (or the
+ * given capacity) names and is simply cleared when full.
+ * Interning is done by a single decoding thread, but the metrics (hits,
+ * misses and estimated memory saved) can be read from any thread.
+ * @author x0wass
+ */
+public class AuthorPool
+{
+	/**
+	 * Default maximum number of pooled names
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Estimated size (in bytes) of a String object and of its array header
+	 */
+	private static final int STRING_OVERHEAD = 24 + 16;
+
+	/**
+	 * Maximum number of pooled names
+	 */
+	private final int capacity;
+
+	/**
+	 * UTF-8 bytes of pooled names (table slots)
+	 */
+	private byte[][] keys;
+
+	/**
+	 * Hashes of pooled names (table slots)
+	 */
+	private int[] hashes;
+
+	/**
+	 * Pooled names (table slots, null for empty slots)
+	 */
+	private String[] values;
+
+	/**
+	 * Number of pooled names
+	 */
+	private int count;
+
+	/**
+	 * Number of names found in the pool
+	 */
+	private volatile long hits;
+
+	/**
+	 * Number of names not found in the pool
+	 */
+	private volatile long misses;
+
+	/**
+	 * Estimated number of bytes of the strings which would have been created
+	 * without this pool
+	 */
+	private volatile long savedBytes;
+
+	/**
+	 * Default constructor of a pool of {@link #DEFAULT_CAPACITY} names
+	 */
+	public AuthorPool()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity the maximum number of pooled names
+	 * @throws IllegalArgumentException if capacity is not positive
+	 */
+	public AuthorPool(int capacity)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("AuthorPool: invalid capacity "
+				+ capacity);
+		}
+		this.capacity = capacity;
+		int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		keys = new byte[slots][];
+		hashes = new int[slots];
+		values = new String[slots];
+		count = 0;
+		hits = 0;
+		misses = 0;
+		savedBytes = 0;
+	}
+
+	/**
+	 * Canonical name from its UTF-8 bytes (decoding thread only)
+	 * @param buffer the array containing the name
+	 * @param offset the offset of the name in the array
+	 * @param length the number of bytes of the name
+	 * @return the pooled name equal to the decoded bytes
+	 */
+	public String intern(byte[] buffer, int offset, int length)
+	{
+		int hash = hash(buffer, offset, length);
+		int mask = values.length - 1;
+		int slot = hash & mask;
+		for (String value = values[slot]; value != null; value = values[slot])
+		{
+			byte[] key = keys[slot];
+			if ((hashes[slot] == hash)
+			    && Arrays.equals(key, 0, key.length, buffer, offset, offset + length))
+			{
+				hits++;
+				savedBytes += stringSize(value, length);
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		/*
+		 * Unknown name: decode and pool it (in an empty table if full)
+		 */
+		misses++;
+		String name = new String(buffer, offset, length, StandardCharsets.UTF_8);
+		if (count == capacity)
+		{
+			Arrays.fill(keys, null);
+			Arrays.fill(values, null);
+			count = 0;
+			slot = hash & mask;
+		}
+		keys[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+		hashes[slot] = hash;
+		values[slot] = name;
+		count++;
+
+		return name;
+	}
+
+	/**
+	 * Canonical name of a name (decoding thread only)
+	 * @param name the name to intern (may be null)
+	 * @return the pooled name equal to name, or null if name is null
+	 */
+	public String intern(String name)
+	{
+		if (name == null)
+		{
+			return null;
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return intern(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Message with a canonical author (decoding thread only)
+	 * @param message the message whose author should be interned
+	 * @return message itself if it has no author or if its author is already
+	 * the pooled name, or a new message (with the same sequence number) with
+	 * the pooled name otherwise
+	 */
+	public Message intern(Message message)
+	{
+		String author = message.getAuthor();
+		String name = intern(author);
+		if (name == author)
+		{
+			return message;
+		}
+		return new Message(message.getSequence(), message.getTime(), message.getContent(), name);
+	}
+
+	/**
+	 * Hits accessor
+	 * @return the number of names found in the pool
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Misses accessor
+	 * @return the number of names not found in the pool
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Hit rate accessor
+	 * @return the ratio of names found in the pool (0 if no name has been
+	 * interned yet)
+	 */
+	public double getHitRate()
+	{
+		long found = hits;
+		long total = found + misses;
+		return total > 0 ? (double) found / total : 0.0;
+	}
+
+	/**
+	 * Memory saved accessor
+	 * @return the estimated number of bytes of the strings which would have
+	 * been created (and evt retained by messages) without this pool
+	 */
+	public long getSavedBytes()
+	{
+		return savedBytes;
+	}
+
+	/**
+	 * Pool string representation
+	 * @return a string containing the pool metrics
+	 */
+	@Override
+	public String toString()
+	{
+		return "authors pool: " + hits + " hits, " + misses + " misses, "
+			+ String.format("%.1f", getHitRate() * 100.0) + "% hit rate, "
+			+ savedBytes + " bytes saved";
+	}
+
+	/**
+	 * Hash of UTF-8 bytes
+	 * @param buffer the array containing the bytes
+	 * @param offset the offset of the bytes in the array
+	 * @param length the number of bytes
+	 * @return the hash of the bytes
+	 */
+	private static int hash(byte[] buffer, int offset, int length)
+	{
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++)
+		{
+			hash = (31 * hash) + buffer[i];
+		}
+		// spreads high bits since table index uses low bits
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Estimated size of a string
+	 * @param value the string
+	 * @param length the number of UTF-8 bytes of the string
+	 * @return the estimated size (in bytes) of the string and its array
+	 */
+	private static long stringSize(String value, int length)
+	{
+		// Latin-1 strings use 1 byte per char, others 2
+		int data = (value.length() == length ? length : 2 * value.length());
+		return STRING_OVERHEAD + ((data + 7) & ~7);
+	}
+}
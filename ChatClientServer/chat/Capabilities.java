@@ -0,0 +1,373 @@
+package chat;
+
+import java.util.StringJoiner;
+
+/**
+ * Protocol capabilities negotiated between a client and a server.
+ * A client offers the capabilities it supports with a
+ * {@link Vocabulary#helloCmd} line sent right after its name (in the same
+ * write). A server supporting handshakes picks the capabilities to use
+ * ({@link #choose(Capabilities, boolean)}) and replies with a
+ * {@link Vocabulary#helloCmd} line followed by the stream header of the
+ * chosen codec. Servers which do not support handshakes (legacy servers)
+ * ignore the offer and send their stream header right away: the client then
+ * stays on {@link #LEGACY} capabilities and detects the codec from the
+ * header.
+ * Capabilities are written as space separated tokens:
+ * <ul>
+ * <li>{@value #BINARY}: messages can be sent as {@link MessageCodec}
+ * frames</li>
+ * <li>{@value #OBJECTS}: messages can be sent as serialized objects</li>
+ * <li>{@value #DEFLATE}: catch ups are sent as compressed batches
+ * ({@link MessageCodec#DEFLATE_FRAME}, binary frames only)</li>
+ * <li>{@value #DELTA_CATCH_UP}: catch ups since a sequence number or a date
+ * are supported ({@link Vocabulary#sinceKeyword})</li>
+ * <li>{@value #CLOSE_SIGNAL}: the server signals that it closes the
+ * connection on purpose (when the client is kicked or the server is killed)
+ * right before closing it ({@link MessageCodec#CLOSE_FRAME} or a null
+ * serialized object)</li>
+ * <li>{@value #BATCH}=n: catch ups are sent in pages of (at most) n
+ * messages</li>
+ * <li>{@value #EPOCH}=n: not a capability but the server's epoch (its start
+ * time), sent in the server's choice so that clients know when sequence
+ * numbers have been restarted from 1 by a new server instance</li>
+ * </ul>
+ * A client offers both codecs and the server chooses exactly one of them.
+ * Unknown tokens are ignored so that newer peers can offer more
+ * capabilities.
+ * @author x0wass
+ */
+public final class Capabilities
+{
+	/**
+	 * Token of the binary frames codec
+	 */
+	public static final String BINARY = "binary";
+
+	/**
+	 * Token of the serialized objects codec
+	 */
+	public static final String OBJECTS = "objects";
+
+	/**
+	 * Token of the compressed catch ups capability
+	 */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * Token of the delta catch ups capability
+	 */
+	public static final String DELTA_CATCH_UP = "since";
+
+	/**
+	 * Token of the close signal capability
+	 */
+	public static final String CLOSE_SIGNAL = "close";
+
+	/**
+	 * Token (followed by "=" and a number of messages) of the catch up page
+	 * size capability
+	 */
+	public static final String BATCH = "batch";
+
+	/**
+	 * Token (followed by "=" and a number) of the server's epoch
+	 */
+	public static final String EPOCH = "epoch";
+
+	/**
+	 * Capabilities of legacy peers (or of peers which did not negotiate)
+	 */
+	public static final Capabilities LEGACY = new Capabilities(false, false, false, false, false, 0, 0);
+
+	/**
+	 * Binary frames codec
+	 */
+	private final boolean binaryFrames;
+
+	/**
+	 * Serialized objects codec
+	 */
+	private final boolean serializedObjects;
+
+	/**
+	 * Compressed catch ups capability
+	 */
+	private final boolean deflate;
+
+	/**
+	 * Delta catch ups capability
+	 */
+	private final boolean deltaCatchUp;
+
+	/**
+	 * Close signal capability
+	 */
+	private final boolean closeSignal;
+
+	/**
+	 * Maximum number of messages per catch up page (0 if unspecified)
+	 */
+	private final int catchUpPage;
+
+	/**
+	 * Epoch of the server numbering messages (0 if unknown)
+	 */
+	private final long epoch;
+
+	/**
+	 * Capabilities constructor
+	 * @param binaryFrames binary frames codec
+	 * @param serializedObjects serialized objects codec
+	 * @param deflate compressed catch ups capability
+	 * @param deltaCatchUp delta catch ups capability
+	 * @param closeSignal close signal capability
+	 * @param catchUpPage maximum number of messages per catch up page (0 if
+	 * unspecified)
+	 * @param epoch epoch of the server numbering messages (0 if unknown, such
+	 * as in clients capabilities)
+	 * @throws IllegalArgumentException if catchUpPage is negative
+	 */
+	public Capabilities(boolean binaryFrames,
+	                    boolean serializedObjects,
+	                    boolean deflate,
+	                    boolean deltaCatchUp,
+	                    boolean closeSignal,
+	                    int catchUpPage,
+	                    long epoch)
+	{
+		if (catchUpPage < 0)
+		{
+			throw new IllegalArgumentException("Capabilities: negative page size");
+		}
+		this.binaryFrames = binaryFrames;
+		this.serializedObjects = serializedObjects;
+		this.deflate = deflate;
+		this.deltaCatchUp = deltaCatchUp;
+		this.closeSignal = closeSignal;
+		this.catchUpPage = catchUpPage;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Parses capabilities tokens
+	 * @param tokens space separated capabilities tokens (unknown or invalid
+	 * tokens are ignored)
+	 * @return the parsed capabilities
+	 */
+	public static Capabilities parse(String tokens)
+	{
+		boolean binaryFrames = false;
+		boolean serializedObjects = false;
+		boolean deflate = false;
+		boolean deltaCatchUp = false;
+		boolean closeSignal = false;
+		int catchUpPage = 0;
+		long epoch = 0;
+		for (String token : tokens.trim().split("\\s+"))
+		{
+			if (token.equals(BINARY))
+			{
+				binaryFrames = true;
+			}
+			else if (token.equals(OBJECTS))
+			{
+				serializedObjects = true;
+			}
+			else if (token.equals(DEFLATE))
+			{
+				deflate = true;
+			}
+			else if (token.equals(DELTA_CATCH_UP))
+			{
+				deltaCatchUp = true;
+			}
+			else if (token.equals(CLOSE_SIGNAL))
+			{
+				closeSignal = true;
+			}
+			else if (token.startsWith(BATCH + "="))
+			{
+				try
+				{
+					catchUpPage = Math.max(0, Integer.parseInt(token.substring(BATCH.length() + 1)));
+				}
+				catch (NumberFormatException e)
+				{
+					catchUpPage = 0;
+				}
+			}
+			else if (token.startsWith(EPOCH + "="))
+			{
+				try
+				{
+					epoch = Long.parseLong(token.substring(EPOCH.length() + 1));
+				}
+				catch (NumberFormatException e)
+				{
+					epoch = 0;
+				}
+			}
+		}
+		return new Capabilities(binaryFrames,
+		                        serializedObjects,
+		                        deflate,
+		                        deltaCatchUp,
+		                        closeSignal,
+		                        catchUpPage,
+		                        epoch);
+	}
+
+	/**
+	 * Chooses the capabilities to use among the ones offered by a client
+	 * (called on the server with its own capabilities): binary frames are
+	 * preferred when offered, then serialized objects, then the server's
+	 * default codec if the client offered none. Compressed catch ups are only
+	 * chosen along with binary frames.
+	 * @param offer the capabilities offered by the client
+	 * @param defaultBinary true if the server's default codec is binary
+	 * frames
+	 * @return the capabilities supported by this and offer with a single
+	 * codec (the smallest page size if both specify one, and the epoch of
+	 * this)
+	 */
+	public Capabilities choose(Capabilities offer, boolean defaultBinary)
+	{
+		boolean binary;
+		if (offer.binaryFrames && binaryFrames)
+		{
+			binary = true;
+		}
+		else if (offer.serializedObjects && serializedObjects)
+		{
+			binary = false;
+		}
+		else
+		{
+			binary = defaultBinary;
+		}
+
+		int page;
+		if ((catchUpPage > 0) && (offer.catchUpPage > 0))
+		{
+			page = Math.min(catchUpPage, offer.catchUpPage);
+		}
+		else
+		{
+			page = Math.max(catchUpPage, offer.catchUpPage);
+		}
+		return new Capabilities(binary,
+		                        !binary,
+		                        binary && deflate && offer.deflate,
+		                        deltaCatchUp && offer.deltaCatchUp,
+		                        closeSignal && offer.closeSignal,
+		                        page,
+		                        epoch);
+	}
+
+	/**
+	 * Binary frames codec accessor
+	 * @return true if messages can be sent as {@link MessageCodec} frames
+	 */
+	public boolean isBinaryFrames()
+	{
+		return binaryFrames;
+	}
+
+	/**
+	 * Serialized objects codec accessor
+	 * @return true if messages can be sent as serialized objects
+	 */
+	public boolean isSerializedObjects()
+	{
+		return serializedObjects;
+	}
+
+	/**
+	 * Compressed catch ups capability accessor
+	 * @return true if catch ups are sent as compressed batches
+	 */
+	public boolean isDeflate()
+	{
+		return deflate;
+	}
+
+	/**
+	 * Delta catch ups capability accessor
+	 * @return true if catch ups since a sequence number or a date are
+	 * supported
+	 */
+	public boolean isDeltaCatchUp()
+	{
+		return deltaCatchUp;
+	}
+
+	/**
+	 * Close signal capability accessor
+	 * @return true if the server signals that it closes the connection on
+	 * purpose before closing it
+	 */
+	public boolean isCloseSignal()
+	{
+		return closeSignal;
+	}
+
+	/**
+	 * Catch up page size accessor
+	 * @return the maximum number of messages per catch up page (0 if
+	 * unspecified)
+	 */
+	public int getCatchUpPage()
+	{
+		return catchUpPage;
+	}
+
+	/**
+	 * Server epoch accessor
+	 * @return the epoch of the server numbering messages (0 if unknown):
+	 * sequence numbers of different epochs are unrelated
+	 */
+	public long getEpoch()
+	{
+		return epoch;
+	}
+
+	/**
+	 * Capabilities string representation (as sent during handshakes)
+	 * @return the space separated capabilities tokens, or "none"
+	 */
+	@Override
+	public String toString()
+	{
+		StringJoiner tokens = new StringJoiner(" ", "", "").setEmptyValue("none");
+		if (binaryFrames)
+		{
+			tokens.add(BINARY);
+		}
+		if (serializedObjects)
+		{
+			tokens.add(OBJECTS);
+		}
+		if (deflate)
+		{
+			tokens.add(DEFLATE);
+		}
+		if (deltaCatchUp)
+		{
+			tokens.add(DELTA_CATCH_UP);
+		}
+		if (closeSignal)
+		{
+			tokens.add(CLOSE_SIGNAL);
+		}
+		if (catchUpPage > 0)
+		{
+			tokens.add(BATCH + "=" + catchUpPage);
+		}
+		if (epoch != 0)
+		{
+			tokens.add(EPOCH + "=" + epoch);
+		}
+		return tokens.toString();
+	}
+}
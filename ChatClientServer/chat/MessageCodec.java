@@ -0,0 +1,1290 @@
+package chat;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import models.Message;
+
+/**
+ * Compact binary wire codec for {@link Message}s.
+ * A codec stream starts with the {@link #STREAM_HEADER} followed by
+ * length-prefixed frames:
+ * <pre>
+ * frame   := varint(payload length) payload
+ * payload := type(1 byte) varint(sequence) millis(8 bytes, big endian)
+ *            varint(author length + 1) author(UTF-8)
+ *            varint(content length) content(UTF-8)
+ * </pre>
+ * An author length of 0 denotes a message without author (server's messages).
+ * The sequence is the {@link Message#getSequence()} assigned by the server
+ * (0 for messages without sequence number).
+ * A batch of message frames (such as a catch up page) may also be sent as a
+ * single compressed frame:
+ * <pre>
+ * payload := type(1 byte) varint(frames length) deflate(frames)
+ * </pre>
+ * where frames are complete message frames compressed with a {@link Deflater}
+ * using the {@link #DEFLATE_DICTIONARY} preset dictionary, each batch being
+ * compressed independently (see {@link Compressor}). Decoders accept both
+ * kinds of frames and report decompression metrics ({@link Inflation}).
+ * A writer closing the connection on purpose (such as a server kicking a
+ * client) may announce it with a last frame made of its type only:
+ * <pre>
+ * payload := type(1 byte)
+ * </pre>
+ * The {@link #STREAM_HEADER} can never be confused with the header of an
+ * {@link ObjectInputStream} (0xACED) so the receiving side can detect which
+ * kind of stream it is reading with {@link #isCodecStream(InputStream)} and
+ * keep reading Java serialized streams from older peers.
+ * Decoders canonicalize authors with an {@link AuthorPool}.
+ * @author x0wass
+ */
+public final class MessageCodec
+{
+	/**
+	 * Codec stream header: "CM" magic followed by the codec version
+	 */
+	public static final byte[] STREAM_HEADER = {0x43, 0x4D, 0x00, 0x01};
+
+	/**
+	 * Frame type of a single {@link Message} frame
+	 */
+	public static final byte MESSAGE_FRAME = 0;
+
+	/**
+	 * Frame type of a compressed batch of {@link #MESSAGE_FRAME}s
+	 */
+	public static final byte DEFLATE_FRAME = 1;
+
+	/**
+	 * Frame type of the close signal sent right before closing the
+	 * connection on purpose
+	 */
+	public static final byte CLOSE_FRAME = 2;
+
+	/**
+	 * Preset dictionary of compressed batches: wording of server's messages
+	 * (the most frequent strings are at the end, where they are cheaper to
+	 * reference)
+	 */
+	private static final byte[] DEFLATE_DICTIONARY =
+		(" kicked by  logged out logged in").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Maximum accepted payload length (protects against corrupted streams)
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Utility class: no instances
+	 */
+	private MessageCodec()
+	{
+	}
+
+	/**
+	 * Checks if the stream starts with a codec {@link #STREAM_HEADER} without
+	 * consuming any byte from the stream
+	 * @param in the input stream to check (should support
+	 * {@link InputStream#mark(int)})
+	 * @return true if the stream starts with a codec header, false otherwise
+	 * (typically a Java serialized stream)
+	 * @throws IOException if the stream can't be read or does not support mark
+	 */
+	public static boolean isCodecStream(InputStream in) throws IOException
+	{
+		if (!in.markSupported())
+		{
+			throw new IOException("MessageCodec: stream does not support mark");
+		}
+
+		byte[] header = new byte[STREAM_HEADER.length];
+		in.mark(header.length);
+		int count = 0;
+		try
+		{
+			while (count < header.length)
+			{
+				int read = in.read(header, count, header.length - count);
+				if (read < 0)
+				{
+					break;
+				}
+				count += read;
+			}
+		}
+		finally
+		{
+			in.reset();
+		}
+
+		return (count == header.length) && Arrays.equals(header, STREAM_HEADER);
+	}
+
+	/**
+	 * Encodes a message into a complete frame (including its length prefix)
+	 * @param message the message to encode (with its sequence number)
+	 * @return a new array containing the encoded frame
+	 */
+	public static byte[] encodeFrame(Message message)
+	{
+		long sequence = message.getSequence();
+		byte[] author = (message.hasAuthor() ?
+			message.getAuthor().getBytes(StandardCharsets.UTF_8) : null);
+		byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+		int authorField = (author != null ? author.length + 1 : 0);
+
+		int payloadLength = 1
+			+ varintSize(sequence)
+			+ Long.BYTES
+			+ varintSize(authorField) + (author != null ? author.length : 0)
+			+ varintSize(content.length) + content.length;
+
+		byte[] frame = new byte[varintSize(payloadLength) + payloadLength];
+		int pos = putVarint(frame, 0, payloadLength);
+		frame[pos++] = MESSAGE_FRAME;
+		pos = putVarint(frame, pos, sequence);
+		pos = putLong(frame, pos, message.getTime());
+		pos = putVarint(frame, pos, authorField);
+		if (author != null)
+		{
+			System.arraycopy(author, 0, frame, pos, author.length);
+			pos += author.length;
+		}
+		pos = putVarint(frame, pos, content.length);
+		System.arraycopy(content, 0, frame, pos, content.length);
+
+		return frame;
+	}
+
+	/**
+	 * Encodes a close signal into a complete frame
+	 * @return a new array containing the {@link #CLOSE_FRAME}
+	 */
+	public static byte[] encodeCloseFrame()
+	{
+		return new byte[] {1, CLOSE_FRAME};
+	}
+
+	/**
+	 * Decodes a frame payload (without its length prefix)
+	 * @param payload array containing the payload
+	 * @param offset offset of the payload in the array
+	 * @param length length of the payload
+	 * @param sequence single element array used to store the sequence number
+	 * of the frame (or null)
+	 * @param authors the pool of authors names (or null)
+	 * @return the decoded message
+	 * @throws StreamCorruptedException if the payload is inconsistent
+	 */
+	static Message decodePayload(byte[] payload,
+	                             int offset,
+	                             int length,
+	                             long[] sequence,
+	                             AuthorPool authors)
+	    throws StreamCorruptedException
+	{
+		PayloadReader reader = new PayloadReader(payload, offset, length);
+		byte type = reader.nextByte();
+		if (type != MESSAGE_FRAME)
+		{
+			throw new StreamCorruptedException("MessageCodec: unknown frame type "
+				+ type);
+		}
+		long frameSequence = reader.nextVarint();
+		long millis = reader.nextLong();
+		int authorField = (int) reader.nextVarint();
+		String author = null;
+		if (authorField > 0)
+		{
+			author = (authors != null ? reader.nextString(authorField - 1, authors)
+			                          : reader.nextString(authorField - 1));
+		}
+		String content = reader.nextString((int) reader.nextVarint());
+
+		if (sequence != null)
+		{
+			sequence[0] = frameSequence;
+		}
+
+		return new Message(frameSequence, millis, content, author);
+	}
+
+	/**
+	 * Decodes a frame payload which may be a compressed batch or a close
+	 * signal
+	 * @param payload array containing the payload
+	 * @param offset offset of the payload in the array
+	 * @param length length of the payload
+	 * @param sequence single element array used to store the sequence number
+	 * of the decoded message
+	 * @param authors the pool of authors names
+	 * @param inflation the batch to inflate a compressed payload into
+	 * @return the decoded message (the first one of a compressed batch, the
+	 * following ones being decoded from inflation), or null for a
+	 * {@link #CLOSE_FRAME}
+	 * @throws StreamCorruptedException if the payload is inconsistent
+	 */
+	private static Message decodePayload(byte[] payload,
+	                                     int offset,
+	                                     int length,
+	                                     long[] sequence,
+	                                     AuthorPool authors,
+	                                     Inflation inflation)
+	    throws StreamCorruptedException
+	{
+		if ((length > 0) && (payload[offset] == DEFLATE_FRAME))
+		{
+			inflation.inflate(payload, offset + 1, length - 1);
+			return inflation.next(sequence, authors);
+		}
+		if ((length == 1) && (payload[offset] == CLOSE_FRAME))
+		{
+			return null;
+		}
+		return decodePayload(payload, offset, length, sequence, authors);
+	}
+
+	/**
+	 * Number of bytes needed to encode a value as an unsigned varint
+	 * @param value the value to encode
+	 * @return the number of bytes (1 to 10)
+	 */
+	static int varintSize(long value)
+	{
+		int size = 1;
+		while ((value & ~0x7FL) != 0)
+		{
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes an unsigned varint into an array
+	 * @param buffer destination array
+	 * @param pos position to write at
+	 * @param value the value to write
+	 * @return the position following the written varint
+	 */
+	static int putVarint(byte[] buffer, int pos, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Writes a big endian long into an array
+	 * @param buffer destination array
+	 * @param pos position to write at
+	 * @param value the value to write
+	 * @return the position following the written long
+	 */
+	static int putLong(byte[] buffer, int pos, long value)
+	{
+		for (int shift = 56; shift >= 0; shift -= 8)
+		{
+			buffer[pos++] = (byte) (value >>> shift);
+		}
+		return pos;
+	}
+
+	/**
+	 * Bounds checked sequential reader on a frame payload
+	 */
+	private static class PayloadReader
+	{
+		/**
+		 * The payload array
+		 */
+		private final byte[] buffer;
+
+		/**
+		 * Current read position
+		 */
+		private int pos;
+
+		/**
+		 * End of the payload (exclusive)
+		 */
+		private final int end;
+
+		/**
+		 * Constructor
+		 * @param buffer the payload array
+		 * @param offset the start of the payload
+		 * @param length the length of the payload
+		 */
+		PayloadReader(byte[] buffer, int offset, int length)
+		{
+			this.buffer = buffer;
+			pos = offset;
+			end = offset + length;
+		}
+
+		/**
+		 * Ensures that count bytes remain in the payload
+		 * @param count the number of bytes needed
+		 * @throws StreamCorruptedException if the payload is too short
+		 */
+		private void require(int count) throws StreamCorruptedException
+		{
+			if ((count < 0) || ((end - pos) < count))
+			{
+				throw new StreamCorruptedException("MessageCodec: truncated frame");
+			}
+		}
+
+		/**
+		 * Reads next byte
+		 * @return the next byte
+		 * @throws StreamCorruptedException if the payload is too short
+		 */
+		byte nextByte() throws StreamCorruptedException
+		{
+			require(1);
+			return buffer[pos++];
+		}
+
+		/**
+		 * Reads next unsigned varint
+		 * @return the decoded value
+		 * @throws StreamCorruptedException if the payload is too short or the
+		 * varint is too long
+		 */
+		long nextVarint() throws StreamCorruptedException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				byte b = nextByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+				{
+					return value;
+				}
+			}
+			throw new StreamCorruptedException("MessageCodec: malformed varint");
+		}
+
+		/**
+		 * Reads next big endian long
+		 * @return the decoded value
+		 * @throws StreamCorruptedException if the payload is too short
+		 */
+		long nextLong() throws StreamCorruptedException
+		{
+			require(Long.BYTES);
+			long value = 0;
+			for (int i = 0; i < Long.BYTES; i++)
+			{
+				value = (value << 8) | (buffer[pos++] & 0xFF);
+			}
+			return value;
+		}
+
+		/**
+		 * Reads next UTF-8 string
+		 * @param length the number of bytes of the string
+		 * @return the decoded string
+		 * @throws StreamCorruptedException if the payload is too short
+		 */
+		String nextString(int length) throws StreamCorruptedException
+		{
+			require(length);
+			String s = new String(buffer, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+
+		/**
+		 * Reads next UTF-8 string from a pool
+		 * @param length the number of bytes of the string
+		 * @param pool the pool to look the string up
+		 * @return the pooled string
+		 * @throws StreamCorruptedException if the payload is too short
+		 */
+		String nextString(int length, AuthorPool pool) throws StreamCorruptedException
+		{
+			require(length);
+			String s = pool.intern(buffer, pos, length);
+			pos += length;
+			return s;
+		}
+	}
+
+	/**
+	 * Encoder writing {@link Message} frames to an output stream.
+	 * The {@link #STREAM_HEADER} is written on construction (like the header of
+	 * an {@link java.io.ObjectOutputStream}).
+	 */
+	public static class Encoder implements Closeable, Flushable
+	{
+		/**
+		 * The output stream to write frames to
+		 */
+		private final OutputStream out;
+
+		/**
+		 * Constructor: writes the stream header
+		 * @param out the output stream to write to
+		 * @throws IOException if the header can't be written
+		 */
+		public Encoder(OutputStream out) throws IOException
+		{
+			this.out = out;
+			out.write(STREAM_HEADER);
+		}
+
+		/**
+		 * Writes a message frame
+		 * @param message the message to write
+		 * @throws IOException if the frame can't be written
+		 */
+		public void writeMessage(Message message) throws IOException
+		{
+			out.write(encodeFrame(message));
+		}
+
+		/**
+		 * Flushes the underlying stream
+		 * @throws IOException if flushing fails
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		/**
+		 * Closes the underlying stream
+		 * @throws IOException if closing fails
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Decoder reading {@link Message} frames from an input stream.
+	 * The {@link #STREAM_HEADER} is read and checked on construction (like the
+	 * header of an {@link ObjectInputStream}).
+	 */
+	public static class Decoder implements Closeable
+	{
+		/**
+		 * The input stream to read frames from
+		 */
+		private final InputStream in;
+
+		/**
+		 * Reusable payload buffer
+		 */
+		private byte[] payload;
+
+		/**
+		 * Sequence number of the last decoded frame (single element array)
+		 */
+		private final long[] lastSequence = new long[1];
+
+		/**
+		 * Pool of decoded authors names
+		 */
+		private final AuthorPool authors;
+
+		/**
+		 * Compressed batch being decoded
+		 */
+		private final Inflation inflation;
+
+		/**
+		 * Constructor: reads and checks the stream header
+		 * @param in the input stream to read from (should be buffered since
+		 * frame headers are read byte per byte)
+		 * @throws StreamCorruptedException if the stream header is incorrect
+		 * @throws IOException if the header can't be read
+		 */
+		public Decoder(InputStream in) throws IOException
+		{
+			this(in, new AuthorPool());
+		}
+
+		/**
+		 * Constructor: reads and checks the stream header
+		 * @param in the input stream to read from (should be buffered since
+		 * frame headers are read byte per byte)
+		 * @param authors the pool of authors names to use (used by the
+		 * decoding thread only)
+		 * @throws StreamCorruptedException if the stream header is incorrect
+		 * @throws IOException if the header can't be read
+		 */
+		public Decoder(InputStream in, AuthorPool authors) throws IOException
+		{
+			this(in, authors, new Inflation());
+		}
+
+		/**
+		 * Constructor: reads and checks the stream header
+		 * @param in the input stream to read from (should be buffered since
+		 * frame headers are read byte per byte)
+		 * @param authors the pool of authors names to use (used by the
+		 * decoding thread only)
+		 * @param inflation the batch to inflate compressed frames into (may
+		 * be shared by successive decoders of the same thread to accumulate
+		 * metrics)
+		 * @throws StreamCorruptedException if the stream header is incorrect
+		 * @throws IOException if the header can't be read
+		 */
+		public Decoder(InputStream in, AuthorPool authors, Inflation inflation)
+		    throws IOException
+		{
+			this.in = in;
+			this.authors = authors;
+			this.inflation = inflation;
+			payload = new byte[256];
+
+			byte[] header = new byte[STREAM_HEADER.length];
+			readFully(header, header.length);
+			if (!Arrays.equals(header, STREAM_HEADER))
+			{
+				throw new StreamCorruptedException("MessageCodec: invalid stream header");
+			}
+		}
+
+		/**
+		 * Reads next message frame.
+		 * @return the decoded message, or null if the writer has signaled
+		 * that it closes the stream ({@link #CLOSE_FRAME})
+		 * @throws EOFException if the stream ends before or within a frame
+		 * @throws StreamCorruptedException if the frame is inconsistent
+		 * @throws IOException if the stream can't be read
+		 */
+		public Message readMessage() throws IOException
+		{
+			if (inflation.hasNext())
+			{
+				return inflation.next(lastSequence, authors);
+			}
+
+			long length = 0;
+			for (int shift = 0; ; shift += 7)
+			{
+				int b = in.read();
+				if (b < 0)
+				{
+					throw new EOFException("MessageCodec: end of stream");
+				}
+				if (shift >= 35)
+				{
+					throw new StreamCorruptedException("MessageCodec: malformed frame length");
+				}
+				length |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+				{
+					break;
+				}
+			}
+
+			if ((length <= 0) || (length > MAX_FRAME_LENGTH))
+			{
+				throw new StreamCorruptedException("MessageCodec: invalid frame length "
+					+ length);
+			}
+
+			int size = (int) length;
+			if (payload.length < size)
+			{
+				payload = new byte[Math.max(size, payload.length * 2)];
+			}
+			readFully(payload, size);
+
+			return decodePayload(payload, 0, size, lastSequence, authors, inflation);
+		}
+
+		/**
+		 * Sequence number of the last decoded frame
+		 * @return the last sequence number or 0 if no frame has been read yet
+		 */
+		public long getLastSequence()
+		{
+			return lastSequence[0];
+		}
+
+		/**
+		 * Authors pool accessor
+		 * @return the pool of decoded authors names
+		 */
+		public AuthorPool getAuthorPool()
+		{
+			return authors;
+		}
+
+		/**
+		 * Decompression metrics accessor
+		 * @return the metrics of the compressed batches decoded so far
+		 */
+		public Inflation getInflation()
+		{
+			return inflation;
+		}
+
+		/**
+		 * Reads exactly length bytes into the buffer
+		 * @param buffer the buffer to fill
+		 * @param length the number of bytes to read
+		 * @throws EOFException if the stream ends before length bytes
+		 * @throws IOException if the stream can't be read
+		 */
+		private void readFully(byte[] buffer, int length) throws IOException
+		{
+			int count = 0;
+			while (count < length)
+			{
+				int read = in.read(buffer, count, length - count);
+				if (read < 0)
+				{
+					throw new EOFException("MessageCodec: end of stream");
+				}
+				count += read;
+			}
+		}
+
+		/**
+		 * Closes the underlying stream
+		 * @throws IOException if closing fails
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			inflation.end();
+			in.close();
+		}
+	}
+
+	/**
+	 * Decoder of {@link Message} frames from {@link ByteBuffer}s filled by
+	 * non blocking channels: frames are decoded only once they have been
+	 * completely received.
+	 */
+	public static class BufferDecoder
+	{
+		/**
+		 * Reusable payload buffer
+		 */
+		private byte[] payload;
+
+		/**
+		 * Indicates the stream header has already been read and checked
+		 */
+		private boolean headerRead;
+
+		/**
+		 * Indicates a {@link #CLOSE_FRAME} has been decoded
+		 */
+		private boolean closeReceived;
+
+		/**
+		 * Sequence number of the last decoded frame (single element array)
+		 */
+		private final long[] lastSequence = new long[1];
+
+		/**
+		 * Pool of decoded authors names
+		 */
+		private final AuthorPool authors;
+
+		/**
+		 * Compressed batch being decoded
+		 */
+		private final Inflation inflation;
+
+		/**
+		 * Default constructor
+		 */
+		public BufferDecoder()
+		{
+			this(new AuthorPool());
+		}
+
+		/**
+		 * Constructor
+		 * @param authors the pool of authors names to use (used by the
+		 * decoding thread only)
+		 */
+		public BufferDecoder(AuthorPool authors)
+		{
+			this.authors = authors;
+			inflation = new Inflation();
+			payload = new byte[256];
+			headerRead = false;
+			closeReceived = false;
+		}
+
+		/**
+		 * Decodes next complete frame from buffer (checking the stream header
+		 * first if needed).
+		 * @param buffer buffer in read mode containing received bytes. The
+		 * buffer position is moved past the decoded frame (or left unchanged
+		 * if the buffer does not contain a complete frame)
+		 * @return the decoded message or null if more bytes are needed or if a
+		 * {@link #CLOSE_FRAME} has been decoded (see {@link #isCloseReceived()}),
+		 * messages of a compressed batch being returned by the following calls
+		 * even without new bytes
+		 * @throws StreamCorruptedException if the stream header or the frame
+		 * is inconsistent
+		 */
+		public Message decode(ByteBuffer buffer) throws StreamCorruptedException
+		{
+			if (inflation.hasNext())
+			{
+				return inflation.next(lastSequence, authors);
+			}
+
+			if (!headerRead)
+			{
+				if (buffer.remaining() < STREAM_HEADER.length)
+				{
+					return null;
+				}
+				for (int i = 0; i < STREAM_HEADER.length; i++)
+				{
+					if (buffer.get(buffer.position() + i) != STREAM_HEADER[i])
+					{
+						throw new StreamCorruptedException("MessageCodec: invalid stream header");
+					}
+				}
+				buffer.position(buffer.position() + STREAM_HEADER.length);
+				headerRead = true;
+			}
+
+			int start = buffer.position();
+			long length = 0;
+			int pos = start;
+			for (int shift = 0; ; shift += 7)
+			{
+				if (pos >= buffer.limit())
+				{
+					return null;
+				}
+				if (shift >= 35)
+				{
+					throw new StreamCorruptedException("MessageCodec: malformed frame length");
+				}
+				byte b = buffer.get(pos++);
+				length |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+				{
+					break;
+				}
+			}
+
+			if ((length <= 0) || (length > MAX_FRAME_LENGTH))
+			{
+				throw new StreamCorruptedException("MessageCodec: invalid frame length "
+					+ length);
+			}
+
+			int size = (int) length;
+			if ((buffer.limit() - pos) < size)
+			{
+				return null;
+			}
+
+			if (payload.length < size)
+			{
+				payload = new byte[Math.max(size, payload.length * 2)];
+			}
+			buffer.position(pos);
+			buffer.get(payload, 0, size);
+
+			Message message = decodePayload(payload, 0, size, lastSequence, authors, inflation);
+			if (message == null)
+			{
+				closeReceived = true;
+			}
+			return message;
+		}
+
+		/**
+		 * Close signal accessor
+		 * @return true if the writer has signaled that it closes the stream
+		 * ({@link #CLOSE_FRAME})
+		 */
+		public boolean isCloseReceived()
+		{
+			return closeReceived;
+		}
+
+		/**
+		 * Sequence number of the last decoded frame
+		 * @return the last sequence number or 0 if no frame has been decoded yet
+		 */
+		public long getLastSequence()
+		{
+			return lastSequence[0];
+		}
+
+		/**
+		 * Authors pool accessor
+		 * @return the pool of decoded authors names
+		 */
+		public AuthorPool getAuthorPool()
+		{
+			return authors;
+		}
+
+		/**
+		 * Decompression metrics accessor
+		 * @return the metrics of the compressed batches decoded so far
+		 */
+		public Inflation getInflation()
+		{
+			return inflation;
+		}
+	}
+
+	/**
+	 * Compressor of batches of message frames into {@link #DEFLATE_FRAME}s.
+	 * Each batch is compressed independently (the deflater is reset and
+	 * primed with the {@link #DEFLATE_DICTIONARY} before each batch) so that
+	 * batches can be sent to any decoder in any order. The fastest
+	 * compression level is used since batches are compressed by threads
+	 * also sending live messages.
+	 * Not thread safe, and {@link #close()} should be called to release the
+	 * deflater.
+	 */
+	public static class Compressor implements Closeable
+	{
+		/**
+		 * The deflater
+		 */
+		private final Deflater deflater;
+
+		/**
+		 * Reusable buffer of frames to compress
+		 */
+		private byte[] input;
+
+		/**
+		 * Reusable buffer of compressed frames
+		 */
+		private byte[] output;
+
+		/**
+		 * Number of bytes of compressed batches' frames
+		 */
+		private volatile long rawBytes;
+
+		/**
+		 * Number of bytes of compressed frames
+		 */
+		private volatile long compressedBytes;
+
+		/**
+		 * Default constructor
+		 */
+		public Compressor()
+		{
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			input = new byte[16 * 1024];
+			output = new byte[16 * 1024];
+			rawBytes = 0;
+			compressedBytes = 0;
+		}
+
+		/**
+		 * Compresses a batch of frames into a single {@link #DEFLATE_FRAME}
+		 * @param frames buffers containing complete message frames (their
+		 * positions are left unchanged)
+		 * @return a new array containing the compressed frame (including its
+		 * length prefix), or null if compression does not reduce the size of
+		 * the batch (or if it is too large), in which case frames should be
+		 * sent as is
+		 */
+		public byte[] compress(ByteBuffer[] frames)
+		{
+			long total = 0;
+			for (ByteBuffer frame : frames)
+			{
+				total += frame.remaining();
+			}
+			if ((total == 0) || (total > MAX_FRAME_LENGTH))
+			{
+				return null;
+			}
+
+			int length = (int) total;
+			if (input.length < length)
+			{
+				input = new byte[Math.max(length, input.length * 2)];
+			}
+			int pos = 0;
+			for (ByteBuffer frame : frames)
+			{
+				int remaining = frame.remaining();
+				frame.duplicate().get(input, pos, remaining);
+				pos += remaining;
+			}
+
+			/*
+			 * Deflates the batch with the preset dictionary
+			 */
+			deflater.reset();
+			deflater.setDictionary(DEFLATE_DICTIONARY);
+			deflater.setInput(input, 0, length);
+			deflater.finish();
+			int compressed = 0;
+			while (!deflater.finished())
+			{
+				if (compressed == output.length)
+				{
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+				compressed += deflater.deflate(output, compressed, output.length - compressed);
+			}
+
+			int payloadLength = 1 + varintSize(length) + compressed;
+			int frameLength = varintSize(payloadLength) + payloadLength;
+			if (frameLength >= length)
+			{
+				return null;
+			}
+
+			byte[] frame = new byte[frameLength];
+			pos = putVarint(frame, 0, payloadLength);
+			frame[pos++] = DEFLATE_FRAME;
+			pos = putVarint(frame, pos, length);
+			System.arraycopy(output, 0, frame, pos, compressed);
+
+			rawBytes += length;
+			compressedBytes += frameLength;
+			return frame;
+		}
+
+		/**
+		 * Compression ratio accessor
+		 * @return the ratio of compressed batches' frames bytes to compressed
+		 * frames bytes (0 if no batch has been compressed)
+		 */
+		public double getRatio()
+		{
+			long compressed = compressedBytes;
+			return compressed > 0 ? (double) rawBytes / compressed : 0.0;
+		}
+
+		/**
+		 * Compressor string representation
+		 * @return a string containing the compression metrics
+		 */
+		@Override
+		public String toString()
+		{
+			return "compressor: " + rawBytes + " bytes compressed into "
+				+ compressedBytes + String.format(" (ratio %.2f)", getRatio());
+		}
+
+		/**
+		 * Releases the deflater
+		 */
+		@Override
+		public void close()
+		{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Inflated {@link #DEFLATE_FRAME} being decoded by a decoder, along with
+	 * decompression metrics: compression ratio and CPU time spent inflating
+	 * (or elapsed time if thread CPU time is not supported).
+	 * Batches are inflated and decoded by a single decoding thread, but the
+	 * metrics can be read from any thread. Closing a decoder releases the
+	 * inflater of its batch (which can still be used by another decoder).
+	 */
+	public static final class Inflation
+	{
+		/**
+		 * Thread management used to measure inflating CPU time (or null if
+		 * thread CPU time is not available)
+		 */
+		private static final ThreadMXBean THREADS = threadCpuTime();
+
+		/**
+		 * The inflater (created with the first compressed batch)
+		 */
+		private Inflater inflater;
+
+		/**
+		 * Inflated frames of the current batch
+		 */
+		private byte[] frames;
+
+		/**
+		 * Position of the next frame in {@link #frames}
+		 */
+		private int pos;
+
+		/**
+		 * End of the inflated frames in {@link #frames}
+		 */
+		private int end;
+
+		/**
+		 * Number of compressed batches
+		 */
+		private volatile long batches;
+
+		/**
+		 * Number of bytes of compressed batches
+		 */
+		private volatile long compressedBytes;
+
+		/**
+		 * Number of bytes of inflated frames
+		 */
+		private volatile long inflatedBytes;
+
+		/**
+		 * Time spent inflating (in nanoseconds)
+		 */
+		private volatile long inflateTime;
+
+		/**
+		 * Constructor of an empty batch
+		 */
+		public Inflation()
+		{
+			inflater = null;
+			frames = new byte[0];
+			pos = 0;
+			end = 0;
+			batches = 0;
+			compressedBytes = 0;
+			inflatedBytes = 0;
+			inflateTime = 0;
+		}
+
+		/**
+		 * Checks if frames of the current batch remain to be decoded
+		 * @return true if there are frames left to decode
+		 */
+		private boolean hasNext()
+		{
+			return pos < end;
+		}
+
+		/**
+		 * Inflates a compressed batch
+		 * @param payload array containing the payload (after its type)
+		 * @param offset the offset of the payload in the array
+		 * @param length the length of the payload
+		 * @throws StreamCorruptedException if the payload can't be inflated
+		 */
+		private void inflate(byte[] payload, int offset, int length)
+		    throws StreamCorruptedException
+		{
+			PayloadReader reader = new PayloadReader(payload, offset, length);
+			long size = reader.nextVarint();
+			if ((size <= 0) || (size > MAX_FRAME_LENGTH))
+			{
+				throw new StreamCorruptedException("MessageCodec: invalid batch length "
+					+ size);
+			}
+			int header = reader.pos - offset;
+			int inflatedLength = (int) size;
+			if (frames.length < inflatedLength)
+			{
+				frames = new byte[Math.max(inflatedLength, frames.length * 2)];
+			}
+			if (inflater == null)
+			{
+				inflater = new Inflater();
+			}
+
+			long start = now();
+			try
+			{
+				inflater.reset();
+				inflater.setInput(payload, offset + header, length - header);
+				int count = 0;
+				while (count < inflatedLength)
+				{
+					int inflated = inflater.inflate(frames, count, inflatedLength - count);
+					if (inflated == 0)
+					{
+						if (inflater.needsDictionary())
+						{
+							inflater.setDictionary(DEFLATE_DICTIONARY);
+						}
+						else if (inflater.finished() || inflater.needsInput())
+						{
+							throw new StreamCorruptedException("MessageCodec: truncated batch");
+						}
+					}
+					count += inflated;
+				}
+			}
+			catch (DataFormatException e)
+			{
+				throw new StreamCorruptedException("MessageCodec: invalid batch: "
+					+ e.getLocalizedMessage());
+			}
+			finally
+			{
+				inflateTime += now() - start;
+			}
+
+			pos = 0;
+			end = inflatedLength;
+			batches++;
+			compressedBytes += length + 1;
+			inflatedBytes += inflatedLength;
+		}
+
+		/**
+		 * Decodes next frame of the current batch
+		 * @param sequence single element array used to store the sequence
+		 * number of the frame
+		 * @param authors the pool of authors names
+		 * @return the decoded message
+		 * @throws StreamCorruptedException if the frame is inconsistent
+		 */
+		private Message next(long[] sequence, AuthorPool authors)
+		    throws StreamCorruptedException
+		{
+			PayloadReader reader = new PayloadReader(frames, pos, end - pos);
+			long length = reader.nextVarint();
+			if ((length <= 0) || (length > (end - reader.pos)))
+			{
+				pos = end;
+				throw new StreamCorruptedException("MessageCodec: invalid frame length "
+					+ length + " in batch");
+			}
+			int offset = reader.pos;
+			pos = offset + (int) length;
+			// nested batches are rejected as unknown frame types
+			return decodePayload(frames, offset, (int) length, sequence, authors);
+		}
+
+		/**
+		 * Releases the inflater (a new one is created if another batch is
+		 * inflated later) and drops the current batch
+		 */
+		private void end()
+		{
+			if (inflater != null)
+			{
+				inflater.end();
+				inflater = null;
+			}
+			pos = 0;
+			end = 0;
+		}
+
+		/**
+		 * Compressed batches accessor
+		 * @return the number of compressed batches decoded
+		 */
+		public long getBatches()
+		{
+			return batches;
+		}
+
+		/**
+		 * Compressed bytes accessor
+		 * @return the number of bytes of compressed batches received
+		 */
+		public long getCompressedBytes()
+		{
+			return compressedBytes;
+		}
+
+		/**
+		 * Inflated bytes accessor
+		 * @return the number of bytes of frames inflated from compressed
+		 * batches
+		 */
+		public long getInflatedBytes()
+		{
+			return inflatedBytes;
+		}
+
+		/**
+		 * Compression ratio accessor
+		 * @return the ratio of inflated bytes to compressed bytes (0 if no
+		 * batch has been received)
+		 */
+		public double getRatio()
+		{
+			long compressed = compressedBytes;
+			return compressed > 0 ? (double) inflatedBytes / compressed : 0.0;
+		}
+
+		/**
+		 * Inflating time accessor
+		 * @return the CPU time (in nanoseconds) spent inflating batches, or
+		 * the elapsed time if thread CPU time is not supported
+		 */
+		public long getInflateTime()
+		{
+			return inflateTime;
+		}
+
+		/**
+		 * Inflation string representation
+		 * @return a string containing the decompression metrics
+		 */
+		@Override
+		public String toString()
+		{
+			return "inflation: " + batches + " batches, " + compressedBytes
+				+ " bytes inflated into " + inflatedBytes
+				+ String.format(" (ratio %.2f) in %.3f ms", getRatio(), inflateTime / 1e6)
+				+ (THREADS != null ? " CPU" : "");
+		}
+
+		/**
+		 * Current time used to measure inflating time
+		 * @return the current thread CPU time or System.nanoTime() if thread
+		 * CPU time is not supported (in nanoseconds)
+		 */
+		private static long now()
+		{
+			return THREADS != null ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+		}
+
+		/**
+		 * Thread management used to measure thread CPU time
+		 * @return the thread management if current thread CPU time is
+		 * supported and enabled, null otherwise
+		 */
+		private static ThreadMXBean threadCpuTime()
+		{
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			return (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled())
+				? threads : null;
+		}
+	}
+}
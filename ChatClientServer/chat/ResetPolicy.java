@@ -0,0 +1,282 @@
+package chat;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Reset policy of long lived {@link ObjectOutputStream}s.
+ * An {@link ObjectOutputStream} keeps a reference to every object it has
+ * written (so that objects written again can be sent as back references)
+ * and the {@link java.io.ObjectInputStream} reading the stream keeps a
+ * matching table: a stream relaying messages for hours therefore retains
+ * all of them on both ends. Resetting the output stream clears its table
+ * and writes a reset marker which clears the reader's table as well.
+ * The stream is reset after a number of objects or a number of bytes
+ * (whichever comes first) written since last reset, a limit of 0 disables
+ * the corresponding criterion.
+ * Default limits can be overridden with the {@value #MAX_OBJECTS_PROPERTY}
+ * and {@value #MAX_BYTES_PROPERTY} system properties.
+ * @author x0wass
+ */
+public final class ResetPolicy
+{
+	/**
+	 * Default maximum number of objects written between resets
+	 */
+	public static final int DEFAULT_MAX_OBJECTS = 1024;
+
+	/**
+	 * Default maximum number of bytes written between resets
+	 */
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	/**
+	 * System property overriding {@link #DEFAULT_MAX_OBJECTS}
+	 */
+	public static final String MAX_OBJECTS_PROPERTY = "chat.reset.objects";
+
+	/**
+	 * System property overriding {@link #DEFAULT_MAX_BYTES}
+	 */
+	public static final String MAX_BYTES_PROPERTY = "chat.reset.bytes";
+
+	/**
+	 * Policy never resetting streams (previous behavior, only suitable for
+	 * short lived streams)
+	 */
+	public static final ResetPolicy NEVER = new ResetPolicy(0, 0);
+
+	/**
+	 * Maximum number of objects written between resets (0 for no limit)
+	 */
+	private final int maxObjects;
+
+	/**
+	 * Maximum number of bytes written between resets (0 for no limit)
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Reset policy constructor
+	 * @param maxObjects maximum number of objects written between resets
+	 * (0 for no limit)
+	 * @param maxBytes maximum number of bytes written between resets (0 for
+	 * no limit)
+	 * @throws IllegalArgumentException if a limit is negative
+	 */
+	public ResetPolicy(int maxObjects, long maxBytes)
+	{
+		if ((maxObjects < 0) || (maxBytes < 0))
+		{
+			throw new IllegalArgumentException("ResetPolicy: negative limit");
+		}
+		this.maxObjects = maxObjects;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Creates the policy configured with system properties (or default
+	 * limits when properties are not set or invalid)
+	 * @return the configured reset policy
+	 */
+	public static ResetPolicy fromSystemProperties()
+	{
+		int objects = Integer.getInteger(MAX_OBJECTS_PROPERTY, DEFAULT_MAX_OBJECTS).intValue();
+		long bytes = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES).longValue();
+		return new ResetPolicy(Math.max(0, objects), Math.max(0, bytes));
+	}
+
+	/**
+	 * Maximum number of objects accessor
+	 * @return the maximum number of objects written between resets (0 for
+	 * no limit)
+	 */
+	public int getMaxObjects()
+	{
+		return maxObjects;
+	}
+
+	/**
+	 * Maximum number of bytes accessor
+	 * @return the maximum number of bytes written between resets (0 for no
+	 * limit)
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Checks if a stream should be reset
+	 * @param objects number of objects written since last reset
+	 * @param bytes number of bytes written since last reset
+	 * @return true if one of the limits has been reached
+	 */
+	public boolean shouldReset(int objects, long bytes)
+	{
+		return ((maxObjects > 0) && (objects >= maxObjects))
+			|| ((maxBytes > 0) && (bytes >= maxBytes));
+	}
+
+	/**
+	 * Policy string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return "ResetPolicy[objects=" + maxObjects + ", bytes=" + maxBytes + "]";
+	}
+
+	/**
+	 * Object writer: an {@link ObjectOutputStream} reset according to a
+	 * {@link ResetPolicy}. Each object is flushed once written.
+	 */
+	public static class ObjectWriter implements Closeable, Flushable
+	{
+		/**
+		 * The reset policy
+		 */
+		private final ResetPolicy policy;
+
+		/**
+		 * Stream counting bytes written by {@link #out}
+		 */
+		private final CountingOutputStream counter;
+
+		/**
+		 * Object output stream writing objects
+		 */
+		private final ObjectOutputStream out;
+
+		/**
+		 * Number of objects written since last reset
+		 */
+		private int objects;
+
+		/**
+		 * Byte count of {@link #counter} at last reset
+		 */
+		private long resetBytes;
+
+		/**
+		 * Number of resets
+		 */
+		private long resets;
+
+		/**
+		 * Constructor: writes the stream header
+		 * @param out the output stream to write to
+		 * @param policy the reset policy
+		 * @throws IOException if the header can't be written
+		 */
+		public ObjectWriter(OutputStream out, ResetPolicy policy) throws IOException
+		{
+			this.policy = policy;
+			counter = new CountingOutputStream(out);
+			this.out = new ObjectOutputStream(counter);
+			objects = 0;
+			resetBytes = 0;
+			resets = 0;
+		}
+
+		/**
+		 * Writes and flushes an object then resets the stream if required
+		 * by the policy
+		 * @param object the object to write
+		 * @throws IOException if the object can't be written
+		 */
+		public void writeObject(Object object) throws IOException
+		{
+			out.writeObject(object);
+			out.flush();
+			objects++;
+			if (policy.shouldReset(objects, counter.count - resetBytes))
+			{
+				out.reset();
+				objects = 0;
+				resetBytes = counter.count;
+				resets++;
+			}
+		}
+
+		/**
+		 * Number of resets accessor
+		 * @return the number of times the stream has been reset
+		 */
+		public long getResetCount()
+		{
+			return resets;
+		}
+
+		/**
+		 * Flushes the underlying stream
+		 * @throws IOException if flushing fails
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		/**
+		 * Closes the underlying stream
+		 * @throws IOException if closing fails
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Output stream counting written bytes
+	 */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		/**
+		 * Number of written bytes
+		 */
+		private long count;
+
+		/**
+		 * Constructor
+		 * @param out the output stream to write to
+		 */
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+			count = 0;
+		}
+
+		/**
+		 * Writes a byte
+		 * @param b the byte to write
+		 * @throws IOException if writing fails
+		 */
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		/**
+		 * Writes bytes (without writing them one by one)
+		 * @param b the bytes to write
+		 * @param off the offset of the first byte to write
+		 * @param len the number of bytes to write
+		 * @throws IOException if writing fails
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package chat;
 
 import models.Message;
+import models.MessageQueue;
 
 /**
  * Enumeration of client's output stream message capabilities to receive
@@ -15,7 +16,16 @@ public enum UserOutputType
 	/**
 	 * Client expects {@link Message} objects
 	 */
-	OBJECT;
+	OBJECT,
+	/**
+	 * Client expects {@link Message}s encoded with {@link MessageCodec}
+	 */
+	BINARY,
+	/**
+	 * Client expects {@link Message} objects delivered in-process through a
+	 * {@link MessageQueue}
+	 */
+	QUEUE;
 
 	/**
 	 * Type string representation
@@ -29,6 +39,10 @@ public enum UserOutputType
 				return new String("Text output type");
 			case OBJECT:
 				return new String("Object output type");
+			case BINARY:
+				return new String("Binary output type");
+			case QUEUE:
+				return new String("Queue output type");
 		}
 		throw new AssertionError("UserOutputType: unknown type: " + this);
 	}
@@ -39,6 +53,8 @@ public enum UserOutputType
 	 * <ul>
 	 * 	<li>TEXT = 1</li>
 	 * 	<li>OBJECT = 2</li>
+	 * 	<li>BINARY = 3</li>
+	 * 	<li>QUEUE = 4</li>
 	 * </ul>
 	 */
 	public int toInteger()
@@ -49,8 +65,9 @@ public enum UserOutputType
 	/**
 	 * Factory method of a {@link UserOutputType} from integer index
 	 * @param value the index of type to generate
-	 * @return returns {@link #TEXT} if index <= 1 and {@link #OBJECT}
-	 * if index is >= 2
+	 * @return returns {@link #TEXT} if index <= 1, {@link #OBJECT}
+	 * if index is 2, {@link #BINARY} if index is 3 and {@link #QUEUE} if
+	 * index is >= 4
 	 */
 	public static UserOutputType fromInteger(int value)
 	{
@@ -59,9 +76,9 @@ public enum UserOutputType
 		{
 			controledValue = 1;
 		}
-		else if (value > 2)
+		else if (value > 4)
 		{
-			controledValue = 2;
+			controledValue = 4;
 		}
 		else
 		{
@@ -74,6 +91,10 @@ public enum UserOutputType
 				return TEXT;
 			case 2:
 				return OBJECT;
+			case 3:
+				return BINARY;
+			case 4:
+				return QUEUE;
 		}
 	}
 }
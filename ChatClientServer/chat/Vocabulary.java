@@ -26,6 +26,43 @@ public interface Vocabulary
 	 */
 	public final static String catchUpCmd="catchup";
 
+	/**
+	 * Keyword following {@link #catchUpCmd} used to ask server only for the
+	 * messages following the last message we have seen:
+	 * "catchup since &lt;sequence number&gt;" or
+	 * "catchup since @&lt;epoch millis&gt;"
+	 */
+	public final static String sinceKeyword="since";
+
+	/**
+	 * Prefix of a date (epoch millis) following {@link #sinceKeyword}
+	 */
+	public final static String sinceDatePrefix="@";
+
+	/**
+	 * Keyword used on the line following our name to offer our
+	 * {@link Capabilities} to server: "hello &lt;capabilities&gt;", and by
+	 * servers supporting handshakes to reply with the capabilities they
+	 * have chosen (on a line preceding their stream header)
+	 */
+	public final static String helloCmd="hello";
+
+	/**
+	 * Wording of the message broadcasted by server when a user is kicked:
+	 * "&lt;user&gt; kicked by &lt;super user&gt;" (the kicked user's
+	 * connection is then closed, after a close signal if the user chose
+	 * {@link Capabilities#CLOSE_SIGNAL})
+	 */
+	public final static String kickedNotice=" kicked by ";
+
+	/**
+	 * Wording of the message broadcasted by server before being killed:
+	 * "server killed by &lt;super user&gt;" (all connections are then closed,
+	 * after a close signal for users who chose
+	 * {@link Capabilities#CLOSE_SIGNAL})
+	 */
+	public final static String killedNotice="server killed by ";
+
 	/**
 	 * Line separator used on this OS (used in text)
 	 */
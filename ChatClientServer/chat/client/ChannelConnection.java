@@ -0,0 +1,557 @@
+package chat.client;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import chat.Capabilities;
+import chat.Failure;
+import chat.MessageCodec;
+import chat.Vocabulary;
+import logger.LoggerFactory;
+import models.Message;
+import models.MessagesHandler;
+import models.SequenceTracker;
+
+/**
+ * Non blocking connection to a chat server, alternative to the blocking
+ * streams of {@link ChatClient}.
+ * This is a library class: neither {@link ChatClient} nor the application
+ * use it, it is meant for programs driving many connections from a few
+ * threads (such as load injectors). It does not reconnect when the
+ * connection is lost.
+ * A channel connection has no thread of its own: its network side is driven
+ * by a {@link ClientReactor} (which can drive many connections) and
+ * received {@link Message}s are handed to a {@link MessagesHandler} with the
+ * same callbacks as the messages runners.
+ * <ul>
+ * <li>Our name is sent along with our {@link Capabilities} offer (binary
+ * frames only) as {@link Handshake} does, and the server's reply is read
+ * before the first frame (legacy servers not replying at all)</li>
+ * <li>Messages from server are read into a direct {@link ByteBuffer} and
+ * decoded as {@link MessageCodec} frames (Java serialized streams can't be
+ * decoded incrementally and are therefore not supported)</li>
+ * <li>Messages already received (such as the ones fetched again by a catch
+ * up) are dropped according to their sequence numbers as
+ * {@link ServerHandler} does</li>
+ * <li>Lines to server are queued by {@link #send(String)} from any thread
+ * and written by the reactor with gathering writes</li>
+ * </ul>
+ * @author x0wass
+ */
+public class ChannelConnection
+{
+	/**
+	 * Initial size of the read buffer
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of buffers written by a single gathering write
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * Reply prefix of servers supporting handshakes
+	 */
+	private static final byte[] REPLY_PREFIX =
+		(Vocabulary.helloCmd + " ").getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Maximum accepted reply length
+	 */
+	private static final int MAX_REPLY_LENGTH = 1024;
+
+	/**
+	 * User name to connect to server
+	 */
+	private final String userName;
+
+	/**
+	 * The reactor driving this connection
+	 */
+	private final ClientReactor reactor;
+
+	/**
+	 * The handler receiving messages from server
+	 */
+	private final MessagesHandler messagesHandler;
+
+	/**
+	 * Non blocking socket channel to server
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Selection key of {@link #channel} (only used on the reactor thread)
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Direct buffer receiving bytes from server
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * Frames decoder
+	 */
+	private final MessageCodec.BufferDecoder decoder;
+
+	/**
+	 * Capabilities offered to server
+	 */
+	private final Capabilities offer;
+
+	/**
+	 * Capabilities chosen by server (set on the reactor thread, null until
+	 * the server's reply or stream header has been received)
+	 */
+	private volatile Capabilities capabilities;
+
+	/**
+	 * Sequence numbers of received messages (used to drop duplicates)
+	 */
+	private final SequenceTracker sequences;
+
+	/**
+	 * Encoded lines queued by any thread and waiting to be written
+	 */
+	private final Queue<ByteBuffer> pendingWrites;
+
+	/**
+	 * Buffers being written by the reactor thread (only used on the reactor
+	 * thread)
+	 */
+	private final Deque<ByteBuffer> inFlightWrites;
+
+	/**
+	 * Reusable array for gathering writes
+	 */
+	private final ByteBuffer[] gather;
+
+	/**
+	 * Indicates a write has been scheduled on the reactor
+	 */
+	private final AtomicBoolean writeScheduled;
+
+	/**
+	 * Charset used to encode lines to server
+	 */
+	private final Charset charset;
+
+	/**
+	 * Close this connection once all pending lines have been written
+	 * (after {@link Vocabulary#byeCmd})
+	 */
+	private volatile boolean closeAfterWrites;
+
+	/**
+	 * Closed state
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Logger used to display debug or info messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Channel connection constructor: starts connecting to server and queues
+	 * our user name along with our capabilities offer
+	 * @param host the server name or IP address
+	 * @param port the port used to communicate with server
+	 * @param name user name to register on server
+	 * @param messagesHandler handler receiving messages from server
+	 * @param reactor the reactor driving this connection
+	 * @param parentLogger parent logger
+	 * @throws IOException if the channel can't be opened
+	 */
+	public ChannelConnection(String host,
+	                         int port,
+	                         String name,
+	                         MessagesHandler messagesHandler,
+	                         ClientReactor reactor,
+	                         Logger parentLogger)
+	    throws IOException
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		userName = name;
+		this.messagesHandler = messagesHandler;
+		this.reactor = reactor;
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		decoder = new MessageCodec.BufferDecoder();
+		offer = new Capabilities(true,
+		                         false,
+		                         Boolean.getBoolean(ChatClient.COMPRESS_PROPERTY),
+		                         true,
+		                         true,
+		                         Math.max(0, Integer.getInteger(ChatClient.CATCH_UP_PAGE_PROPERTY,
+		                                                        ChatClient.DEFAULT_CATCH_UP_PAGE).intValue()),
+		                         0);
+		capabilities = null;
+		sequences = new SequenceTracker();
+		pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+		inFlightWrites = new ArrayDeque<ByteBuffer>();
+		gather = new ByteBuffer[MAX_GATHER];
+		writeScheduled = new AtomicBoolean(false);
+		charset = Charset.defaultCharset();
+		closeAfterWrites = false;
+		closed = false;
+
+		channel = SocketChannel.open();
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(host, port));
+		logger.info("ChannelConnection: connecting to " + host + ":" + port);
+
+		/*
+		 * Our user name is the first line the server expects, our offer
+		 * follows in the same write
+		 */
+		pendingWrites.add(encodeLine(userName + Vocabulary.newLine
+			+ Vocabulary.helloCmd + " " + offer));
+		reactor.register(this);
+	}
+
+	/**
+	 * Sends a line to server (thread safe). The line is queued and written
+	 * by the reactor thread.
+	 * @param line the line to send
+	 */
+	public void send(String line)
+	{
+		if ((line == null) || closed)
+		{
+			return;
+		}
+
+		pendingWrites.add(encodeLine(line));
+		if (line.toLowerCase().equals(Vocabulary.byeCmd))
+		{
+			closeAfterWrites = true;
+		}
+		if (writeScheduled.compareAndSet(false, true))
+		{
+			reactor.execute(this::enableWrite);
+		}
+	}
+
+	/**
+	 * Negotiated capabilities accessor
+	 * @return the capabilities chosen by server ({@link Capabilities#LEGACY}
+	 * if server did not reply to our offer), or null until the server's
+	 * reply has been received
+	 */
+	public Capabilities getCapabilities()
+	{
+		return capabilities;
+	}
+
+	/**
+	 * Open state accessor
+	 * @return true if this connection has not been closed yet
+	 */
+	public boolean isOpen()
+	{
+		return !closed;
+	}
+
+	/**
+	 * Registers {@link #channel} on the reactor's selector (called on the
+	 * reactor thread)
+	 * @param selector the reactor's selector
+	 */
+	void register(Selector selector)
+	{
+		try
+		{
+			key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+		}
+		catch (ClosedChannelException e)
+		{
+			logger.warning("ChannelConnection: channel closed before registration");
+			close();
+		}
+	}
+
+	/**
+	 * Handles ready operations on {@link #channel} (called on the reactor
+	 * thread)
+	 * @param readyKey the selected key
+	 */
+	void handle(SelectionKey readyKey)
+	{
+		try
+		{
+			if (readyKey.isValid() && readyKey.isConnectable())
+			{
+				if (channel.finishConnect())
+				{
+					logger.info("ChannelConnection: connected");
+					readyKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+			if (readyKey.isValid() && readyKey.isReadable())
+			{
+				read();
+			}
+			if (readyKey.isValid() && readyKey.isWritable())
+			{
+				write();
+			}
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChannelConnection: " + Failure.CLIENT_CONNECTION
+				+ " " + e.getLocalizedMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Enables write interest on {@link #key} (run on the reactor thread)
+	 */
+	private void enableWrite()
+	{
+		writeScheduled.set(false);
+		if ((key != null) && key.isValid() && channel.isConnected())
+		{
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads available bytes from server and hands all complete messages
+	 * (except duplicates) to {@link #messagesHandler}, once the server's
+	 * reply to our offer has been read
+	 * @throws IOException if reading or decoding fails
+	 */
+	private void read() throws IOException
+	{
+		int count = channel.read(readBuffer);
+		if (count < 0)
+		{
+			logger.info("ChannelConnection: server closed connection");
+			close();
+			return;
+		}
+
+		readBuffer.flip();
+		try
+		{
+			if ((capabilities != null) || readReply())
+			{
+				Message message;
+				while ((message = decoder.decode(readBuffer)) != null)
+				{
+					if (sequences.add(message.getSequence()))
+					{
+						deliver(message);
+					}
+				}
+				if (decoder.isCloseReceived())
+				{
+					logger.info("ChannelConnection: connection closed by server");
+					close();
+					return;
+				}
+			}
+		}
+		catch (StreamCorruptedException sce)
+		{
+			logger.severe("ChannelConnection: " + Failure.CLIENT_INPUT_STREAM
+				+ " server does not send binary frames: "
+				+ sce.getLocalizedMessage());
+			close();
+			return;
+		}
+		readBuffer.compact();
+
+		/*
+		 * A frame bigger than the read buffer needs a bigger buffer
+		 */
+		if (!readBuffer.hasRemaining())
+		{
+			ByteBuffer bigger = ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+	}
+
+	/**
+	 * Reads the server's reply to our offer from {@link #readBuffer} (in read
+	 * mode), up to the first byte which differs from the reply prefix for
+	 * legacy servers which send their stream header right away
+	 * @return true if {@link #capabilities} are known (the reply, if any,
+	 * being consumed), false if more bytes are needed
+	 * @throws StreamCorruptedException if the reply is too long or if the
+	 * server did not choose binary frames
+	 */
+	private boolean readReply() throws StreamCorruptedException
+	{
+		int start = readBuffer.position();
+		int limit = readBuffer.limit();
+		for (int i = 0; i < REPLY_PREFIX.length; i++)
+		{
+			if ((start + i) == limit)
+			{
+				return false;
+			}
+			if (readBuffer.get(start + i) != REPLY_PREFIX[i])
+			{
+				logger.info("ChannelConnection: legacy server, no capabilities chosen");
+				capabilities = Capabilities.LEGACY;
+				return true;
+			}
+		}
+
+		for (int end = start + REPLY_PREFIX.length; end < limit; end++)
+		{
+			if (readBuffer.get(end) == '\n')
+			{
+				byte[] reply = new byte[end - start - REPLY_PREFIX.length];
+				readBuffer.position(start + REPLY_PREFIX.length);
+				readBuffer.get(reply);
+				readBuffer.position(end + 1);
+				Capabilities chosen = Capabilities.parse(new String(reply,
+				                                                    StandardCharsets.US_ASCII));
+				logger.info("ChannelConnection: offered " + offer + ", server chose "
+					+ chosen);
+				if (!chosen.isBinaryFrames())
+				{
+					throw new StreamCorruptedException("ChannelConnection: server chose "
+						+ chosen);
+				}
+				capabilities = chosen;
+				return true;
+			}
+		}
+		if ((limit - start) > MAX_REPLY_LENGTH)
+		{
+			throw new StreamCorruptedException("ChannelConnection: server's reply too long");
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a message to {@link #messagesHandler}
+	 * @param message the message to deliver
+	 */
+	private void deliver(Message message)
+	{
+		messagesHandler.addMessage(message);
+
+		String author = message.getAuthor();
+		if ((author != null) && (author.length() > 0))
+		{
+			messagesHandler.addUserName(author);
+		}
+
+		messagesHandler.updateMessages();
+	}
+
+	/**
+	 * Writes as many pending lines as possible with a single gathering write
+	 * and removes write interest when everything has been written
+	 * @throws IOException if writing fails
+	 */
+	private void write() throws IOException
+	{
+		ByteBuffer buffer;
+		while ((inFlightWrites.size() < MAX_GATHER)
+			&& ((buffer = pendingWrites.poll()) != null))
+		{
+			inFlightWrites.add(buffer);
+		}
+
+		int count = 0;
+		for (ByteBuffer b : inFlightWrites)
+		{
+			if (count == MAX_GATHER)
+			{
+				break;
+			}
+			gather[count++] = b;
+		}
+
+		if (count > 0)
+		{
+			channel.write(gather, 0, count);
+			while (!inFlightWrites.isEmpty() && !inFlightWrites.peek().hasRemaining())
+			{
+				inFlightWrites.poll();
+			}
+			for (int i = 0; i < count; i++)
+			{
+				gather[i] = null;
+			}
+		}
+
+		if (inFlightWrites.isEmpty() && pendingWrites.isEmpty())
+		{
+			key.interestOps(SelectionKey.OP_READ);
+			if (closeAfterWrites)
+			{
+				logger.info("ChannelConnection: bye sent, closing");
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Encodes a line to server
+	 * @param line the line to encode
+	 * @return a buffer containing the line and its line separator
+	 */
+	private ByteBuffer encodeLine(String line)
+	{
+		return ByteBuffer.wrap((line + Vocabulary.newLine).getBytes(charset));
+	}
+
+	/**
+	 * Close channel and cancel its registration
+	 */
+	public void close()
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+
+		logger.info("ChannelConnection: " + sequences);
+		logger.info("ChannelConnection: " + decoder.getAuthorPool());
+		logger.info("ChannelConnection: " + decoder.getInflation());
+		logger.info("ChannelConnection: closing channel ... ");
+		if (key != null)
+		{
+			key.cancel();
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChannelConnection: closing channel failed: "
+				+ e.getLocalizedMessage());
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package chat.client;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,10 +9,16 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 
+import chat.Capabilities;
 import chat.Failure;
+import chat.MessageCodec;
 import chat.UserOutputType;
+import chat.Vocabulary;
 import logger.LoggerFactory;
+import metrics.Distribution;
 import models.Message;
+import models.MessageQueue;
+import models.SequenceTracker;
 
 /**
  * Chat Client main class, contains
@@ -19,18 +26,47 @@ import models.Message;
  * 	<li>A socket to communicate with server</li>
  * 	<li>A {@link UserHandler} to handle messages from user</li>
  * 	<li>A {@link ServerHandler} to handle messages from server</li>
+ * 	<li>A {@link Reconnector} to reopen the connection to server when lost
+ * 	(according to {@link ReconnectPolicy#fromSystemProperties()})</li>
  * </ul>
+ * Right after our name, our {@link Capabilities} (both codecs and the
+ * features we support) are offered to server, and servers supporting
+ * handshakes reply with the ones they have chosen (see {@link Handshake}).
+ * The chosen capabilities ({@link #getCapabilities()}) configure the
+ * pipeline: codec, compressed catch ups, catch up page size and delta catch
+ * ups (when resuming after a reconnection). Legacy servers ignore our offer
+ * and {@link Capabilities#LEGACY} capabilities are assumed (the codec is
+ * then detected from the server's stream header).
  * @author x0wass
  */
 public class ChatClient implements Runnable
 {
+	/**
+	 * System property offering compressed catch ups to server (see
+	 * {@link Capabilities#DEFLATE}) when set to true
+	 */
+	public static final String COMPRESS_PROPERTY = "chat.compress";
+
+	/**
+	 * System property overriding {@link #DEFAULT_CATCH_UP_PAGE}
+	 */
+	public static final String CATCH_UP_PAGE_PROPERTY = "chat.batch";
+
+	/**
+	 * Default number of messages per catch up page offered to server (larger
+	 * pages than the server's default take less round trips and compress
+	 * better)
+	 */
+	public static final int DEFAULT_CATCH_UP_PAGE = 1024;
+
 	/**
 	 * User name to connect to server
 	 */
 	private String userName;
 
 	/**
-	 * Client socket to get input and output streams from/to server
+	 * Client socket to get input and output streams from/to server (first
+	 * connection only, the current one is owned by {@link #reconnector})
 	 */
 	private Socket clientSocket;
 
@@ -56,10 +92,22 @@ public class ChatClient implements Runnable
 	private InputStream userIn;
 
 	/**
-	 * The output stream to user
+	 * The output stream to user (or null when using {@link #userQueue})
 	 */
 	private OutputStream userOut;
 
+	/**
+	 * The queue to user when messages are delivered in-process (or null when
+	 * using {@link #userOut})
+	 */
+	private MessageQueue userQueue;
+
+	/**
+	 * Reconnector reopening the connection to server when lost (and owning
+	 * the current socket to server)
+	 */
+	private Reconnector reconnector;
+
 	/**
 	 * Handler managing data from server: reads messages from server and display
 	 * server messages to user
@@ -80,6 +128,11 @@ public class ChatClient implements Runnable
 	 */
 	private Boolean commonRun;
 
+	/**
+	 * Capabilities we support, offered to server on each connection
+	 */
+	private Capabilities offer;
+
 	/**
 	 * Client readiness status: true when socket and streams have been
 	 * initialized
@@ -99,8 +152,8 @@ public class ChatClient implements Runnable
 	 * once)
 	 * @param in input stream from user
 	 * @param out output stream to user
-	 * @param outType kind of data expected by the user (either text or
-	 * {@link Message} objects)
+	 * @param outType kind of data expected by the user (either text,
+	 * {@link Message} objects or {@link chat.MessageCodec} frames)
 	 * @param commonRun common run shared by another runnable or null if we
 	 * should create our own common run between our handlers
 	 * @param parentLogger parent logger
@@ -113,8 +166,75 @@ public class ChatClient implements Runnable
 	                  UserOutputType outType,
 	                  Boolean commonRun,
 	                  Logger parentLogger)
+	{
+		this(host, port, name, in, out, outType, null, commonRun, parentLogger);
+	}
+
+	/**
+	 * Chat client constructor delivering decoded {@link Message}s to user
+	 * in-process through a {@link MessageQueue}
+	 * @param host the server name or IP address
+	 * @param port the port used to communicate with server
+	 * @param name user name to register on server (server only accept users
+	 * once)
+	 * @param in input stream from user
+	 * @param queue queue to user, messages read from server are put into this
+	 * queue
+	 * @param commonRun common run shared by another runnable or null if we
+	 * should create our own common run between our handlers
+	 * @param parentLogger parent logger
+	 */
+	public ChatClient(String host,
+	                  int port,
+	                  String name,
+	                  InputStream in,
+	                  MessageQueue queue,
+	                  Boolean commonRun,
+	                  Logger parentLogger)
+	{
+		this(host,
+		     port,
+		     name,
+		     in,
+		     null,
+		     UserOutputType.QUEUE,
+		     queue,
+		     commonRun,
+		     parentLogger);
+	}
+
+	/**
+	 * Common chat client constructor
+	 * @param host the server name or IP address
+	 * @param port the port used to communicate with server
+	 * @param name user name to register on server
+	 * @param in input stream from user
+	 * @param out output stream to user (when outType is not
+	 * {@link UserOutputType#QUEUE})
+	 * @param outType kind of data expected by the user
+	 * @param queue queue to user (when outType is {@link UserOutputType#QUEUE})
+	 * @param commonRun common run shared by another runnable or null
+	 * @param parentLogger parent logger
+	 */
+	private ChatClient(String host,
+	                   int port,
+	                   String name,
+	                   InputStream in,
+	                   OutputStream out,
+	                   UserOutputType outType,
+	                   MessageQueue queue,
+	                   Boolean commonRun,
+	                   Logger parentLogger)
 	{
 		userName = name;
+		offer = new Capabilities(true,
+		                         true,
+		                         Boolean.getBoolean(COMPRESS_PROPERTY),
+		                         true,
+		                         true,
+		                         Math.max(0, Integer.getInteger(CATCH_UP_PAGE_PROPERTY,
+		                                                        DEFAULT_CATCH_UP_PAGE).intValue()),
+		                         0);
 		ready = false;
 
 		logger = LoggerFactory.getParentLogger(getClass(),
@@ -128,6 +248,11 @@ public class ChatClient implements Runnable
 		try
 		{
 			clientSocket = new Socket(host, port);
+			/*
+			 * UserHandler coalesces lines itself: no need to delay
+			 * segments any further
+			 */
+			clientSocket.setTcpNoDelay(true);
 			logger.info("ChatClient: socket created");
 		}
 		catch (UnknownHostException e)
@@ -168,26 +293,7 @@ public class ChatClient implements Runnable
 		}
 
 		/*
-		 * Create a temporary PrintWriter to serverOut (serverOutPW with
-		 * autoFlush) and
-		 * send our user name so that the server can create
-		 * a thread dedicated to handling our messages
-		 * Use the logger to log progression and/or errors
-		 */
-		if (serverOut != null)
-		{
-			serverOutPW = new PrintWriter(serverOut, true);
-			logger.info("ChatClient: sending name to server ... ");
-
-			serverOutPW.println(userName);
-			if (serverOutPW.checkError())
-			{
-				logger.warning("ChatClient: serverOutPw has errors");
-			}
-		}
-
-		/*
-		 * get server input stream from socket
+		 * get (buffered) server input stream from socket
 		 * If an exception occurs, log severe and exit with
 		 * Failure.CLIENT_INPUT_STREAM status
 		 */
@@ -195,7 +301,7 @@ public class ChatClient implements Runnable
 		try
 		{
 			logger.info("ChatClient: getting client input stream from Server ... ");
-			serverIn = clientSocket.getInputStream();
+			serverIn = new BufferedInputStream(clientSocket.getInputStream());
 		}
 		catch (IOException e)
 		{
@@ -204,8 +310,35 @@ public class ChatClient implements Runnable
 			System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
 		}
 
+		/*
+		 * Create a temporary PrintWriter to serverOut (serverOutPW) and
+		 * send our user name so that the server can create
+		 * a thread dedicated to handling our messages, along with the
+		 * capabilities we offer
+		 * Use the logger to log progression and/or errors
+		 */
+		Capabilities capabilities = Capabilities.LEGACY;
+		if (serverOut != null)
+		{
+			serverOutPW = new PrintWriter(serverOut, true);
+			logger.info("ChatClient: sending name to server ... ");
+			try
+			{
+				capabilities = Handshake.register(serverIn,
+				                                  serverOutPW,
+				                                  userName,
+				                                  offer,
+				                                  logger);
+			}
+			catch (IOException e)
+			{
+				logger.warning("ChatClient: handshake failed: " + e.getLocalizedMessage());
+			}
+		}
+
 		userIn = in;
 		userOut = out;
+		userQueue = queue;
 
 		if (commonRun == null)
 		{
@@ -221,12 +354,35 @@ public class ChatClient implements Runnable
 		                              this.commonRun,
 		                              logger);
 
-		serverHandler = new ServerHandler(userName,
-		                                  serverIn,
-		                                  userOut,
-		                                  outType,
-		                                  this.commonRun,
-		                                  logger);
+		if (outType == UserOutputType.QUEUE)
+		{
+			serverHandler = new ServerHandler(userName,
+			                                  serverIn,
+			                                  userQueue,
+			                                  this.commonRun,
+			                                  logger);
+		}
+		else
+		{
+			serverHandler = new ServerHandler(userName,
+			                                  serverIn,
+			                                  userOut,
+			                                  outType,
+			                                  this.commonRun,
+			                                  logger);
+		}
+
+		reconnector = new Reconnector(host,
+		                              port,
+		                              userName,
+		                              offer,
+		                              capabilities,
+		                              clientSocket,
+		                              ReconnectPolicy.fromSystemProperties(),
+		                              logger);
+		reconnector.setUserHandler(userHandler);
+		userHandler.setReconnector(reconnector);
+		serverHandler.setReconnector(reconnector);
 
 		ready = true;
 	}
@@ -240,6 +396,76 @@ public class ChatClient implements Runnable
 		return ready;
 	}
 
+	/**
+	 * Lines per flush accessor
+	 * @return the distribution of the number of lines sent to server per
+	 * write
+	 */
+	public Distribution getLinesPerFlush()
+	{
+		return userHandler.getLinesPerFlush();
+	}
+
+	/**
+	 * Reconnection times accessor
+	 * @return the distribution of the times (in milliseconds) between a lost
+	 * connection to server and the first message received on the new one
+	 */
+	public Distribution getReconnectTimes()
+	{
+		return reconnector.getReconnectTimes();
+	}
+
+	/**
+	 * Bytes fetched again accessor
+	 * @return the number of bytes of messages received again from server
+	 * after reconnections
+	 */
+	public long getRefetchedBytes()
+	{
+		return reconnector.getRefetchedBytes();
+	}
+
+	/**
+	 * Decompression metrics accessor
+	 * @return the compression ratio and decoding CPU time of the compressed
+	 * catch ups received from server
+	 */
+	public MessageCodec.Inflation getInflation()
+	{
+		return serverHandler.getInflation();
+	}
+
+	/**
+	 * Negotiated capabilities accessor
+	 * @return the capabilities chosen by server on the current connection (or
+	 * {@link Capabilities#LEGACY} if server did not reply to our offer, such
+	 * as legacy servers)
+	 */
+	public Capabilities getCapabilities()
+	{
+		return reconnector.getCapabilities();
+	}
+
+	/**
+	 * Supported capabilities accessor
+	 * @return the capabilities we support, offered to server on each
+	 * connection
+	 */
+	public Capabilities getOfferedCapabilities()
+	{
+		return offer;
+	}
+
+	/**
+	 * Received sequence numbers accessor
+	 * @return the sequence numbers of messages received from server
+	 */
+	public SequenceTracker getReceivedSequences()
+	{
+		return serverHandler.getSequences();
+	}
+
 	/**
 	 * Run loop: Launch {@link UserHandler} and {@link ServerHandler}
 	 * in their own threads and wait for them to finish.
@@ -284,6 +510,9 @@ public class ChatClient implements Runnable
 	 */
 	public void cleanup()
 	{
+		reconnector.close();
+		logger.info("ChatClient: " + reconnector);
+
 		userHandler.cleanup();
 
 		serverHandler.cleanup();
@@ -294,7 +523,7 @@ public class ChatClient implements Runnable
 		logger.info("ChatClient: closing client socket ... ");
 		try
 		{
-			clientSocket.close();
+			reconnector.getSocket().close();
 		}
 		catch (IOException e)
 		{
@@ -0,0 +1,149 @@
+package chat.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+import chat.Failure;
+import logger.LoggerFactory;
+
+/**
+ * Selector event loop driving the network side of one or several
+ * {@link ChannelConnection}s from a single thread.
+ * Operations requested from other threads (registering connections,
+ * requesting writes) are queued as tasks and run by the selector thread.
+ * @author x0wass
+ */
+public class ClientReactor implements Runnable
+{
+	/**
+	 * The selector watching all registered connections
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tasks to run on the selector thread
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * Run state of the event loop
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Logger used to display debug or info messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Reactor constructor
+	 * @param parentLogger parent logger
+	 * @throws IOException if the selector can't be opened
+	 */
+	public ClientReactor(Logger parentLogger) throws IOException
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		running = true;
+	}
+
+	/**
+	 * Registers a connection on this reactor.
+	 * @param connection the connection to register
+	 */
+	public void register(ChannelConnection connection)
+	{
+		execute(() -> connection.register(selector));
+	}
+
+	/**
+	 * Queues a task to be run on the selector thread and wakes up the
+	 * selector
+	 * @param task the task to run
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the event loop. All registered connections are closed when the
+	 * loop ends.
+	 */
+	public void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Event loop: run pending tasks, wait for ready channels and dispatch
+	 * connect / read / write events to their {@link ChannelConnection}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+			{
+				task.run();
+			}
+
+			try
+			{
+				selector.select();
+			}
+			catch (IOException e)
+			{
+				logger.severe("ClientReactor: " + Failure.CLIENT_CONNECTION
+					+ " select failed: " + e.getLocalizedMessage());
+				break;
+			}
+
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			     it.hasNext();)
+			{
+				SelectionKey key = it.next();
+				it.remove();
+				ChannelConnection connection = (ChannelConnection) key.attachment();
+				connection.handle(key);
+			}
+		}
+
+		cleanup();
+	}
+
+	/**
+	 * Cleanup: close all registered connections and the selector
+	 */
+	private void cleanup()
+	{
+		logger.info("ClientReactor: closing connections ... ");
+		for (SelectionKey key : selector.keys())
+		{
+			((ChannelConnection) key.attachment()).close();
+		}
+
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("ClientReactor: closing selector failed: "
+				+ e.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package chat.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import chat.Capabilities;
+import chat.Vocabulary;
+
+/**
+ * Handshake of a newly opened connection to server: registers our user name
+ * and offers our {@link Capabilities} on the following line
+ * ({@link Vocabulary#helloCmd}), both in a single write so that the server
+ * reads them together.
+ * Every server sends something once it has read our name, so the first byte
+ * received tells which kind of server we are talking to without any timeout
+ * (the stream header is left unread for the decoder):
+ * <ul>
+ * <li>Servers supporting handshakes reply with a {@link Vocabulary#helloCmd}
+ * line containing the capabilities they have chosen (a single codec among
+ * the ones we offered), followed by the stream header of this codec</li>
+ * <li>Legacy servers send their stream header right away: nothing has been
+ * chosen and the connection goes on with {@link Capabilities#LEGACY}
+ * capabilities (such servers handle our offer as an ordinary text line,
+ * and might display it to other users)</li>
+ * </ul>
+ * In both cases the codec is detected from the stream header by the
+ * {@link ServerHandler}.
+ * @author x0wass
+ */
+final class Handshake
+{
+	/**
+	 * Reply prefix of servers supporting handshakes
+	 */
+	private static final byte[] REPLY_PREFIX =
+		(Vocabulary.helloCmd + " ").getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Maximum accepted reply length
+	 */
+	private static final int MAX_REPLY_LENGTH = 1024;
+
+	/**
+	 * No instances
+	 */
+	private Handshake()
+	{
+	}
+
+	/**
+	 * Registers our user name on server along with the capabilities we offer
+	 * and reads the server's choice if it supports handshakes
+	 * @param in the buffered input stream from server (supporting
+	 * {@link InputStream#mark(int)}), whose header is left unread
+	 * @param out the print writer to server
+	 * @param name our user name
+	 * @param offer the capabilities we support
+	 * @param logger the logger to use
+	 * @return the capabilities chosen by server
+	 * ({@link Capabilities#LEGACY} if the server does not reply)
+	 * @throws IOException if our name can't be sent or the server's reply
+	 * can't be read (such as when our name is rejected)
+	 */
+	static Capabilities register(InputStream in,
+	                             PrintWriter out,
+	                             String name,
+	                             Capabilities offer,
+	                             Logger logger) throws IOException
+	{
+		out.print(name + Vocabulary.newLine
+			+ Vocabulary.helloCmd + " " + offer + Vocabulary.newLine);
+		out.flush();
+		if (out.checkError())
+		{
+			throw new IOException("unable to register name");
+		}
+
+		if (!in.markSupported())
+		{
+			throw new IOException("Handshake: stream does not support mark");
+		}
+
+		/*
+		 * Peeks the first bytes sent by server, up to the first one which
+		 * differs from the reply prefix (the first byte of the stream headers
+		 * already differs, and legacy servers might send nothing else until
+		 * the next message)
+		 */
+		in.mark(REPLY_PREFIX.length);
+		int matched = 0;
+		int b = 0;
+		try
+		{
+			while (matched < REPLY_PREFIX.length)
+			{
+				b = in.read();
+				if (b != (REPLY_PREFIX[matched] & 0xFF))
+				{
+					break;
+				}
+				matched++;
+			}
+		}
+		finally
+		{
+			in.reset();
+		}
+		if (b < 0)
+		{
+			throw new EOFException("Handshake: connection closed by server");
+		}
+		if (matched < REPLY_PREFIX.length)
+		{
+			logger.info("Handshake: legacy server, no capabilities chosen");
+			return Capabilities.LEGACY;
+		}
+
+		/*
+		 * Reads the reply line
+		 */
+		byte[] reply = new byte[MAX_REPLY_LENGTH];
+		int length = 0;
+		while ((b = in.read()) != '\n')
+		{
+			if (b < 0)
+			{
+				throw new EOFException("Handshake: end of stream in server's reply");
+			}
+			if (length == reply.length)
+			{
+				throw new StreamCorruptedException("Handshake: server's reply too long");
+			}
+			reply[length++] = (byte) b;
+		}
+		Capabilities chosen = Capabilities.parse(new String(reply,
+		                                                    REPLY_PREFIX.length,
+		                                                    length - REPLY_PREFIX.length,
+		                                                    StandardCharsets.US_ASCII));
+		logger.info("Handshake: offered " + offer + ", server chose " + chosen);
+		return chosen;
+	}
+}
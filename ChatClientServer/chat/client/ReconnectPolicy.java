@@ -0,0 +1,165 @@
+package chat.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reconnect policy of a {@link ChatClient} whose connection to server has
+ * been lost.
+ * Reconnection attempts are delayed with a jittered exponential backoff: the
+ * delay before attempt n is drawn uniformly between 0 and
+ * min({@link #getMaxDelay()}, {@link #getBaseDelay()} * 2<sup>n</sup>), so
+ * that clients disconnected at the same time (such as by a server restart)
+ * spread their reconnections instead of all coming back at once.
+ * Default values can be overridden with the {@value #BASE_DELAY_PROPERTY},
+ * {@value #MAX_DELAY_PROPERTY} and {@value #MAX_ATTEMPTS_PROPERTY} system
+ * properties.
+ * @author x0wass
+ */
+public final class ReconnectPolicy
+{
+	/**
+	 * Default base delay (in milliseconds)
+	 */
+	public static final long DEFAULT_BASE_DELAY = 250;
+
+	/**
+	 * Default maximum delay (in milliseconds)
+	 */
+	public static final long DEFAULT_MAX_DELAY = 30_000;
+
+	/**
+	 * Default maximum number of consecutive attempts
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 12;
+
+	/**
+	 * System property overriding {@link #DEFAULT_BASE_DELAY}
+	 */
+	public static final String BASE_DELAY_PROPERTY = "chat.reconnect.base";
+
+	/**
+	 * System property overriding {@link #DEFAULT_MAX_DELAY}
+	 */
+	public static final String MAX_DELAY_PROPERTY = "chat.reconnect.max";
+
+	/**
+	 * System property overriding {@link #DEFAULT_MAX_ATTEMPTS}
+	 */
+	public static final String MAX_ATTEMPTS_PROPERTY = "chat.reconnect.attempts";
+
+	/**
+	 * Policy never reconnecting (previous behavior: a lost connection ends
+	 * the client)
+	 */
+	public static final ReconnectPolicy NEVER = new ReconnectPolicy(0, 0, 0);
+
+	/**
+	 * Base delay (in milliseconds)
+	 */
+	private final long baseDelay;
+
+	/**
+	 * Maximum delay (in milliseconds)
+	 */
+	private final long maxDelay;
+
+	/**
+	 * Maximum number of consecutive attempts (0 to never reconnect)
+	 */
+	private final int maxAttempts;
+
+	/**
+	 * Reconnect policy constructor
+	 * @param baseDelay base delay (in milliseconds)
+	 * @param maxDelay maximum delay (in milliseconds)
+	 * @param maxAttempts maximum number of consecutive attempts (0 to never
+	 * reconnect)
+	 * @throws IllegalArgumentException if a value is negative or if the base
+	 * delay is greater than the maximum delay
+	 */
+	public ReconnectPolicy(long baseDelay, long maxDelay, int maxAttempts)
+	{
+		if ((baseDelay < 0) || (maxDelay < baseDelay) || (maxAttempts < 0))
+		{
+			throw new IllegalArgumentException("ReconnectPolicy: invalid delays or attempts");
+		}
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Creates the policy configured with system properties (or default
+	 * values when properties are not set or invalid)
+	 * @return the configured reconnect policy
+	 */
+	public static ReconnectPolicy fromSystemProperties()
+	{
+		long base = Math.max(0, Long.getLong(BASE_DELAY_PROPERTY, DEFAULT_BASE_DELAY).longValue());
+		long max = Math.max(base, Long.getLong(MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY).longValue());
+		int attempts = Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS).intValue();
+		return new ReconnectPolicy(base, max, Math.max(0, attempts));
+	}
+
+	/**
+	 * Base delay accessor
+	 * @return the base delay (in milliseconds)
+	 */
+	public long getBaseDelay()
+	{
+		return baseDelay;
+	}
+
+	/**
+	 * Maximum delay accessor
+	 * @return the maximum delay (in milliseconds)
+	 */
+	public long getMaxDelay()
+	{
+		return maxDelay;
+	}
+
+	/**
+	 * Maximum number of attempts accessor
+	 * @return the maximum number of consecutive attempts (0 to never
+	 * reconnect)
+	 */
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	/**
+	 * Checks if another attempt should be made
+	 * @param attempt the number of consecutive attempts already made
+	 * @return true if attempt is less than the maximum number of attempts
+	 */
+	public boolean shouldRetry(int attempt)
+	{
+		return attempt < maxAttempts;
+	}
+
+	/**
+	 * Delay before an attempt
+	 * @param attempt the number of consecutive attempts already made
+	 * @return a random delay (in milliseconds) between 0 and the capped
+	 * exponential delay of this attempt
+	 */
+	public long delay(int attempt)
+	{
+		// shifting more than the leading zeros of baseDelay would overflow
+		long ceiling = (attempt >= Long.numberOfLeadingZeros(baseDelay) - 1 ? maxDelay
+			: Math.min(maxDelay, baseDelay << attempt));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * Policy string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return "ReconnectPolicy[base=" + baseDelay + "ms, max=" + maxDelay
+			+ "ms, attempts=" + maxAttempts + "]";
+	}
+}
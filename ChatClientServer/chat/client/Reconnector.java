@@ -0,0 +1,410 @@
+package chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import chat.Capabilities;
+import chat.Vocabulary;
+import logger.LoggerFactory;
+import metrics.Distribution;
+
+/**
+ * Reconnector: reopens the connection of a {@link ChatClient} to server when
+ * the {@link ServerHandler} loses it, according to a {@link ReconnectPolicy}.
+ * Once connected again, our user name is registered again (evt negotiating
+ * our capabilities again with a {@link Handshake}) and a catch up since the
+ * last message received without gap is requested, so that only the messages
+ * missed during the outage are fetched again (instead of the whole history
+ * by every client at the same moment). The new output stream to server is
+ * then handed to the {@link UserHandler}.
+ * Reconnection time and bytes fetched again are recorded as metrics.
+ * @author x0wass
+ */
+class Reconnector
+{
+	/**
+	 * Timeout (in milliseconds) of a connection attempt
+	 */
+	private static final int CONNECT_TIMEOUT = 10_000;
+
+	/**
+	 * The server name or IP address
+	 */
+	private final String host;
+
+	/**
+	 * The port used to communicate with server
+	 */
+	private final int port;
+
+	/**
+	 * Our user name on server
+	 */
+	private final String userName;
+
+	/**
+	 * Capabilities offered to server on each connection
+	 */
+	private final Capabilities offer;
+
+	/**
+	 * Capabilities negotiated with server on the current connection
+	 */
+	private volatile Capabilities capabilities;
+
+	/**
+	 * The reconnect policy
+	 */
+	private final ReconnectPolicy policy;
+
+	/**
+	 * Current socket to server (guarded by this)
+	 */
+	private Socket socket;
+
+	/**
+	 * User handler to hand new output streams to server to (or null)
+	 */
+	private UserHandler userHandler;
+
+	/**
+	 * Closed state: true once the user has left or reconnection has been
+	 * abandoned (guarded by this)
+	 */
+	private boolean closed;
+
+	/**
+	 * Number of consecutive attempts since connection was lost (guarded by
+	 * this)
+	 */
+	private int attempts;
+
+	/**
+	 * Time (System.nanoTime) at which connection has been lost, or 0 when
+	 * connected (guarded by this)
+	 */
+	private long lostTime;
+
+	/**
+	 * Time (in milliseconds) between a lost connection and the first message
+	 * received on the new one
+	 */
+	private final Distribution reconnectTimes;
+
+	/**
+	 * Number of bytes of messages received again after a reconnection
+	 */
+	private volatile long refetchedBytes;
+
+	/**
+	 * Logger used to display debug or info messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Reconnector constructor
+	 * @param host the server name or IP address
+	 * @param port the port used to communicate with server
+	 * @param name our user name on server
+	 * @param offer the capabilities offered to server on each connection
+	 * @param capabilities the capabilities negotiated on the current
+	 * connection
+	 * @param socket the current socket to server
+	 * @param policy the reconnect policy
+	 * @param parentLogger parent logger
+	 */
+	public Reconnector(String host,
+	                   int port,
+	                   String name,
+	                   Capabilities offer,
+	                   Capabilities capabilities,
+	                   Socket socket,
+	                   ReconnectPolicy policy,
+	                   Logger parentLogger)
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		this.host = host;
+		this.port = port;
+		userName = name;
+		this.offer = offer;
+		this.capabilities = capabilities;
+		this.socket = socket;
+		this.policy = policy;
+		userHandler = null;
+		closed = false;
+		attempts = 0;
+		lostTime = 0;
+		reconnectTimes = new Distribution("reconnect time (ms)");
+		refetchedBytes = 0;
+	}
+
+	/**
+	 * Sets the user handler to hand new output streams to server to
+	 * @param handler the user handler
+	 */
+	public synchronized void setUserHandler(UserHandler handler)
+	{
+		userHandler = handler;
+	}
+
+	/**
+	 * Negotiated capabilities accessor (thread safe)
+	 * @return the capabilities negotiated with server on the current (or
+	 * last) connection
+	 */
+	public Capabilities getCapabilities()
+	{
+		return capabilities;
+	}
+
+	/**
+	 * Current socket accessor
+	 * @return the current socket to server
+	 */
+	public synchronized Socket getSocket()
+	{
+		return socket;
+	}
+
+	/**
+	 * Closed state accessor
+	 * @return true if the user has left or if reconnection has been
+	 * abandoned
+	 */
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Closes this reconnector (when the user leaves): a lost connection won't
+	 * be reopened anymore and a pending {@link #reconnect(long)} is aborted
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Reconnects to server after the connection has been lost: closes the
+	 * current socket, then tries to connect again after jittered exponential
+	 * delays until connected, closed or out of attempts.
+	 * Once connected, registers our user name again (evt selecting
+	 * capabilities again), requests a catch up of the messages following
+	 * resumeSequence (unless the server has been restarted since, as shown by
+	 * a new epoch) and hands the new output stream to the user handler.
+	 * Called by the {@link ServerHandler} thread only.
+	 * @param resumeSequence the sequence number of the last message received
+	 * without gap (or 0 if no sequenced message has been received, in which
+	 * case no catch up is requested, as well as when the new connection does
+	 * not support delta catch ups)
+	 * @return the new buffered input stream from server (whose header has
+	 * not been read yet), or null if this reconnector is closed or all
+	 * attempts failed
+	 */
+	public InputStream reconnect(long resumeSequence)
+	{
+		synchronized (this)
+		{
+			if (lostTime == 0)
+			{
+				lostTime = System.nanoTime();
+			}
+			closeSocket();
+		}
+
+		while (true)
+		{
+			/*
+			 * Waits for the delay of this attempt (unless closed meanwhile)
+			 */
+			synchronized (this)
+			{
+				if (!closed && !policy.shouldRetry(attempts))
+				{
+					logger.severe("Reconnector: giving up reconnection after "
+						+ attempts + " attempts");
+					closed = true;
+				}
+				if (closed)
+				{
+					return null;
+				}
+				long delay = policy.delay(attempts);
+				attempts++;
+				logger.info("Reconnector: attempt " + attempts + " in " + delay + " ms");
+				long deadline = System.currentTimeMillis() + delay;
+				for (long wait = delay; !closed && (wait > 0);
+				     wait = deadline - System.currentTimeMillis())
+				{
+					try
+					{
+						wait(wait);
+					}
+					catch (InterruptedException e)
+					{
+						logger.warning("Reconnector: interrupted while waiting");
+						closed = true;
+					}
+				}
+				if (closed)
+				{
+					return null;
+				}
+			}
+
+			/*
+			 * Connects, registers our name and requests a catch up
+			 */
+			Socket newSocket = new Socket();
+			InputStream in;
+			Capabilities negotiated;
+			long since = resumeSequence;
+			try
+			{
+				newSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+				newSocket.setTcpNoDelay(true);
+				in = new BufferedInputStream(newSocket.getInputStream());
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(newSocket.getOutputStream()));
+				negotiated = Handshake.register(in, out, userName, offer, logger);
+				if (!negotiated.isDeltaCatchUp()
+					|| (negotiated.getEpoch() != capabilities.getEpoch()))
+				{
+					since = 0;
+				}
+				if (since > 0)
+				{
+					out.println(Vocabulary.catchUpCmd + " " + Vocabulary.sinceKeyword
+						+ " " + since);
+				}
+				out.flush();
+				if (out.checkError())
+				{
+					throw new IOException("unable to register name");
+				}
+			}
+			catch (IOException e)
+			{
+				logger.warning("Reconnector: connection to " + host + ":" + port
+					+ " failed: " + e.getLocalizedMessage());
+				try
+				{
+					newSocket.close();
+				}
+				catch (IOException ce)
+				{
+					// nothing to do: the socket is unusable anyway
+				}
+				continue;
+			}
+
+			synchronized (this)
+			{
+				socket = newSocket;
+				capabilities = negotiated;
+				if (closed)
+				{
+					closeSocket();
+					return null;
+				}
+				logger.info("Reconnector: connected again to " + host + ":" + port
+					+ (since > 0 ? ", resuming after " + since : ""));
+				if (userHandler != null)
+				{
+					try
+					{
+						userHandler.setServerOutput(newSocket.getOutputStream());
+					}
+					catch (IOException e)
+					{
+						logger.warning("Reconnector: no output stream to server: "
+							+ e.getLocalizedMessage());
+					}
+				}
+				return in;
+			}
+		}
+	}
+
+	/**
+	 * Notifies that a message has been received on the current connection:
+	 * ends the current outage (if any), records its duration and resets the
+	 * number of attempts
+	 */
+	public synchronized void resumed()
+	{
+		if (lostTime != 0)
+		{
+			reconnectTimes.record((System.nanoTime() - lostTime) / 1_000_000L);
+			lostTime = 0;
+			attempts = 0;
+		}
+	}
+
+	/**
+	 * Records bytes of messages received again after a reconnection
+	 * @param bytes the number of bytes
+	 */
+	public void addRefetchedBytes(long bytes)
+	{
+		refetchedBytes += bytes; // single writer (the ServerHandler thread)
+	}
+
+	/**
+	 * Reconnection times accessor
+	 * @return the distribution of the times (in milliseconds) between a lost
+	 * connection and the first message received on the new one
+	 */
+	public Distribution getReconnectTimes()
+	{
+		return reconnectTimes;
+	}
+
+	/**
+	 * Bytes fetched again accessor
+	 * @return the number of bytes of messages received again after
+	 * reconnections (messages older than the first one received on the new
+	 * connection, or already received)
+	 */
+	public long getRefetchedBytes()
+	{
+		return refetchedBytes;
+	}
+
+	/**
+	 * Reconnector string representation
+	 * @return a string containing the reconnection metrics
+	 */
+	@Override
+	public String toString()
+	{
+		return policy + ", " + reconnectTimes + ", " + refetchedBytes
+			+ " bytes fetched again";
+	}
+
+	/**
+	 * Closes the current socket (ignoring errors since it is being replaced
+	 * or abandoned)
+	 */
+	private void closeSocket()
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			logger.fine("Reconnector: closing lost socket failed: "
+				+ e.getLocalizedMessage());
+		}
+	}
+}
@@ -1,20 +1,27 @@
 package chat.client;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StreamCorruptedException;
 import java.util.logging.Logger;
 
+import chat.AuthorPool;
+import chat.Capabilities;
 import chat.Failure;
+import chat.MessageCodec;
+import chat.ResetPolicy;
 import chat.UserOutputType;
 import logger.LoggerFactory;
 import models.Message;
+import models.MessageQueue;
+import models.SequenceTracker;
 
 /**
  * Server Handler: Reads messages stream from server and writes messages to
@@ -26,16 +33,102 @@ import models.Message;
  * client
  * which allow to extract message components such as author, dateand
  * content)</li>
+ * <li>{@link Message}s encoded with {@link MessageCodec} (on the GUI client)</li>
+ * <li>{@link Message} objects put into a {@link MessageQueue} (on the GUI
+ * client running in the same process, which avoids encoding messages
+ * again)</li>
  * </ul>
+ * The server may send either Java serialized {@link Message}s or
+ * {@link MessageCodec} frames: the kind of stream is detected from its header.
+ * Authors of received messages are canonicalized with an {@link AuthorPool}.
+ * The object stream to user is reset according to
+ * {@link ResetPolicy#fromSystemProperties()} so that relayed messages are
+ * not retained forever by this handler and by the user's reader.
+ * Sequence numbers of received messages are tracked so that duplicates are
+ * dropped (this is the only duplicates filter: the ones of messages later
+ * discarded by the user queue are forgotten so that a catch up can fetch
+ * them again), and so that when a {@link Reconnector} is set, a connection lost
+ * because of an I/O failure is reopened and resumed after the last message
+ * received without gap (messages received again on the new connection are
+ * accounted as fetched again). Sequence numbers are forgotten when the
+ * reopened connection comes from a restarted server, which numbers its
+ * messages from 1 again: either its epoch changed, or, when
+ * unknown, the first message of the new connection is not newer than the
+ * ones already received. A connection closed by server after a close
+ * signal (we have been kicked or the server has been killed, see
+ * {@link Capabilities#CLOSE_SIGNAL}) is not reopened.
  * @author x0wass
  */
 class ServerHandler implements Runnable
 {
 	/**
-	 * Input stream from server (contains {@link Message} objects)
+	 * Input stream from server (contains {@link Message} objects) or null
+	 * when the server sends {@link MessageCodec} frames
 	 */
 	private ObjectInputStream serverInOS;
 
+	/**
+	 * Decoder of {@link MessageCodec} frames from server or null when the
+	 * server sends serialized {@link Message} objects
+	 */
+	private MessageCodec.Decoder serverInDecoder;
+
+	/**
+	 * Counter of the bytes read from server (under {@link #serverInOS} or
+	 * {@link #serverInDecoder})
+	 */
+	private CountingInputStream serverInCounter;
+
+	/**
+	 * Pool of canonical authors names of messages read from server
+	 */
+	private AuthorPool authorPool;
+
+	/**
+	 * Compressed catch up pages decoded by {@link #serverInDecoder} (shared by
+	 * successive decoders when reconnected) and their metrics
+	 */
+	private final MessageCodec.Inflation inflation;
+
+	/**
+	 * Sequence numbers of messages received from server (in the current
+	 * server epoch)
+	 */
+	private final SequenceTracker sequences;
+
+	/**
+	 * Reconnector reopening the connection to server when lost (or null to
+	 * end this handler when connection is lost)
+	 */
+	private Reconnector reconnector;
+
+	/**
+	 * Resume state: true on a reopened connection until its first message
+	 * is received
+	 */
+	private boolean resuming;
+
+	/**
+	 * Restarted server state on a reopened connection: true when the epoch
+	 * sent by server changed, false when unchanged, or null when
+	 * unknown (until the first message is received)
+	 */
+	private Boolean restarted;
+
+	/**
+	 * Sequence number of the first message received on a reopened connection
+	 * (messages older than this one are fetched again), or 0 if the
+	 * connection has never been reopened
+	 */
+	private long resumedSequence;
+
+	/**
+	 * Closed by server state: true once the server has signaled that it
+	 * closes the current connection on purpose (see
+	 * {@link Capabilities#CLOSE_SIGNAL})
+	 */
+	private boolean closedByServer;
+
 	/**
 	 * The kind of messages supported by the client (either text or message
 	 * objects)
@@ -49,9 +142,20 @@ class ServerHandler implements Runnable
 	private PrintWriter userOutPW;
 
 	/**
-	 * Object output stream to user output (when using Message objects)
+	 * Object output stream to user output (when using Message objects),
+	 * periodically reset
+	 */
+	private ResetPolicy.ObjectWriter userOutOS;
+
+	/**
+	 * Encoder to user output (when using {@link MessageCodec} frames)
 	 */
-	private ObjectOutputStream userOutOS;
+	private MessageCodec.Encoder userOutEncoder;
+
+	/**
+	 * Queue to user (when delivering {@link Message} objects in-process)
+	 */
+	private MessageQueue userOutQueue;
 
 	/**
 	 * Common run between {@link ServerHandler} and {@link UserHandler}
@@ -68,7 +172,8 @@ class ServerHandler implements Runnable
 	 * @param name our user name on server
 	 * @param in input stream from server
 	 * @param out output stream to user
-	 * @param outType output type (text or {@link Message} objects)
+	 * @param outType output type (text, {@link Message} objects or
+	 * {@link MessageCodec} frames)
 	 * @param commonRun common run between this and {@link UserHandler}
 	 * @param parentLogger parent logger
 	 */
@@ -79,37 +184,7 @@ class ServerHandler implements Runnable
 	                     Boolean commonRun,
 	                     Logger parentLogger)
 	{
-		logger = LoggerFactory.getParentLogger(getClass(),
-		                                       parentLogger,
-		                                       parentLogger.getLevel());
-		/*
-		 * Check for non null input stream and Object input stream instantiation
-		 * on the input stream.
-		 */
-		if (in != null)
-		{
-			logger.info("ServerHandler: creating server input reader ... ");
-			/*
-			 * ObjectInputStream instantiation from server input stream. If
-			 * an exception occur shut down app with CLIENT_INPUT_STREAM Failure
-			 * status
-			 */
-			try
-			{
-				serverInOS = new ObjectInputStream(in);
-			}
-			catch (IOException e)
-			{
-				logger.severe("ServerHandler: " + Failure.CLIENT_INPUT_STREAM
-					+ " unable to open object input stream");
-				System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
-			}
-		}
-		else
-		{
-			logger.severe("ServerHandler: " + Failure.CLIENT_INPUT_STREAM);
-			System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
-		}
+		this(name, in, commonRun, parentLogger);
 
 		/*
 		 * check for non null output stream and Object output stream
@@ -122,17 +197,38 @@ class ServerHandler implements Runnable
 			 * According to outType create either
 			 * 	- A Print writer on the user output stream
 			 * 	- An Object output stream on the user output stream
+			 * 	- A MessageCodec.Encoder on the user output stream
 			 * If an exception occurs exit with
 			 * Failure.USER_OUTPUT_STREAM status
 			 */
 			userOutType = outType;
+			userOutEncoder = null;
+			userOutQueue = null;
 			switch (userOutType)
 			{
+				case BINARY:
+					userOutPW = null;
+					userOutOS = null;
+					try
+					{
+						userOutEncoder = new MessageCodec.Encoder(out);
+						userOutEncoder.flush();
+					}
+					catch (IOException e)
+					{
+						logger.severe("ServerHandler: unable to create "
+							+ "binary output encoder "
+							+ Failure.USER_OUTPUT_STREAM);
+						System.exit(Failure.USER_OUTPUT_STREAM.toInteger());
+					}
+					break;
 				case OBJECT:
 					userOutPW = null;
 					try
 					{
-						userOutOS = new ObjectOutputStream(out);
+						ResetPolicy policy = ResetPolicy.fromSystemProperties();
+						logger.info("ServerHandler: user object output " + policy);
+						userOutOS = new ResetPolicy.ObjectWriter(out, policy);
 					}
 					catch (IOException e)
 					{
@@ -154,6 +250,96 @@ class ServerHandler implements Runnable
 			logger.severe("ServerHandler: " + Failure.USER_OUTPUT_STREAM);
 			System.exit(Failure.USER_OUTPUT_STREAM.toInteger());
 		}
+	}
+
+	/**
+	 * server handler constructor for in-process delivery of decoded
+	 * {@link Message}s (without any encoding to user)
+	 * @param name our user name on server
+	 * @param in input stream from server
+	 * @param queue queue to put messages to user into
+	 * @param commonRun common run between this and {@link UserHandler}
+	 * @param parentLogger parent logger
+	 */
+	public ServerHandler(String name,
+	                     InputStream in,
+	                     MessageQueue queue,
+	                     Boolean commonRun,
+	                     Logger parentLogger)
+	{
+		this(name, in, commonRun, parentLogger);
+
+		if (queue != null)
+		{
+			logger.info("ServerHandler: using user output queue ... ");
+			userOutType = UserOutputType.QUEUE;
+			userOutPW = null;
+			userOutOS = null;
+			userOutEncoder = null;
+			userOutQueue = queue;
+			userOutQueue.setDiscardListener(this::untrack);
+		}
+		else
+		{
+			logger.severe("ServerHandler: null user queue " + Failure.USER_OUTPUT_STREAM);
+			System.exit(Failure.USER_OUTPUT_STREAM.toInteger());
+		}
+	}
+
+	/**
+	 * Common part of server handler constructors: setup logger, server input
+	 * and common run
+	 * @param name our user name on server
+	 * @param in input stream from server
+	 * @param commonRun common run between this and {@link UserHandler}
+	 * @param parentLogger parent logger
+	 */
+	private ServerHandler(String name,
+	                      InputStream in,
+	                      Boolean commonRun,
+	                      Logger parentLogger)
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		authorPool = new AuthorPool();
+		inflation = new MessageCodec.Inflation();
+		sequences = new SequenceTracker();
+		reconnector = null;
+		resuming = false;
+		restarted = Boolean.FALSE;
+		resumedSequence = 0;
+		closedByServer = false;
+		/*
+		 * Check for non null input stream and Object input stream (or codec
+		 * decoder) instantiation on the input stream.
+		 */
+		if (in != null)
+		{
+			logger.info("ServerHandler: creating server input reader ... ");
+			/*
+			 * Detects the kind of stream sent by the server from its header
+			 * then instanciates either a MessageCodec.Decoder or an
+			 * ObjectInputStream from server input stream. If
+			 * an exception occur shut down app with CLIENT_INPUT_STREAM Failure
+			 * status
+			 */
+			try
+			{
+				openServerInput(in);
+			}
+			catch (IOException e)
+			{
+				logger.severe("ServerHandler: " + Failure.CLIENT_INPUT_STREAM
+					+ " unable to open object input stream");
+				System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
+			}
+		}
+		else
+		{
+			logger.severe("ServerHandler: " + Failure.CLIENT_INPUT_STREAM);
+			System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
+		}
 
 		if (commonRun != null)
 		{
@@ -177,7 +363,10 @@ class ServerHandler implements Runnable
 		/*
 		 * Main processing loop:
 		 * - Reads message from server input object stream.
-		 * If an exception occurs, logs a warning and break the loop
+		 * If an exception occurs, logs a warning and break the loop (unless
+		 * the connection has not been closed by server on purpose and can be
+		 * reopened)
+		 * - Drops duplicates
 		 * - Then writes the message to user output in either text or
 		 * object format
 		 * Any error or exception breaks the loop then the common run is set to
@@ -190,10 +379,11 @@ class ServerHandler implements Runnable
 			try
 			{
 				/*
-				 * read message from server on the serverInOS.
+				 * read message from server on the serverInOS (or
+				 * serverInDecoder).
 				 * If an exception occurs log a warning and break the loop
 				 */
-				message = (Message) serverInOS.readObject();
+				message = readMessage();
 			}
 			catch (ClassNotFoundException cnfe)
 			{
@@ -225,11 +415,39 @@ class ServerHandler implements Runnable
 			}
 			catch (IOException e)
 			{
+				if (closedByServer)
+				{
+					logger.info("ServerHandler: connection closed by server");
+					if (reconnector != null)
+					{
+						reconnector.close();
+					}
+					break;
+				}
 				logger.warning("ServerHandler: I/O error reading server : " +
 			                   e.getLocalizedMessage());
+				if (resume())
+				{
+					continue;
+				}
 				break;
 			}
 
+			if (message == null)
+			{
+				/*
+				 * Close signal: server closes the connection on purpose, the
+				 * end of stream follows
+				 */
+				closedByServer = true;
+				continue;
+			}
+
+			if ((message != null) && !track(message))
+			{
+				continue; // duplicate
+			}
+
 			if ((message != null))
 			{
 				/*
@@ -237,11 +455,38 @@ class ServerHandler implements Runnable
 				 * - userOutPW.println when using text messages (check userOutPW for
 				 * errors and log warning if any) or
 				 * - userOutOS.writeObject when using Message objects
+				 * - userOutEncoder.writeMessage when using binary frames
+				 * - userOutQueue.put when delivering messages in-process
 				 * if an error occurs set error = true;
 				 */
 				boolean error = false;
 				switch (userOutType)
 				{
+					case QUEUE:
+						try
+						{
+							error = !userOutQueue.put(message);
+						}
+						catch (InterruptedException e)
+						{
+							logger.warning("Serverhandler: interrupted while "
+								+ "queuing message to user");
+							error = true;
+						}
+						break;
+					case BINARY:
+						try
+						{
+							userOutEncoder.writeMessage(message);
+							userOutEncoder.flush();
+						}
+						catch (IOException e)
+						{
+							logger.warning("Serverhandler: userOutEncoder has "
+								+ "IOException" + e.getLocalizedMessage());
+							error = true;
+						}
+						break;
 					case OBJECT:
 						try
 						{
@@ -288,11 +533,200 @@ class ServerHandler implements Runnable
 		}
 	}
 
+	/**
+	 * Sets the reconnector reopening the connection to server when lost
+	 * @param reconnector the reconnector
+	 */
+	public void setReconnector(Reconnector reconnector)
+	{
+		this.reconnector = reconnector;
+	}
+
+	/**
+	 * Sequence numbers accessor
+	 * @return the sequence numbers of messages received from server
+	 */
+	public SequenceTracker getSequences()
+	{
+		return sequences;
+	}
+
+	/**
+	 * Decompression metrics accessor
+	 * @return the metrics of the compressed catch up pages received from
+	 * server
+	 */
+	public MessageCodec.Inflation getInflation()
+	{
+		return inflation;
+	}
+
+	/**
+	 * Opens server input: detects the kind of stream sent by the server from
+	 * its header then instanciates either a MessageCodec.Decoder or an
+	 * ObjectInputStream on the input stream
+	 * @param in input stream from server (buffered if it is not a
+	 * {@link BufferedInputStream} already)
+	 * @throws IOException if the stream header can't be read
+	 */
+	private void openServerInput(InputStream in) throws IOException
+	{
+		InputStream bufferedIn = (in instanceof BufferedInputStream ? in
+			: new BufferedInputStream(in));
+		boolean binary = MessageCodec.isCodecStream(bufferedIn);
+		serverInCounter = new CountingInputStream(bufferedIn);
+		if (binary)
+		{
+			logger.info("ServerHandler: server sends binary frames");
+			serverInOS = null;
+			serverInDecoder = new MessageCodec.Decoder(serverInCounter, authorPool, inflation);
+		}
+		else
+		{
+			serverInDecoder = null;
+			serverInOS = new ObjectInputStream(serverInCounter);
+		}
+	}
+
+	/**
+	 * Closes server input (if opened)
+	 * @throws IOException if closing fails
+	 */
+	private void closeServerInput() throws IOException
+	{
+		if (serverInDecoder != null)
+		{
+			serverInDecoder.close();
+		}
+		else if (serverInOS != null)
+		{
+			serverInOS.close();
+		}
+	}
+
+	/**
+	 * Reopens the connection to server with {@link #reconnector} (if any)
+	 * resuming after the last message received without gap since the first
+	 * one (earlier messages have not been received anyway) if the server
+	 * supports delta catch ups
+	 * @return true if connection has been reopened, false if there is no
+	 * reconnector, if it has been closed or if all attempts failed
+	 */
+	private boolean resume()
+	{
+		if (reconnector == null)
+		{
+			return false;
+		}
+
+		long firstSequence = sequences.getFirst();
+		long epoch = reconnector.getCapabilities().getEpoch();
+		long resumeSequence = ((firstSequence > 0) && reconnector.getCapabilities().isDeltaCatchUp() ?
+			sequences.getContiguousFrom(firstSequence) : 0);
+		while (true)
+		{
+			InputStream in = reconnector.reconnect(resumeSequence);
+			if (in == null)
+			{
+				return false;
+			}
+
+			/*
+			 * Opens the new stream, or try again if the server closed it
+			 * right away
+			 */
+			try
+			{
+				openServerInput(in);
+				resuming = true;
+				long newEpoch = reconnector.getCapabilities().getEpoch();
+				restarted = ((epoch == 0) || (newEpoch == 0) ? null
+					: Boolean.valueOf(epoch != newEpoch));
+				return true;
+			}
+			catch (IOException e)
+			{
+				logger.warning("ServerHandler: unable to open reconnected server "
+					+ "input: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Tracks the sequence number of a received message and the bytes read to
+	 * receive it
+	 * @param message the received message
+	 * @return true if the message should be delivered, false if it is a
+	 * duplicate
+	 */
+	private boolean track(Message message)
+	{
+		long bytes = serverInCounter.takeCount();
+		long sequence = message.getSequence();
+		if (resuming)
+		{
+			resuming = false;
+			if ((restarted == null) ? ((sequence > 0) && (sequence <= sequences.getHighWater()))
+				: restarted.booleanValue())
+			{
+				logger.info("ServerHandler: server restarted, forgetting " + sequences);
+				sequences.clear();
+			}
+			resumedSequence = sequence;
+			reconnector.resumed();
+		}
+
+		boolean added = sequences.add(sequence);
+		if ((resumedSequence > 0) && (!added || (sequence < resumedSequence)))
+		{
+			reconnector.addRefetchedBytes(bytes);
+		}
+		return added;
+	}
+
+	/**
+	 * Forgets the sequence number of a message discarded by the user queue
+	 * so that it is fetched (and delivered) again by the next catch up
+	 * @param message the discarded message
+	 */
+	private void untrack(Message message)
+	{
+		if (sequences.remove(message.getSequence()))
+		{
+			logger.fine("ServerHandler: discarded by user queue: " + message);
+		}
+	}
+
+	/**
+	 * Reads next message from server with either {@link #serverInDecoder} or
+	 * {@link #serverInOS} (whose messages authors are then interned into
+	 * {@link #authorPool})
+	 * @return the next message from server, or null if server has signaled
+	 * that it closes the connection (a {@link MessageCodec#CLOSE_FRAME} or a
+	 * null object)
+	 * @throws ClassNotFoundException if the class of a serialized object
+	 * cannot be found
+	 * @throws IOException if the message can't be read or decoded
+	 */
+	private Message readMessage() throws ClassNotFoundException, IOException
+	{
+		if (serverInDecoder != null)
+		{
+			return serverInDecoder.readMessage();
+		}
+
+		Message message = (Message) serverInOS.readObject();
+		return (message != null ? authorPool.intern(message) : null);
+	}
+
 	/**
 	 * Cleanup and close streams
 	 */
 	public void cleanup()
 	{
+		logger.info("ServerHandler: " + authorPool);
+		logger.info("ServerHandler: " + sequences);
+		logger.info("ServerHandler: " + inflation);
 		logger.info("ServerHandler: closing server input stream reader ... ");
 		/*
 		 * Close Server input stream.
@@ -300,7 +734,7 @@ class ServerHandler implements Runnable
 		 */
 		try
 		{
-			serverInOS.close();
+			closeServerInput();
 		}
 		catch (IOException e)
 		{
@@ -336,5 +770,114 @@ class ServerHandler implements Runnable
 						+ e.getLocalizedMessage());
 			}
 		}
+
+		if (userOutEncoder != null)
+		{
+			try
+			{
+				userOutEncoder.close();
+			}
+			catch (IOException e)
+			{
+				logger.severe("ServerHandler: closing user binary output failed: "
+						+ e.getLocalizedMessage());
+			}
+		}
+
+		if (userOutQueue != null)
+		{
+			userOutQueue.close();
+		}
+	}
+
+	/**
+	 * Input stream counting read bytes
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		/**
+		 * Number of bytes read since last {@link #takeCount()}
+		 */
+		private long count;
+
+		/**
+		 * Constructor
+		 * @param in the input stream to read from
+		 */
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+			count = 0;
+		}
+
+		/**
+		 * Reads a byte
+		 * @return the byte read or -1 at the end of the stream
+		 * @throws IOException if reading fails
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			int b = in.read();
+			if (b >= 0)
+			{
+				count++;
+			}
+			return b;
+		}
+
+		/**
+		 * Reads bytes into an array
+		 * @param b the destination array
+		 * @param off the offset in the array
+		 * @param len the maximum number of bytes to read
+		 * @return the number of bytes read or -1 at the end of the stream
+		 * @throws IOException if reading fails
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = in.read(b, off, len);
+			if (read > 0)
+			{
+				count += read;
+			}
+			return read;
+		}
+
+		/**
+		 * Skips bytes
+		 * @param n the number of bytes to skip
+		 * @return the number of bytes skipped
+		 * @throws IOException if skipping fails
+		 */
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		/**
+		 * Mark is not supported (so that counted bytes are never read again)
+		 * @return false
+		 */
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		/**
+		 * Number of bytes read since last call, then resets it
+		 * @return the number of bytes read since last call
+		 */
+		long takeCount()
+		{
+			long taken = count;
+			count = 0;
+			return taken;
+		}
 	}
 }
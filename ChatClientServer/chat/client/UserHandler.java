@@ -1,32 +1,99 @@
 package chat.client;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import chat.Failure;
 import chat.Vocabulary;
 import logger.LoggerFactory;
+import metrics.Distribution;
 
 /**
- * User Handler handles what the user types and send it to the chat server
+ * User Handler handles what the user types and send it to the chat server.
+ * Lines are coalesced in a buffer which is flushed to the server once all
+ * immediately available user input has been read (so that a burst of lines,
+ * such as several kicks, is sent in a single write), with at most
+ * {@link #MAX_LINES_PER_FLUSH} lines and {@link #MAX_FLUSH_DELAY} nanoseconds
+ * of delay per flush: a flusher thread waits for this delay after the first
+ * buffered line, so that buffered lines are sent even if no more user input
+ * arrives (such as when the next line is incomplete).
+ * When a {@link Reconnector} is set, lines which can't be sent because the
+ * connection to server has been lost are dropped (instead of ending this
+ * handler) and the following ones are sent to the new connection once
+ * reconnected.
  * @author x0wass
  */
 class UserHandler implements Runnable
 {
+	/**
+	 * Maximum number of lines written to server in a single flush
+	 */
+	private static final int MAX_LINES_PER_FLUSH = 128;
+
+	/**
+	 * Maximum delay (in nanoseconds) between the first buffered line and the
+	 * next flush
+	 */
+	private static final long MAX_FLUSH_DELAY = 5_000_000L;
+
+	/**
+	 * Size of the buffer coalescing lines to server
+	 */
+	private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
 	/**
 	 * User Input Buffered Reader reads user input
 	 */
 	private BufferedReader userInBR;
 
 	/**
-	 * Server Output Print Writer writes user input to server
+	 * Server Output Print Writer writes user input to server (buffered,
+	 * without autoflush), replaced when reconnected to server
+	 */
+	private volatile PrintWriter serverOutPW;
+
+	/**
+	 * Lock guarding writes to {@link #serverOutPW}, {@link #pendingLines},
+	 * {@link #firstPendingTime} and {@link #flushing}, on which the flusher
+	 * waits
+	 */
+	private final Object flushLock;
+
+	/**
+	 * Number of lines buffered in {@link #serverOutPW} since last flush
+	 * (guarded by {@link #flushLock})
 	 */
-	private PrintWriter serverOutPW;
+	private int pendingLines;
+
+	/**
+	 * Time (in nanoseconds) the first buffered line has been buffered
+	 * (guarded by {@link #flushLock})
+	 */
+	private long firstPendingTime;
+
+	/**
+	 * Flusher run state: true while the run loop runs (guarded by
+	 * {@link #flushLock})
+	 */
+	private boolean flushing;
+
+	/**
+	 * Reconnector reopening the connection to server when lost (or null)
+	 */
+	private volatile Reconnector reconnector;
+
+	/**
+	 * Number of lines written to server per flush
+	 */
+	private final Distribution linesPerFlush;
 
 	/**
 	 * Common Run execution status between {@link UserHandler} and
@@ -54,6 +121,10 @@ class UserHandler implements Runnable
 	{
 		logger = LoggerFactory.getParentLogger(getClass(), parentLogger,
 				parentLogger.getLevel());
+		flushLock = new Object();
+		pendingLines = 0;
+		firstPendingTime = 0;
+		flushing = false;
 
 		/*
 		 * User input stream reader instantiation: userInBR created on the
@@ -87,9 +158,10 @@ class UserHandler implements Runnable
 			logger.info("UserHandler: creating server output print writer ... ");
 
 			/*
-			 *  PrintWriter creation on server output stream with autoFlush
+			 *  PrintWriter creation on a buffered server output stream
+			 *  without autoFlush: lines are flushed by the run loop
 			 */
-			serverOutPW = new PrintWriter(out, true);
+			serverOutPW = createServerWriter(out);
 		}
 		else
 		{
@@ -107,6 +179,44 @@ class UserHandler implements Runnable
 			logger.severe("ServerHandler: null common run " + Failure.OTHER);
 			System.exit(Failure.OTHER.toInteger());
 		}
+
+		linesPerFlush = new Distribution("lines per flush");
+		reconnector = null;
+	}
+
+	/**
+	 * Sets the reconnector reopening the connection to server when lost
+	 * (which is closed when the user leaves)
+	 * @param reconnector the reconnector
+	 */
+	public void setReconnector(Reconnector reconnector)
+	{
+		this.reconnector = reconnector;
+	}
+
+	/**
+	 * Replaces the output stream to server (once reconnected to server).
+	 * Lines buffered for the previous stream are dropped.
+	 * @param out the new output stream to server
+	 */
+	public void setServerOutput(OutputStream out)
+	{
+		logger.info("UserHandler: replacing server output print writer ... ");
+		synchronized (flushLock)
+		{
+			serverOutPW = createServerWriter(out);
+			pendingLines = 0;
+		}
+	}
+
+	/**
+	 * Lines per flush accessor
+	 * @return the distribution of the number of lines written to server per
+	 * flush
+	 */
+	public Distribution getLinesPerFlush()
+	{
+		return linesPerFlush;
 	}
 
 	/**
@@ -119,11 +229,27 @@ class UserHandler implements Runnable
 	{
 		String userInput = null;
 
+		/*
+		 * Launch the flusher sending buffered lines once too old, since the
+		 * run loop might be blocked reading the next line
+		 */
+		synchronized (flushLock)
+		{
+			flushing = true;
+		}
+		Thread flusher = new Thread(this::runFlusher);
+		flusher.setName("UserHandler Flusher Thread");
+		flusher.setDaemon(true);
+		flusher.start();
+
 		/*
 		 * Main processing loop:
 		 * 	- read line from userInBR
 		 * 	- if the line is non null then
-		 * 		- send it to serverOutPW
+		 * 		- buffer it in serverOutPW
+		 * 		- flush buffered lines when there is no more user input
+		 * 		available, or too many lines, or the first buffered line is
+		 * 		too old (otherwise the flusher will)
 		 * 		- also check for special commannds such as byeCmd from
 		 * 		the Vocabulary
 		 */
@@ -146,22 +272,59 @@ class UserHandler implements Runnable
 
 			if (userInput != null)
 			{
+				boolean bye = userInput.toLowerCase().equals(Vocabulary.byeCmd);
+				if (bye && (reconnector != null))
+				{
+					// server closing the connection is expected from now on
+					reconnector.close();
+				}
+
+				boolean error = false;
+				synchronized (flushLock)
+				{
+					/*
+					 *  Buffers user input in the server print writer (the
+					 *  flusher is woken up by the first buffered line)
+					 */
+					serverOutPW.println(userInput);
+					if (pendingLines == 0)
+					{
+						firstPendingTime = System.nanoTime();
+						flushLock.notifyAll();
+					}
+					pendingLines++;
+
+					/*
+					 * Sends buffered lines to server and check for errors
+					 */
+					if (bye
+						|| (pendingLines >= MAX_LINES_PER_FLUSH)
+						|| ((System.nanoTime() - firstPendingTime) >= MAX_FLUSH_DELAY)
+						|| !userInputReady())
+					{
+						error = !flushLines();
+					}
+				}
+
 				/*
-				 *  Sends user input to server using the server print writer
-				 * and check for errors (in such case log severe and break loop)
+				 * In case of error log severe and break loop unless
+				 * reconnecting
 				 */
-				serverOutPW.println(userInput);
-				if (serverOutPW.checkError())
+				if (error)
 				{
-					logger.severe("UserHandler: serverOutPW has errors");
-					break;
+					if (bye || (reconnector == null) || reconnector.isClosed())
+					{
+						break;
+					}
+					logger.warning("UserHandler: lines dropped while "
+						+ "reconnecting to server");
 				}
 
 				/*
 				 *  check if user has typed the Vocabulary.byeCmd from the Vocabulary
 				 * and if so break the loop
 				 */
-				if (userInput.toLowerCase().equals(Vocabulary.byeCmd))
+				if (bye)
 				{
 					break;
 				}
@@ -173,6 +336,16 @@ class UserHandler implements Runnable
 			}
 		}
 
+		synchronized (flushLock)
+		{
+			if (pendingLines > 0)
+			{
+				flushLines();
+			}
+			flushing = false;
+			flushLock.notifyAll();
+		}
+
 		if (commonRun.booleanValue())
 		{
 			logger.info("UserHandler: changing run state at the end ... ");
@@ -184,11 +357,96 @@ class UserHandler implements Runnable
 		}
 	}
 
+	/**
+	 * Flusher run loop: flushes buffered lines once the first one is
+	 * {@link #MAX_FLUSH_DELAY} old when the run loop did not (because it is
+	 * waiting for the end of a line), until the run loop ends
+	 */
+	private void runFlusher()
+	{
+		synchronized (flushLock)
+		{
+			while (flushing)
+			{
+				try
+				{
+					long delay = (firstPendingTime + MAX_FLUSH_DELAY) - System.nanoTime();
+					if (pendingLines == 0)
+					{
+						flushLock.wait();
+					}
+					else if (delay > 0)
+					{
+						TimeUnit.NANOSECONDS.timedWait(flushLock, delay);
+					}
+					else if (!flushLines())
+					{
+						logger.warning("UserHandler: buffered lines dropped");
+					}
+				}
+				catch (InterruptedException e)
+				{
+					logger.warning("UserHandler: flusher interrupted");
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a print writer on a buffered server output stream without
+	 * autoFlush: lines are flushed by the run loop
+	 * @param out the output stream to server
+	 * @return a new print writer to server
+	 */
+	private static PrintWriter createServerWriter(OutputStream out)
+	{
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(out),
+		                                          WRITE_BUFFER_SIZE));
+	}
+
+	/**
+	 * Checks if more user input can be read without blocking
+	 * @return true if user input is available, false otherwise or if an
+	 * error occurred (in which case buffered lines should be flushed)
+	 */
+	private boolean userInputReady()
+	{
+		try
+		{
+			return userInBR.ready();
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Flushes buffered lines to server and records their number (with
+	 * {@link #flushLock} held)
+	 * @return true if lines have been sent, false if server output has errors
+	 */
+	private boolean flushLines()
+	{
+		linesPerFlush.record(pendingLines);
+		pendingLines = 0;
+		if (serverOutPW.checkError()) // checkError flushes serverOutPW
+		{
+			logger.severe("UserHandler: serverOutPW has errors");
+			return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Streams cleanup and close
 	 */
 	public void cleanup()
 	{
+		logger.info("UserHandler: " + linesPerFlush);
+
 		logger.info("UserHandler: closing user input stream reader ... ");
 		// Input Stream reader close. If an exception occur log severe
 		try
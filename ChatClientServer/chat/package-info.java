@@ -1,10 +1,12 @@
 package chat;
 
 /**
- * Package containig all components of a chat system and several utility classes
+ * Package containig all components of a chat system (client and server) and several utility classes
  * such as
  * {@link chat.Failure} containing possible errors, {@link chat.UserOutputType}
  * defining the kind of messages managed by the client (text or objects) and
  * {@link chat.Vocabulary} containing special commands that the user can use
- * such as "bye" to quit client or "kick" to kick other users
+ * such as "bye" to quit client or "kick" to kick other users and
+ * {@link chat.MessageCodec} a compact binary encoding of
+ * {@link models.Message}s
  */
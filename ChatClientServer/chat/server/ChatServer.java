@@ -0,0 +1,513 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import chat.Capabilities;
+import chat.Failure;
+import chat.Vocabulary;
+import logger.LoggerFactory;
+import models.Message;
+
+/**
+ * Chat Server main class, contains
+ * <ul>
+ * 	<li>A server socket channel accepting clients connections</li>
+ * 	<li>Several {@link ServerReactor}s driving clients connections (one
+ * 	selector thread per reactor), new connections are spread over reactors
+ * 	in a round robin fashion</li>
+ * 	<li>The set of named clients and the {@link History} of all broadcasted
+ * 	messages</li>
+ * </ul>
+ * The server speaks the same protocol as {@link chat.client.ChatClient}:
+ * a name line, then text lines in and {@link Message}s out, plus the
+ * {@link Vocabulary} commands. Catch ups (either complete or since a
+ * sequence number or a date) are sent in pages of {@link #CATCH_UP_PAGE}
+ * messages (or of the page size chosen during the client's handshake), the
+ * next page being queued once the previous one has been (almost) written.
+ * Each client may offer its {@link Capabilities} on the line following its
+ * name ({@link Vocabulary#helloCmd}): the server chooses the codec (binary
+ * frames or serialized objects) and the features to use for this client
+ * ({@link Capabilities#choose(Capabilities, boolean)}) and replies with a
+ * {@link Vocabulary#helloCmd} line preceding the stream header. Clients
+ * which offer nothing get the server's default codec and
+ * {@link Capabilities#LEGACY} capabilities.
+ * Broadcasted messages are numbered from 1 by each server instance, whose
+ * epoch (its start time) is sent with the chosen capabilities so that
+ * reconnecting clients can tell a restarted server from the one they were
+ * connected to.
+ * @author x0wass
+ */
+public class ChatServer implements Runnable
+{
+	/**
+	 * Number of history messages sent at once during a catch up (unless
+	 * another page size has been negotiated)
+	 */
+	static final int CATCH_UP_PAGE = 256;
+
+	/**
+	 * Maximum number of history messages sent at once during a catch up
+	 * which can be negotiated by a client
+	 */
+	static final int MAX_CATCH_UP_PAGE = 4096;
+
+	/**
+	 * Server socket channel accepting connections
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	/**
+	 * Reactors driving clients connections
+	 */
+	private final ServerReactor[] reactors;
+
+	/**
+	 * Index of the reactor receiving the next accepted connection
+	 */
+	private int nextReactor;
+
+	/**
+	 * Named clients
+	 */
+	private final Map<String, ClientConnection> clients;
+
+	/**
+	 * History of all broadcasted messages, kept encoded (guarded by this)
+	 */
+	private final History history;
+
+	/**
+	 * Names of users allowed to use {@link Vocabulary#kickCmd} and
+	 * {@link Vocabulary#killCmd} (everybody is allowed when empty)
+	 */
+	private final Set<String> superUsers;
+
+	/**
+	 * Indicates messages are sent as {@link chat.MessageCodec} frames
+	 * instead of serialized objects to clients which did not choose a codec
+	 */
+	private final boolean binaryFrames;
+
+	/**
+	 * Header sent before any message to connections receiving binary frames
+	 */
+	private final ByteBuffer framesHeader;
+
+	/**
+	 * Header sent before any message to connections receiving serialized
+	 * objects
+	 */
+	private final ByteBuffer objectsHeader;
+
+	/**
+	 * Epoch of this server instance (its start time in epoch millis):
+	 * sequence numbers are only meaningful within an epoch
+	 */
+	private final long epoch;
+
+	/**
+	 * Sequence number of the last broadcasted message (guarded by this, 0 if
+	 * none)
+	 */
+	private long sequence;
+
+	/**
+	 * Run state of the server
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Logger used to display info|error|warning messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Chat server constructor: binds the server socket and creates reactors
+	 * @param port the port to listen to
+	 * @param reactorCount the number of reactors (selector threads)
+	 * @param binaryFrames true to send {@link chat.MessageCodec} frames,
+	 * false to send serialized {@link Message}s to clients which do not
+	 * choose a codec
+	 * @param superUsers names of users allowed to kick and kill (may be
+	 * empty)
+	 * @param parentLogger parent logger
+	 * @throws IOException if the server socket or the reactors can't be
+	 * created
+	 */
+	public ChatServer(int port,
+	                  int reactorCount,
+	                  boolean binaryFrames,
+	                  Collection<String> superUsers,
+	                  Logger parentLogger)
+	    throws IOException
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		this.binaryFrames = binaryFrames;
+		this.superUsers = new TreeSet<String>(superUsers);
+		clients = new ConcurrentHashMap<String, ClientConnection>();
+		history = new History();
+		epoch = System.currentTimeMillis();
+		sequence = 0;
+		framesHeader = EncodedMessage.streamHeader(true).asReadOnlyBuffer();
+		objectsHeader = EncodedMessage.streamHeader(false).asReadOnlyBuffer();
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		serverChannel.bind(new InetSocketAddress(port), 1024);
+		logger.info("ChatServer: listening on port " + port);
+
+		reactors = new ServerReactor[Math.max(1, reactorCount)];
+		for (int i = 0; i < reactors.length; i++)
+		{
+			reactors[i] = new ServerReactor(this, logger);
+		}
+		nextReactor = 0;
+		running = true;
+	}
+
+	/**
+	 * Logger accessor (used by connections)
+	 * @return the server's logger
+	 */
+	Logger getLogger()
+	{
+		return logger;
+	}
+
+	/**
+	 * Indicates if messages are sent as binary frames by default
+	 * @return true if messages are sent as {@link chat.MessageCodec} frames
+	 * to clients which did not choose a codec
+	 */
+	boolean usesBinaryFrames()
+	{
+		return binaryFrames;
+	}
+
+	/**
+	 * Capabilities accessor
+	 * @return the capabilities supported by this server (both codecs,
+	 * compressed catch ups, delta catch ups, close signals and catch up pages
+	 * up to {@link #MAX_CATCH_UP_PAGE} messages) along with our epoch
+	 */
+	Capabilities getCapabilities()
+	{
+		return new Capabilities(true, true, true, true, true, MAX_CATCH_UP_PAGE, epoch);
+	}
+
+	/**
+	 * Chooses the capabilities to use for a client
+	 * @param offer the capabilities offered by the client
+	 * @return the chosen capabilities (with a single codec and our epoch)
+	 */
+	Capabilities choose(Capabilities offer)
+	{
+		return getCapabilities().choose(offer, binaryFrames);
+	}
+
+	/**
+	 * Stream header accessor (used by connections once their codec is known)
+	 * @param binary true for the header of binary frames, false for the
+	 * header of serialized objects
+	 * @return a new read-only buffer containing the header of the messages
+	 * stream
+	 */
+	ByteBuffer streamHeader(boolean binary)
+	{
+		return binary ? framesHeader.duplicate() : objectsHeader.duplicate();
+	}
+
+	/**
+	 * Number of named clients
+	 * @return the number of clients currently registered
+	 */
+	public int getClientCount()
+	{
+		return clients.size();
+	}
+
+	/**
+	 * Run loop: launch reactors then accept connections and hand them to
+	 * reactors until the server is shut down
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		Thread[] threads = new Thread[reactors.length];
+		for (int i = 0; i < reactors.length; i++)
+		{
+			threads[i] = new Thread(reactors[i]);
+			threads[i].setName("ChatServer Reactor " + i);
+			threads[i].start();
+		}
+
+		while (running)
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = serverChannel.accept();
+			}
+			catch (ClosedChannelException e)
+			{
+				break;
+			}
+			catch (IOException e)
+			{
+				logger.warning("ChatServer: " + Failure.SERVER_CONNECTION
+					+ ": " + e.getLocalizedMessage());
+				continue;
+			}
+
+			reactors[nextReactor].accept(channel);
+			nextReactor = (nextReactor + 1) % reactors.length;
+		}
+
+		shutdown();
+		for (int i = 0; i < threads.length; i++)
+		{
+			try
+			{
+				threads[i].join();
+				logger.info(threads[i].getName() + " terminated");
+			}
+			catch (InterruptedException e)
+			{
+				logger.warning("Join " + threads[i].getName() + " interrupted");
+			}
+		}
+
+		logger.info("ChatServer: terminated");
+	}
+
+	/**
+	 * Shuts down the server: stop accepting connections and stop all
+	 * reactors (which write what they can of pending messages, such as the
+	 * {@link Vocabulary#killedNotice} and the close signals, then close their
+	 * connections)
+	 */
+	public void shutdown()
+	{
+		if (!running)
+		{
+			return;
+		}
+		running = false;
+
+		logger.info("ChatServer: shutting down ... ");
+		try
+		{
+			serverChannel.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatServer: closing server channel failed: "
+				+ e.getLocalizedMessage());
+		}
+
+		for (ServerReactor reactor : reactors)
+		{
+			reactor.shutdown();
+		}
+	}
+
+	/**
+	 * Registers a named client
+	 * @param name the client's name
+	 * @param connection the client's connection
+	 * @return true if the client has been registered, false if the name is
+	 * already used
+	 */
+	boolean register(String name, ClientConnection connection)
+	{
+		if (clients.putIfAbsent(name, connection) != null)
+		{
+			return false;
+		}
+
+		logger.info("ChatServer: " + name + " logged in");
+		broadcast(new Message(name + " logged in"));
+		return true;
+	}
+
+	/**
+	 * Unregisters a closed client
+	 * @param connection the closed connection
+	 */
+	void unregister(ClientConnection connection)
+	{
+		String name = connection.getName();
+		if ((name != null) && clients.remove(name, connection))
+		{
+			logger.info("ChatServer: " + name + " logged out");
+			if (running)
+			{
+				broadcast(new Message(name + " logged out"));
+			}
+		}
+	}
+
+	/**
+	 * Processes a line sent by a named client: either a {@link Vocabulary}
+	 * command or a text to broadcast
+	 * @param connection the client's connection
+	 * @param line the line sent by the client
+	 */
+	void process(ClientConnection connection, String line)
+	{
+		String name = connection.getName();
+		String command = line.trim().toLowerCase();
+
+		if (command.equals(Vocabulary.byeCmd))
+		{
+			connection.closeAfterWrites();
+		}
+		else if (command.equals(Vocabulary.catchUpCmd))
+		{
+			connection.catchUp(0, historySize());
+		}
+		else if (command.startsWith(Vocabulary.catchUpCmd + " " + Vocabulary.sinceKeyword + " "))
+		{
+			catchUpSince(connection,
+			             command.substring(Vocabulary.catchUpCmd.length()
+			                               + Vocabulary.sinceKeyword.length() + 2).trim());
+		}
+		else if (command.equals(Vocabulary.killCmd) && isSuperUser(name))
+		{
+			logger.info("ChatServer: killed by " + name);
+			broadcast(new Message(Vocabulary.killedNotice + name));
+			for (ClientConnection client : clients.values())
+			{
+				client.closeWithSignal();
+			}
+			shutdown();
+		}
+		else if (command.startsWith(Vocabulary.kickCmd + " ") && isSuperUser(name))
+		{
+			String kicked = line.trim().substring(Vocabulary.kickCmd.length()).trim();
+			ClientConnection kickedConnection = clients.get(kicked);
+			if (kickedConnection != null)
+			{
+				broadcast(new Message(kicked + Vocabulary.kickedNotice + name));
+				kickedConnection.closeWithSignal();
+			}
+		}
+		else
+		{
+			broadcast(new Message(line, name));
+		}
+	}
+
+	/**
+	 * Checks if a user is allowed to use super user commands
+	 * @param name the user's name
+	 * @return true if there is no super user or if name is a super user
+	 */
+	private boolean isSuperUser(String name)
+	{
+		return superUsers.isEmpty() || superUsers.contains(name);
+	}
+
+	/**
+	 * Assigns the next sequence number to a message, records it in history
+	 * and sends it to all named clients (it is encoded at most once per
+	 * codec).
+	 * Synchronized so that all clients receive messages in the same order.
+	 * @param message the message to broadcast
+	 */
+	synchronized void broadcast(Message message)
+	{
+		sequence++;
+		EncodedMessage encoded = new EncodedMessage(message.withSequence(sequence));
+		history.add(encoded);
+		for (ClientConnection client : clients.values())
+		{
+			client.send(encoded);
+		}
+	}
+
+	/**
+	 * Starts a catch up of the messages following a sequence number or a date
+	 * @param connection the client's connection
+	 * @param since the last sequence number or "@" followed by the date
+	 * (epoch millis) of the last message seen by the client
+	 */
+	private void catchUpSince(ClientConnection connection, String since)
+	{
+		int first;
+		int end;
+		try
+		{
+			synchronized (this)
+			{
+				if (since.startsWith(Vocabulary.sinceDatePrefix))
+				{
+					first = history.indexAfterDate(Long.parseLong(since.substring(
+						Vocabulary.sinceDatePrefix.length())));
+				}
+				else
+				{
+					first = history.indexAfterSequence(Long.parseLong(since));
+				}
+				end = history.size();
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			logger.warning("ChatServer: invalid catch up from "
+				+ connection.getName() + ": " + since);
+			return;
+		}
+
+		logger.fine("ChatServer: catch up of " + (end - first) + " messages for "
+			+ connection.getName());
+		connection.catchUp(first, end);
+	}
+
+	/**
+	 * Number of recorded messages
+	 * @return the number of messages in history
+	 */
+	synchronized int historySize()
+	{
+		return history.size();
+	}
+
+	/**
+	 * Sends a page of recorded messages to a client (the page is collected
+	 * under the lock of this server then evt compressed and sent without it)
+	 * @param connection the client's connection
+	 * @param first the index of the first message to send
+	 * @param end the index following the last message to catch up
+	 * @return the index following the last sent message
+	 */
+	int sendHistory(ClientConnection connection, int first, int end)
+	{
+		int last = Math.min(end, first + connection.getCatchUpPage());
+		EncodedMessage[] page = new EncodedMessage[Math.max(0, last - first)];
+		synchronized (this)
+		{
+			for (int i = first; i < last; i++)
+			{
+				page[i - first] = history.get(i);
+			}
+		}
+		connection.sendPage(page);
+		return last;
+	}
+}
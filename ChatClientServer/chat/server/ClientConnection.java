@@ -0,0 +1,768 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.Capabilities;
+import chat.Failure;
+import chat.MessageCodec;
+import chat.Vocabulary;
+
+/**
+ * Server side state of a connected client.
+ * Implements the protocol spoken by {@link chat.client.ChatClient}:
+ * <ul>
+ * <li>The first line received is the client's name, evt followed (in the
+ * same read) by the capabilities offered by the client
+ * ({@link Vocabulary#helloCmd})</li>
+ * <li>Each following line is either a command from
+ * {@link chat.Vocabulary} or a text to broadcast</li>
+ * <li>Messages sent to the client are serialized {@link models.Message}
+ * objects or {@link MessageCodec} frames</li>
+ * </ul>
+ * Nothing is written to the client before its name has been received: the
+ * codec and capabilities are then chosen by the server among the ones
+ * offered by the client, and sent back on a {@link Vocabulary#helloCmd}
+ * line followed by the stream header of the chosen codec. Clients which did
+ * not offer anything right after their name (legacy clients) only receive
+ * the stream header of the server's default codec.
+ * Messages are encoded once by the server ({@link EncodedMessage}) and
+ * queued here as read-only duplicates of the shared encoded bytes, which are
+ * copied to the reactor's shared direct write buffer when the socket is
+ * writable.
+ * When compressed catch ups have been chosen (along with binary frames),
+ * catch up pages are compressed into a single frame by the reactor's
+ * {@link MessageCodec.Compressor}, while live messages are always sent as is
+ * to keep their latency low.
+ * All methods except {@link #send(EncodedMessage)},
+ * {@link #closeAfterWrites()}, {@link #closeWithSignal()} and
+ * {@link #close()} are called on the thread
+ * of the connection's {@link ServerReactor}.
+ * @author x0wass
+ */
+class ClientConnection
+{
+	/**
+	 * Maximum number of pending messages before a slow client is
+	 * disconnected
+	 */
+	private static final int MAX_PENDING_MESSAGES = 1024 * 1024;
+
+	/**
+	 * Maximum line length accepted from a client
+	 */
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	/**
+	 * Minimum number of messages of a catch up page to compress it (smaller
+	 * pages are not worth it)
+	 */
+	private static final int MIN_COMPRESSED_PAGE = 8;
+
+	/**
+	 * Number of queued messages below which the next catch up page is
+	 * queued: live messages may keep the outbox from ever being empty, while
+	 * a page should not be queued on top of a large backlog
+	 */
+	private static final int CATCH_UP_LOW_WATER = 64;
+
+	/**
+	 * The server this client is connected to
+	 */
+	private final ChatServer server;
+
+	/**
+	 * The reactor driving this connection
+	 */
+	private final ServerReactor reactor;
+
+	/**
+	 * Non blocking channel to the client
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Selection key of {@link #channel}
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Client's name (null until the first line has been received)
+	 */
+	private String name;
+
+	/**
+	 * Bytes of an incomplete line (null when there is none)
+	 */
+	private byte[] partialLine;
+
+	/**
+	 * Number of bytes in {@link #partialLine}
+	 */
+	private int partialLength;
+
+	/**
+	 * Encoded messages waiting to be written to the client (filled by any
+	 * thread)
+	 */
+	private final Queue<ByteBuffer> outbox;
+
+	/**
+	 * Number of messages in {@link #outbox}
+	 */
+	private final AtomicInteger outboxSize;
+
+	/**
+	 * Indicates a write has been scheduled on the reactor
+	 */
+	private final AtomicBoolean writeScheduled;
+
+	/**
+	 * Buffers being written (only used on the reactor thread), starts with
+	 * the handshake reply and the stream header
+	 */
+	private final Deque<ByteBuffer> inFlightWrites;
+
+	/**
+	 * Index (in the server's history) of the next message to send during a
+	 * catch up (reactor thread only)
+	 */
+	private int catchUpNext;
+
+	/**
+	 * Index (in the server's history) following the last message to send
+	 * during a catch up (reactor thread only)
+	 */
+	private int catchUpEnd;
+
+	/**
+	 * Indicates messages are sent as {@link MessageCodec} frames instead of
+	 * serialized objects (set before the client is registered on the server)
+	 */
+	private boolean binaryFrames;
+
+	/**
+	 * Indicates the client chose to receive a close signal before being
+	 * closed on purpose (set before the client is registered on the server)
+	 */
+	private boolean closeSignal;
+
+	/**
+	 * Indicates the handshake reply and the stream header have been queued:
+	 * nothing is written before (reactor thread only)
+	 */
+	private boolean streamStarted;
+
+	/**
+	 * Compressed catch ups state (reactor thread only)
+	 */
+	private boolean compressedCatchUp;
+
+	/**
+	 * Number of history messages sent at once during a catch up (reactor
+	 * thread only)
+	 */
+	private int catchUpPage;
+
+	/**
+	 * Indicates the next line might offer the client's capabilities (the
+	 * first line following the name when read along with the name, reactor
+	 * thread only)
+	 */
+	private boolean helloExpected;
+
+	/**
+	 * Closing state: the connection is closed once all pending messages have
+	 * been written
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * Closed state
+	 */
+	private final AtomicBoolean closed;
+
+	/**
+	 * Connection constructor
+	 * @param server the server this client is connected to
+	 * @param reactor the reactor driving this connection
+	 * @param channel the accepted channel
+	 */
+	ClientConnection(ChatServer server,
+	                 ServerReactor reactor,
+	                 SocketChannel channel)
+	{
+		this.server = server;
+		this.reactor = reactor;
+		this.channel = channel;
+		key = null;
+		name = null;
+		partialLine = null;
+		partialLength = 0;
+		outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+		outboxSize = new AtomicInteger(0);
+		writeScheduled = new AtomicBoolean(false);
+		inFlightWrites = new ArrayDeque<ByteBuffer>();
+		catchUpNext = 0;
+		catchUpEnd = 0;
+		binaryFrames = server.usesBinaryFrames();
+		closeSignal = false;
+		streamStarted = false;
+		compressedCatchUp = false;
+		catchUpPage = ChatServer.CATCH_UP_PAGE;
+		helloExpected = false;
+		closing = false;
+		closed = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Client's name accessor
+	 * @return the name of the client or null if it has not been received yet
+	 */
+	String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Registers {@link #channel} on the reactor's selector (nothing is
+	 * written until the client's name has been received)
+	 * @param selector the reactor's selector
+	 * @throws ClosedChannelException if the channel has been closed
+	 */
+	void register(Selector selector) throws ClosedChannelException
+	{
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Queues an encoded message to be sent to this client (thread safe).
+	 * A client that does not read its messages fast enough is disconnected.
+	 * @param message the encoded message to send
+	 */
+	void send(EncodedMessage message)
+	{
+		try
+		{
+			send(message.duplicate(binaryFrames));
+		}
+		catch (IOException e)
+		{
+			server.getLogger().warning("ClientConnection: unable to encode message for "
+				+ name + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Queues a page of catch up messages to be sent to this client (reactor
+	 * thread only), compressed into a single frame if compressed catch ups
+	 * have been chosen for this client and if compression reduces its size
+	 * @param page the encoded messages to send
+	 */
+	void sendPage(EncodedMessage[] page)
+	{
+		if (compressedCatchUp && (page.length >= MIN_COMPRESSED_PAGE))
+		{
+			ByteBuffer[] frames = new ByteBuffer[page.length];
+			for (int i = 0; i < page.length; i++)
+			{
+				frames[i] = duplicateFrame(page[i]);
+			}
+			byte[] compressed = reactor.getCompressor().compress(frames);
+			if (compressed != null)
+			{
+				send(ByteBuffer.wrap(compressed).asReadOnlyBuffer());
+				return;
+			}
+		}
+
+		for (EncodedMessage message : page)
+		{
+			send(message);
+		}
+	}
+
+	/**
+	 * Binary frame of an encoded message (binary frames can't fail to encode)
+	 * @param message the encoded message
+	 * @return a buffer containing the message's frame
+	 */
+	private static ByteBuffer duplicateFrame(EncodedMessage message)
+	{
+		try
+		{
+			return message.duplicate(true);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Catch up page size accessor (reactor thread only)
+	 * @return the number of history messages sent at once during a catch up
+	 */
+	int getCatchUpPage()
+	{
+		return catchUpPage;
+	}
+
+	/**
+	 * Queues encoded bytes to be sent to this client (thread safe).
+	 * A client that does not read its messages fast enough is disconnected.
+	 * @param bytes the encoded bytes to send
+	 */
+	private void send(ByteBuffer bytes)
+	{
+		if (closed.get())
+		{
+			return;
+		}
+
+		if (outboxSize.incrementAndGet() > MAX_PENDING_MESSAGES)
+		{
+			server.getLogger().warning("ClientConnection: " + name
+				+ " is too slow, disconnecting");
+			close();
+			return;
+		}
+
+		outbox.add(bytes);
+		if (writeScheduled.compareAndSet(false, true))
+		{
+			reactor.execute(this::enableWrite);
+		}
+	}
+
+	/**
+	 * Starts a catch up of messages from the server's history (replacing any
+	 * catch up in progress). The first page is sent right away and next pages
+	 * are sent by {@link #write(ByteBuffer)} each time fewer than
+	 * {@link #CATCH_UP_LOW_WATER} messages are queued, so that a long catch
+	 * up neither fills the outbox nor delays live messages, and still
+	 * progresses under live traffic.
+	 * @param first the index of the first message to send
+	 * @param end the index following the last message to send
+	 */
+	void catchUp(int first, int end)
+	{
+		catchUpNext = first;
+		catchUpEnd = end;
+		if (catchUpNext < catchUpEnd)
+		{
+			catchUpNext = server.sendHistory(this, catchUpNext, catchUpEnd);
+		}
+	}
+
+	/**
+	 * Closes this connection once all pending messages have been written
+	 * (thread safe). Lines received in the meantime are ignored.
+	 */
+	void closeAfterWrites()
+	{
+		closing = true;
+		if (writeScheduled.compareAndSet(false, true))
+		{
+			reactor.execute(this::enableWrite);
+		}
+	}
+
+	/**
+	 * Closes this connection on purpose (the client has been kicked or the
+	 * server is killed) once all pending messages have been written, these
+	 * being followed by a close signal if the client chose it (thread safe)
+	 */
+	void closeWithSignal()
+	{
+		if (closeSignal)
+		{
+			send(EncodedMessage.closeSignal(binaryFrames));
+		}
+		closeAfterWrites();
+	}
+
+	/**
+	 * Writes what can be written of pending messages without blocking then
+	 * closes this connection (reactor thread only, when the reactor stops) so
+	 * that last notices reach the client
+	 * @param writeBuffer the reactor's shared write buffer
+	 */
+	void flushAndClose(ByteBuffer writeBuffer)
+	{
+		closing = true;
+		try
+		{
+			write(writeBuffer);
+		}
+		catch (IOException e)
+		{
+			server.getLogger().fine("ClientConnection: " + name
+				+ " last write failed: " + e.getLocalizedMessage());
+		}
+		close();
+	}
+
+	/**
+	 * Handles ready operations on {@link #channel}
+	 * @param readyKey the selected key
+	 * @param readBuffer the reactor's shared read buffer
+	 * @param writeBuffer the reactor's shared write buffer
+	 */
+	void handle(SelectionKey readyKey, ByteBuffer readBuffer, ByteBuffer writeBuffer)
+	{
+		try
+		{
+			if (readyKey.isValid() && readyKey.isReadable())
+			{
+				read(readBuffer);
+			}
+			if (readyKey.isValid() && readyKey.isWritable())
+			{
+				write(writeBuffer);
+			}
+		}
+		catch (IOException e)
+		{
+			server.getLogger().fine("ClientConnection: " + name + " I/O error: "
+				+ e.getLocalizedMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Enables write interest on {@link #key} (run on the reactor thread)
+	 */
+	private void enableWrite()
+	{
+		writeScheduled.set(false);
+		if ((key != null) && key.isValid())
+		{
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads available bytes from the client and processes all complete lines
+	 * @param readBuffer the reactor's shared read buffer
+	 * @throws IOException if reading fails
+	 */
+	private void read(ByteBuffer readBuffer) throws IOException
+	{
+		readBuffer.clear();
+		int count = channel.read(readBuffer);
+		if (count < 0)
+		{
+			close();
+			return;
+		}
+		readBuffer.flip();
+
+		while (readBuffer.hasRemaining() && !closing && !closed.get())
+		{
+			int start = readBuffer.position();
+			int end = start;
+			while ((end < readBuffer.limit()) && (readBuffer.get(end) != '\n'))
+			{
+				end++;
+			}
+
+			appendPartial(readBuffer, end - start);
+			if (end == readBuffer.limit())
+			{
+				// incomplete line: keep it until next read
+				break;
+			}
+			readBuffer.get(); // skip '\n'
+
+			int length = partialLength;
+			if ((length > 0) && (partialLine[length - 1] == '\r'))
+			{
+				length--;
+			}
+			String line = new String(partialLine, 0, length, Charset.defaultCharset());
+			partialLength = 0;
+			processLine(line);
+		}
+
+		if ((name != null) && !streamStarted && (partialLength == 0)
+			&& !closing && !closed.get())
+		{
+			// no offer came along with the name: legacy client
+			startStream(null);
+		}
+
+		/*
+		 * Release the line buffer of idle clients
+		 */
+		if ((partialLength == 0) && (partialLine != null)
+			&& (partialLine.length > 256))
+		{
+			partialLine = null;
+		}
+	}
+
+	/**
+	 * Appends bytes from the read buffer to {@link #partialLine}
+	 * @param readBuffer the buffer to read bytes from
+	 * @param count the number of bytes to append
+	 * @throws IOException if the line is too long
+	 */
+	private void appendPartial(ByteBuffer readBuffer, int count) throws IOException
+	{
+		int needed = partialLength + count;
+		if (needed > MAX_LINE_LENGTH)
+		{
+			throw new IOException("line too long");
+		}
+		if (partialLine == null)
+		{
+			partialLine = new byte[Math.max(needed, 128)];
+		}
+		else if (partialLine.length < needed)
+		{
+			partialLine = Arrays.copyOf(partialLine, Math.max(needed, partialLine.length * 2));
+		}
+		readBuffer.get(partialLine, partialLength, count);
+		partialLength = needed;
+	}
+
+	/**
+	 * Processes a line received from the client: the first line is the
+	 * client's name, the second one might offer the client's capabilities,
+	 * the following ones are commands or texts
+	 * @param line the received line
+	 */
+	private void processLine(String line)
+	{
+		if (name == null)
+		{
+			String candidate = line.trim();
+			if (candidate.isEmpty())
+			{
+				server.getLogger().warning("ClientConnection: "
+					+ Failure.NO_NAME_CLIENT + ": \"" + candidate + "\"");
+				close();
+				return;
+			}
+			name = candidate;
+			helloExpected = true;
+			return;
+		}
+
+		if (helloExpected)
+		{
+			helloExpected = false;
+			if (line.startsWith(Vocabulary.helloCmd + " "))
+			{
+				startStream(Capabilities.parse(line.substring(Vocabulary.helloCmd.length() + 1)));
+				return;
+			}
+			startStream(null);
+			if (closed.get())
+			{
+				return;
+			}
+		}
+
+		server.process(this, line);
+	}
+
+	/**
+	 * Chooses the codec and capabilities of this connection, registers the
+	 * client on the server then queues the handshake reply (if the client
+	 * offered its capabilities) and the stream header, which are written
+	 * before any message
+	 * @param offer the capabilities offered by the client, or null if it did
+	 * not offer anything (the server's default codec is then used along with
+	 * {@link Capabilities#LEGACY} capabilities)
+	 */
+	private void startStream(Capabilities offer)
+	{
+		helloExpected = false;
+		streamStarted = true;
+		ByteBuffer reply = null;
+		if (offer != null)
+		{
+			Capabilities chosen = server.choose(offer);
+			binaryFrames = chosen.isBinaryFrames();
+			compressedCatchUp = chosen.isDeflate();
+			closeSignal = chosen.isCloseSignal();
+			if (chosen.getCatchUpPage() > 0)
+			{
+				catchUpPage = chosen.getCatchUpPage();
+			}
+			reply = ByteBuffer.wrap((Vocabulary.helloCmd + " " + chosen + "\n")
+				.getBytes(StandardCharsets.US_ASCII));
+			server.getLogger().fine("ClientConnection: " + name + " offered "
+				+ offer + ", chose " + chosen);
+		}
+
+		if (!server.register(name, this))
+		{
+			server.getLogger().warning("ClientConnection: "
+				+ Failure.NO_NAME_CLIENT + ": \"" + name + "\" already used");
+			close();
+			return;
+		}
+
+		/*
+		 * Nothing has been written yet so the reply and the header precede
+		 * the messages already queued (such as our own logged in notice)
+		 */
+		if (reply != null)
+		{
+			inFlightWrites.add(reply);
+		}
+		inFlightWrites.add(server.streamHeader(binaryFrames));
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes pending messages until the socket buffer is full or there is
+	 * nothing left to write. Pending bytes are copied to the reactor's
+	 * direct write buffer and only the bytes accepted by the socket are
+	 * consumed from the pending buffers.
+	 * @param writeBuffer the reactor's shared write buffer
+	 * @throws IOException if writing fails
+	 */
+	private void write(ByteBuffer writeBuffer) throws IOException
+	{
+		if (!streamStarted)
+		{
+			// waiting for the client's name: messages wait in the outbox
+			if (closing)
+			{
+				close();
+			}
+			else
+			{
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			return;
+		}
+
+		while (true)
+		{
+			if (!closing && (catchUpNext < catchUpEnd)
+				&& (outboxSize.get() < CATCH_UP_LOW_WATER))
+			{
+				// previous catch up page (almost) written: queue next one
+				catchUpNext = server.sendHistory(this, catchUpNext, catchUpEnd);
+			}
+
+			/*
+			 * Fill the write buffer with in flight bytes then with queued
+			 * messages
+			 */
+			writeBuffer.clear();
+			for (ByteBuffer buffer : inFlightWrites)
+			{
+				if (!copy(buffer, writeBuffer))
+				{
+					break;
+				}
+			}
+			ByteBuffer buffer;
+			while (writeBuffer.hasRemaining() && ((buffer = outbox.poll()) != null))
+			{
+				outboxSize.decrementAndGet();
+				inFlightWrites.add(buffer);
+				copy(buffer, writeBuffer);
+			}
+			writeBuffer.flip();
+
+			if (!writeBuffer.hasRemaining())
+			{
+				if (closing)
+				{
+					close();
+				}
+				else
+				{
+					key.interestOps(SelectionKey.OP_READ);
+				}
+				return;
+			}
+
+			/*
+			 * Consume written bytes from in flight buffers
+			 */
+			int written = channel.write(writeBuffer);
+			while (written > 0)
+			{
+				buffer = inFlightWrites.peek();
+				int count = Math.min(buffer.remaining(), written);
+				buffer.position(buffer.position() + count);
+				written -= count;
+				if (!buffer.hasRemaining())
+				{
+					inFlightWrites.poll();
+				}
+			}
+
+			if (writeBuffer.hasRemaining())
+			{
+				// socket buffer is full, wait for next writable event
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Copies the remaining bytes of a buffer to the write buffer without
+	 * changing the source buffer's position
+	 * @param source the buffer to copy
+	 * @param writeBuffer the write buffer
+	 * @return true if all remaining bytes have been copied, false if the
+	 * write buffer is full
+	 */
+	private static boolean copy(ByteBuffer source, ByteBuffer writeBuffer)
+	{
+		int count = Math.min(source.remaining(), writeBuffer.remaining());
+		writeBuffer.put(writeBuffer.position(), source, source.position(), count);
+		writeBuffer.position(writeBuffer.position() + count);
+		return count == source.remaining();
+	}
+
+	/**
+	 * Closes this connection (thread safe) and unregisters it from the server
+	 */
+	void close()
+	{
+		if (!closed.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		if (key != null)
+		{
+			key.cancel();
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			server.getLogger().warning("ClientConnection: closing channel failed: "
+				+ e.getLocalizedMessage());
+		}
+
+		outbox.clear();
+		server.unregister(this);
+	}
+}
@@ -0,0 +1,136 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+
+import chat.MessageCodec;
+import models.Message;
+
+/**
+ * A {@link Message} encoded once for all clients of a {@link ChatServer}.
+ * The encoded bytes are immutable and shared by all connections through
+ * read-only {@link ByteBuffer} duplicates, so that broadcasting a message
+ * costs a single serialization per codec whatever the number of clients.
+ * Each codec's encoding is produced the first time a connection using this
+ * codec needs it (clients choose their codec during their handshake), and
+ * follows the stream header of its codec ({@link #streamHeader(boolean)}):
+ * <ul>
+ * <li>Serialized messages start with a reset marker so they can be decoded
+ * by any {@link java.io.ObjectInputStream} whatever was read before (the
+ * reader's back references table is cleared before each message)</li>
+ * <li>Binary messages are {@link MessageCodec} frames</li>
+ * </ul>
+ * @author x0wass
+ */
+class EncodedMessage
+{
+	/**
+	 * The encoded message
+	 */
+	private final Message message;
+
+	/**
+	 * Read-only buffer containing the message encoded as a binary frame
+	 * (guarded by this, null until first needed)
+	 */
+	private ByteBuffer frame;
+
+	/**
+	 * Read-only buffer containing the message encoded as a serialized object
+	 * (guarded by this, null until first needed)
+	 */
+	private ByteBuffer object;
+
+	/**
+	 * Encoded message constructor (nothing is encoded until a connection
+	 * needs it)
+	 * @param message the message to encode
+	 */
+	EncodedMessage(Message message)
+	{
+		this.message = message;
+		frame = null;
+		object = null;
+	}
+
+	/**
+	 * Encoded message accessor
+	 * @return the message encoded in this object
+	 */
+	Message getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * Creates a new read-only view of the encoded bytes, with its own
+	 * position, to be written to a single connection
+	 * @param binaryFrames true for the {@link MessageCodec} frame, false for
+	 * the serialized object
+	 * @return a buffer containing the encoded message
+	 * @throws IOException if the message can't be serialized
+	 */
+	synchronized ByteBuffer duplicate(boolean binaryFrames) throws IOException
+	{
+		if (binaryFrames)
+		{
+			if (frame == null)
+			{
+				frame = ByteBuffer.wrap(MessageCodec.encodeFrame(message)).asReadOnlyBuffer();
+			}
+			return frame.duplicate();
+		}
+
+		if (object == null)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			int headerLength = out.size();
+			oos.reset();
+			oos.writeObject(message);
+			oos.close();
+			byte[] encoded = out.toByteArray();
+			object = ByteBuffer.wrap(encoded,
+			                         headerLength,
+			                         encoded.length - headerLength).slice().asReadOnlyBuffer();
+		}
+		return object.duplicate();
+	}
+
+	/**
+	 * Creates the stream header sent once to each connection before any
+	 * encoded message
+	 * @param binaryFrames true for a {@link MessageCodec} stream, false for a
+	 * serialized objects stream
+	 * @return a new buffer containing the stream header
+	 * @throws IOException if the serialization header can't be produced
+	 */
+	static ByteBuffer streamHeader(boolean binaryFrames) throws IOException
+	{
+		if (binaryFrames)
+		{
+			return ByteBuffer.wrap(MessageCodec.STREAM_HEADER.clone());
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8);
+		new ObjectOutputStream(out).flush();
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	/**
+	 * Creates the close signal sent to connections which chose it right
+	 * before closing them on purpose
+	 * @param binaryFrames true for a {@link MessageCodec#CLOSE_FRAME}, false
+	 * for a null serialized object
+	 * @return a new read-only buffer containing the close signal
+	 */
+	static ByteBuffer closeSignal(boolean binaryFrames)
+	{
+		byte[] signal = (binaryFrames ? MessageCodec.encodeCloseFrame()
+		                              : new byte[] {ObjectStreamConstants.TC_NULL});
+		return ByteBuffer.wrap(signal).asReadOnlyBuffer();
+	}
+}
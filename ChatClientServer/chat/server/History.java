@@ -0,0 +1,144 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Indexed history of the messages broadcasted by a {@link ChatServer}, so
+ * that a catch up can start right after the last message a client has seen
+ * instead of replaying the whole history:
+ * <ul>
+ * <li>Messages are recorded in sequence order and their sequence numbers are
+ * consecutive, so the position of a sequence number is computed in O(1)</li>
+ * <li>The running maximum of messages dates is recorded along messages so
+ * that the first message after a date is found by binary search (messages
+ * dates might be slightly out of order since they are set by the thread
+ * which received them, so messages following a date might include a few
+ * older messages, which clients drop as duplicates)</li>
+ * </ul>
+ * This class is not thread safe (used under the lock of its server).
+ * @author x0wass
+ */
+class History
+{
+	/**
+	 * Initial capacity of {@link #maxDates}
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Recorded messages
+	 */
+	private final List<EncodedMessage> messages;
+
+	/**
+	 * Running maximum of messages dates (epoch millis)
+	 */
+	private long[] maxDates;
+
+	/**
+	 * Sequence number of the first recorded message
+	 */
+	private long firstSequence;
+
+	/**
+	 * Default constructor of an empty history
+	 */
+	History()
+	{
+		messages = new ArrayList<EncodedMessage>();
+		maxDates = new long[INITIAL_CAPACITY];
+		firstSequence = 0;
+	}
+
+	/**
+	 * Records a message
+	 * @param message the message to record, whose sequence number should
+	 * follow the one of the last recorded message
+	 * @throws IllegalArgumentException if the sequence number of the message
+	 * does not follow the one of the last recorded message
+	 */
+	void add(EncodedMessage message)
+	{
+		int size = messages.size();
+		long sequence = message.getMessage().getSequence();
+		if (size == 0)
+		{
+			firstSequence = sequence;
+		}
+		else if (sequence != (firstSequence + size))
+		{
+			throw new IllegalArgumentException("History: sequence " + sequence
+				+ " does not follow " + (firstSequence + size - 1));
+		}
+
+		if (size == maxDates.length)
+		{
+			maxDates = Arrays.copyOf(maxDates, size * 2);
+		}
+		long date = message.getMessage().getTime();
+		maxDates[size] = (size > 0 ? Math.max(maxDates[size - 1], date) : date);
+		messages.add(message);
+	}
+
+	/**
+	 * Number of recorded messages
+	 * @return the number of recorded messages
+	 */
+	int size()
+	{
+		return messages.size();
+	}
+
+	/**
+	 * Recorded message accessor
+	 * @param index the index of the message
+	 * @return the recorded message at this index
+	 */
+	EncodedMessage get(int index)
+	{
+		return messages.get(index);
+	}
+
+	/**
+	 * Index of the first message following a sequence number
+	 * @param sequence the last sequence number seen by a client
+	 * @return the index of the first message whose sequence number is greater
+	 * than sequence (or {@link #size()} if there is none)
+	 */
+	int indexAfterSequence(long sequence)
+	{
+		int size = messages.size();
+		if ((size == 0) || (sequence < firstSequence))
+		{
+			return 0;
+		}
+		return (int) Math.min(size, sequence - firstSequence + 1);
+	}
+
+	/**
+	 * Index of the first message following a date
+	 * @param date the date (epoch millis) of the last message seen by a client
+	 * @return the index of the first message which might be dated after date
+	 * (or {@link #size()} if there is none)
+	 */
+	int indexAfterDate(long date)
+	{
+		int low = 0;
+		int high = messages.size();
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (maxDates[middle] <= date)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,138 @@
+package chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.Failure;
+import logger.LoggerFactory;
+
+/**
+ * Chat server launcher: parses arguments and runs a {@link ChatServer}
+ * <ul>
+ * 	<li>-v | --verbose : for verbose setting</li>
+ * 	<li>-p | --port : port the server listens to</li>
+ * 	<li>-r | --reactors : number of reactors (selector threads)</li>
+ * 	<li>-b | --binary : send {@link chat.MessageCodec} frames instead of
+ * 	serialized messages to clients which do not choose a codec during
+ * 	their handshake</li>
+ * 	<li>-s | --super : name of a super user allowed to kick and kill
+ * 	(everybody is allowed when there is no super user)</li>
+ * </ul>
+ * @author x0wass
+ */
+public class RunChatServer
+{
+	/**
+	 * Default connection port number
+	 */
+	public static final int DEFAULTPORT = 1396;
+
+	/**
+	 * Main program to launch the chat server
+	 * @param args arguments to parse
+	 */
+	public static void main(String[] args)
+	{
+		boolean verbose = false;
+		int port = DEFAULTPORT;
+		int reactorCount = Runtime.getRuntime().availableProcessors();
+		boolean binary = false;
+		List<String> superUsers = new ArrayList<String>();
+
+		for (String arg : args)
+		{
+			if (arg.equals("--verbose") || arg.equals("-v"))
+			{
+				verbose = true;
+			}
+		}
+
+		Logger logger = LoggerFactory.getConsoleLogger(RunChatServer.class,
+		                                               (verbose ? Level.ALL : Level.INFO));
+
+		/*
+		 * Arguments parsing
+		 */
+		for (Iterator<String> argIt = List.of(args).iterator(); argIt.hasNext();)
+		{
+			String arg = argIt.next();
+			if (arg.equals("--port") || arg.equals("-p"))
+			{
+				Integer value = readInt(argIt.hasNext() ? argIt.next() : null, logger);
+				if (value != null)
+				{
+					if (value.intValue() >= 1024)
+					{
+						port = value.intValue();
+					}
+					else
+					{
+						logger.severe(Failure.INVALID_PORT.toString() + ":" + value);
+						System.exit(Failure.INVALID_PORT.toInteger());
+					}
+				}
+			}
+			else if (arg.equals("--reactors") || arg.equals("-r"))
+			{
+				Integer value = readInt(argIt.hasNext() ? argIt.next() : null, logger);
+				if ((value != null) && (value.intValue() > 0))
+				{
+					reactorCount = value.intValue();
+				}
+			}
+			else if (arg.equals("--binary") || arg.equals("-b"))
+			{
+				binary = true;
+			}
+			else if (arg.equals("--super") || arg.equals("-s"))
+			{
+				if (argIt.hasNext())
+				{
+					superUsers.add(argIt.next());
+				}
+				else
+				{
+					logger.warning("Setting super user to: nothing, invalid value");
+				}
+			}
+		}
+
+		ChatServer server = null;
+		try
+		{
+			server = new ChatServer(port, reactorCount, binary, superUsers, logger);
+		}
+		catch (IOException e)
+		{
+			logger.severe(Failure.CREATE_SERVER_SOCKET + ": " + e.getLocalizedMessage());
+			System.exit(Failure.CREATE_SERVER_SOCKET.toInteger());
+		}
+
+		logger.info("Launching ChatServer with " + reactorCount + " reactors");
+		server.run();
+	}
+
+	/**
+	 * Utility method to read number from string with exception handling
+	 * @param s the string to parse for number
+	 * @param logger the logger to report errors
+	 * @return the parsed Integer or null if number could not be parsed
+	 * from string
+	 */
+	private static Integer readInt(String s, Logger logger)
+	{
+		try
+		{
+			return Integer.valueOf(s);
+		}
+		catch (NumberFormatException e)
+		{
+			logger.warning("readInt: " + s + " is not a number");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import chat.Failure;
+import chat.MessageCodec;
+import logger.LoggerFactory;
+
+/**
+ * Selector event loop of the {@link ChatServer}: each reactor drives the
+ * network side of a subset of all {@link ClientConnection}s from a single
+ * thread.
+ * All connections of a reactor share the same direct read and write buffers
+ * so that idle connections cost no buffer at all, as well as the
+ * {@link MessageCodec.Compressor} of compressed catch ups.
+ * Operations requested from other threads (new connections, writes to
+ * connections) are queued as tasks and run by the reactor thread.
+ * @author x0wass
+ */
+class ServerReactor implements Runnable
+{
+	/**
+	 * Size of the shared read buffer
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Size of the shared write buffer
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The server using this reactor
+	 */
+	private final ChatServer server;
+
+	/**
+	 * The selector watching all connections of this reactor
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tasks to run on the reactor thread
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * Indicates the selector has already been woken up for pending tasks
+	 */
+	private final AtomicBoolean wakeupPending;
+
+	/**
+	 * Read buffer shared by all connections of this reactor
+	 */
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * Write buffer shared by all connections of this reactor
+	 */
+	private final ByteBuffer writeBuffer;
+
+	/**
+	 * Compressor of catch up pages shared by all connections of this reactor
+	 * (created on first use)
+	 */
+	private MessageCodec.Compressor compressor;
+
+	/**
+	 * Run state of the event loop
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Logger used to display debug or info messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Reactor constructor
+	 * @param server the server using this reactor
+	 * @param parentLogger parent logger
+	 * @throws IOException if the selector can't be opened
+	 */
+	ServerReactor(ChatServer server, Logger parentLogger) throws IOException
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		this.server = server;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		wakeupPending = new AtomicBoolean(false);
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		compressor = null;
+		running = true;
+	}
+
+	/**
+	 * Hands a newly accepted channel to this reactor
+	 * @param channel the accepted channel
+	 */
+	void accept(SocketChannel channel)
+	{
+		execute(() ->
+		{
+			ClientConnection connection = new ClientConnection(server,
+			                                                   this,
+			                                                   channel);
+			try
+			{
+				channel.configureBlocking(false);
+				connection.register(selector);
+			}
+			catch (IOException e)
+			{
+				logger.warning("ServerReactor: " + Failure.SERVER_CONNECTION
+					+ " " + e.getLocalizedMessage());
+				connection.close();
+			}
+		});
+	}
+
+	/**
+	 * Queues a task to be run on the reactor thread and wakes up the selector
+	 * (only once for several tasks)
+	 * @param task the task to run
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		if (wakeupPending.compareAndSet(false, true))
+		{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Compressor accessor (reactor thread only)
+	 * @return the compressor of catch up pages of this reactor
+	 */
+	MessageCodec.Compressor getCompressor()
+	{
+		if (compressor == null)
+		{
+			compressor = new MessageCodec.Compressor();
+		}
+		return compressor;
+	}
+
+	/**
+	 * Stops the event loop. All connections of this reactor are closed when
+	 * the loop ends.
+	 */
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Event loop: run pending tasks, wait for ready channels and dispatch
+	 * read / write events to their {@link ClientConnection}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			wakeupPending.set(false);
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+			{
+				task.run();
+			}
+
+			try
+			{
+				if (tasks.isEmpty())
+				{
+					selector.select();
+				}
+				else
+				{
+					selector.selectNow();
+				}
+			}
+			catch (IOException e)
+			{
+				logger.severe("ServerReactor: select failed: "
+					+ e.getLocalizedMessage());
+				break;
+			}
+
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			     it.hasNext();)
+			{
+				SelectionKey key = it.next();
+				it.remove();
+				ClientConnection connection = (ClientConnection) key.attachment();
+				connection.handle(key, readBuffer, writeBuffer);
+			}
+		}
+
+		cleanup();
+	}
+
+	/**
+	 * Cleanup: close all connections of this reactor (after writing what
+	 * can be written of their pending messages without blocking) and the
+	 * selector
+	 */
+	private void cleanup()
+	{
+		logger.info("ServerReactor: closing connections ... ");
+		for (SelectionKey key : selector.keys())
+		{
+			((ClientConnection) key.attachment()).flushAndClose(writeBuffer);
+		}
+
+		if (compressor != null)
+		{
+			logger.info("ServerReactor: " + compressor);
+			compressor.close();
+		}
+
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("ServerReactor: closing selector failed: "
+				+ e.getLocalizedMessage());
+		}
+	}
+}
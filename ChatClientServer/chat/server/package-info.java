@@ -0,0 +1,6 @@
+package chat.server;
+
+/**
+ * Sub package containing a reference chat server driving all its clients
+ * with a few selector event loops
+ */
@@ -0,0 +1,134 @@
+package metrics;
+
+/**
+ * Distribution of recorded values: count, sum, minimum, maximum and mean.
+ * Values are recorded by a single thread in general but can be read (or
+ * recorded) from any thread.
+ * @author x0wass
+ */
+public class Distribution
+{
+	/**
+	 * Name of this distribution
+	 */
+	private final String name;
+
+	/**
+	 * Number of recorded values
+	 */
+	private long count;
+
+	/**
+	 * Sum of recorded values
+	 */
+	private long sum;
+
+	/**
+	 * Minimum recorded value
+	 */
+	private long min;
+
+	/**
+	 * Maximum recorded value
+	 */
+	private long max;
+
+	/**
+	 * Distribution constructor
+	 * @param name the name of this distribution
+	 */
+	public Distribution(String name)
+	{
+		this.name = name;
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Records a value
+	 * @param value the value to record
+	 */
+	public synchronized void record(long value)
+	{
+		count++;
+		sum += value;
+		if (value < min)
+		{
+			min = value;
+		}
+		if (value > max)
+		{
+			max = value;
+		}
+	}
+
+	/**
+	 * Name accessor
+	 * @return the name of this distribution
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Count accessor
+	 * @return the number of recorded values
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Sum accessor
+	 * @return the sum of recorded values
+	 */
+	public synchronized long getSum()
+	{
+		return sum;
+	}
+
+	/**
+	 * Minimum accessor
+	 * @return the minimum recorded value or 0 if no value has been recorded
+	 */
+	public synchronized long getMin()
+	{
+		return (count > 0 ? min : 0);
+	}
+
+	/**
+	 * Maximum accessor
+	 * @return the maximum recorded value or 0 if no value has been recorded
+	 */
+	public synchronized long getMax()
+	{
+		return (count > 0 ? max : 0);
+	}
+
+	/**
+	 * Mean accessor
+	 * @return the mean of recorded values or 0 if no value has been recorded
+	 */
+	public synchronized double getMean()
+	{
+		return (count > 0 ? (double) sum / count : 0.0);
+	}
+
+	/**
+	 * Distribution string representation
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%s: count=%d min=%d mean=%.2f max=%d",
+		                     name,
+		                     count,
+		                     getMin(),
+		                     getMean(),
+		                     getMax());
+	}
+}
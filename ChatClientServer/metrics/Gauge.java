@@ -0,0 +1,60 @@
+package metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Gauge: a named value sampled on demand from its owner (such as the depth
+ * of a queue), so that updating the value costs nothing to the owner.
+ * @author x0wass
+ */
+public class Gauge
+{
+	/**
+	 * Name of this gauge
+	 */
+	private final String name;
+
+	/**
+	 * Supplier of the current value
+	 */
+	private final LongSupplier value;
+
+	/**
+	 * Gauge constructor
+	 * @param name the name of this gauge
+	 * @param value supplier of the current value (may be called from any
+	 * thread)
+	 */
+	public Gauge(String name, LongSupplier value)
+	{
+		this.name = name;
+		this.value = value;
+	}
+
+	/**
+	 * Name accessor
+	 * @return the name of this gauge
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Current value accessor
+	 * @return the current value of this gauge
+	 */
+	public long getValue()
+	{
+		return value.getAsLong();
+	}
+
+	/**
+	 * Gauge string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return name + ": " + getValue();
+	}
+}
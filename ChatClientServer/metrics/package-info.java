@@ -0,0 +1,7 @@
+/**
+ * Simple package containing lightweight metrics recorded by chat components
+ * and reported through their loggers: {@link metrics.Distribution}s of
+ * recorded values and {@link metrics.Gauge}s sampled on demand
+ * @author x0wass
+ */
+package metrics;
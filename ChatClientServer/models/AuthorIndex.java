@@ -0,0 +1,188 @@
+package models;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Index of received {@link Message}s by author.
+ * Each author id (assigned by an {@link AuthorRegistry}) is mapped to
+ * the (ascending) list of positions of this author's messages in the list
+ * of all received messages (its posting list). Messages are indexed as they
+ * are received so that the messages of a set of authors can be found
+ * without scanning all received messages.
+ * Messages without author are not indexed.
+ * This class is not thread safe.
+ * @author x0wass
+ */
+public class AuthorIndex
+{
+	/**
+	 * Initial capacity of posting lists
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Registry assigning author ids
+	 */
+	private final AuthorRegistry registry;
+
+	/**
+	 * Posting lists by author id: positions of the author's messages
+	 * (only the first {@link #sizes} elements are used, null when there is
+	 * no message of this author yet)
+	 */
+	private int[][] postings;
+
+	/**
+	 * Number of positions in each posting list by author id
+	 */
+	private int[] sizes;
+
+	/**
+	 * Constructor of an empty index
+	 * @param registry the registry assigning author ids
+	 */
+	public AuthorIndex(AuthorRegistry registry)
+	{
+		this.registry = registry;
+		postings = new int[INITIAL_CAPACITY][];
+		sizes = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Indexes a new message. Messages should be indexed in ascending
+	 * positions order.
+	 * @param message the message to index
+	 * @param position the position of the message in the list of all
+	 * received messages
+	 * @return the id of the message's author or -1 if the message has no
+	 * author
+	 */
+	public int add(Message message, int position)
+	{
+		int id = registry.register(message);
+		if (id < 0)
+		{
+			return -1;
+		}
+
+		if (id >= postings.length)
+		{
+			int length = Math.max(id + 1, postings.length * 2);
+			postings = Arrays.copyOf(postings, length);
+			sizes = Arrays.copyOf(sizes, length);
+		}
+		int[] positions = postings[id];
+		int size = sizes[id];
+		if (positions == null)
+		{
+			positions = new int[INITIAL_CAPACITY];
+			postings[id] = positions;
+		}
+		else if (size == positions.length)
+		{
+			positions = Arrays.copyOf(positions, size * 2);
+			postings[id] = positions;
+		}
+		positions[size] = position;
+		sizes[id] = size + 1;
+
+		return id;
+	}
+
+	/**
+	 * Number of indexed messages of an author
+	 * @param author the author name
+	 * @return the number of indexed messages of this author
+	 */
+	public int count(String author)
+	{
+		int id = registry.getId(author);
+		return (id >= 0) && (id < sizes.length) ? sizes[id] : 0;
+	}
+
+	/**
+	 * Positions of the messages of a set of authors
+	 * @param authors the authors
+	 * @param limit positions greater or equal to this limit are ignored
+	 * @return the ascending positions of the messages of these authors
+	 * lower than limit
+	 */
+	public int[] getPositions(Collection<String> authors, int limit)
+	{
+		/*
+		 * Gather posting lists (each of them is already sorted) up to limit
+		 */
+		int total = 0;
+		int[] ends = new int[authors.size()];
+		int[][] lists = new int[authors.size()][];
+		int n = 0;
+		for (String author : authors)
+		{
+			int id = registry.getId(author);
+			if ((id >= 0) && (id < postings.length) && (postings[id] != null))
+			{
+				int[] positions = postings[id];
+				int end = upperBound(positions, sizes[id], limit);
+				lists[n] = positions;
+				ends[n] = end;
+				total += end;
+				n++;
+			}
+		}
+
+		int[] result = new int[total];
+		int offset = 0;
+		for (int i = 0; i < n; i++)
+		{
+			System.arraycopy(lists[i], 0, result, offset, ends[i]);
+			offset += ends[i];
+		}
+
+		/*
+		 * A single posting list is already sorted, several of them need to
+		 * be merged
+		 */
+		if (n > 1)
+		{
+			Arrays.sort(result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Clears this index
+	 */
+	public void clear()
+	{
+		Arrays.fill(postings, null);
+		Arrays.fill(sizes, 0);
+	}
+
+	/**
+	 * Binary search of the number of positions lower than a limit
+	 * @param positions ascending positions
+	 * @param size number of used positions
+	 * @param limit the limit
+	 * @return the number of positions lower than limit
+	 */
+	private static int upperBound(int[] positions, int size, int limit)
+	{
+		int low = 0;
+		int high = size;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (positions[middle] < limit)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
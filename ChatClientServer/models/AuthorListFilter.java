@@ -1,28 +1,38 @@
 package models;
 
-import java.util.Iterator;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Predicate;
 
-import javax.swing.ListModel;
-import javax.swing.ListSelectionModel;
+import javafx.scene.control.MultipleSelectionModel;
 
 /**
  * Filter allowing to check if a {@link Message} comes from one of the authors
- * registered in this filter. Thus this class contains a set of unique names
- * corresponding to the authors registered in this filter.
- * This filter is created using a {@link ListModel} and a
- * {@link ListSelectionModel} allowing to populate the filter with currently
- * selected names
+ * registered in this filter. Authors are identified by the ids assigned by
+ * an {@link AuthorRegistry} and registered authors are stored in a
+ * {@link BitSet} so that testing a message is a single bit probe.
+ * This filter can be created using a JavaFX {@link MultipleSelectionModel}
+ * allowing to populate the filter with currently selected names
  * @author x0wass
  */
-public class AuthorListFilter implements Predicate<Message>//, ListDataListener
+public class AuthorListFilter implements Predicate<Message>
 {
 	/**
-	 * Set of unique authors registered in this filter
+	 * Registry assigning author ids
 	 */
-	private Set<String> authors;
+	private final AuthorRegistry registry;
+
+	/**
+	 * Ids of the authors registered in this filter
+	 */
+	private final BitSet authors;
+
+	/**
+	 * Number of authors registered in this filter
+	 */
+	private int count;
 
 	/**
 	 * Flag indicating if filtering is active or not
@@ -30,55 +40,46 @@ public class AuthorListFilter implements Predicate<Message>//, ListDataListener
 	private boolean filtering;
 
 	/**
-	 * Default constructor
-	 * Builds an empty {@link #authors} name set and initialize
-	 * {@link #filtering} state to false
+	 * Constructor
+	 * Builds an empty {@link #authors} set and initialize {@link #filtering}
+	 * state to false
+	 * @param registry the registry assigning author ids
 	 */
-	public AuthorListFilter()
+	public AuthorListFilter(AuthorRegistry registry)
 	{
-		authors = new TreeSet<String>();
+		this.registry = registry;
+		authors = new BitSet();
+		count = 0;
 		filtering = false;
 	}
 
 	/**
-	 * Constructor from a {@link ListModel} and a {@link ListSelectionModel}.
-	 * Initialize the {@link #authors} and populate it with names of the
-	 * {@link ListModel} selected in the {@link ListSelectionModel}
-	 * @param listModel the list model containing the elements
-	 * @param selectionModel the list selection model containing the indices of
-	 * selected elements
+	 * Constructor from a {@link MultipleSelectionModel}.
+	 * Initialize the {@link #authors} and populate it with names currently
+	 * selected in the selection model
+	 * @param registry the registry assigning author ids
+	 * @param selectionModel the selection model containing selected names
 	 */
-	public AuthorListFilter(ListModel<String> listModel,
-	                        ListSelectionModel selectionModel)
+	public AuthorListFilter(AuthorRegistry registry,
+	                        MultipleSelectionModel<String> selectionModel)
 	{
-		this();
-		int minIndex = 0;
-		int maxIndex = 0;
-
+		this(registry);
 		if (selectionModel != null)
 		{
-			minIndex = selectionModel.getMinSelectionIndex();
-			maxIndex = selectionModel.getMaxSelectionIndex();
-		}
-		else
-		{
-			if (listModel != null)
-			{
-				maxIndex = listModel.getSize() - 1;
-			}
+			addAll(selectionModel.getSelectedItems());
 		}
+	}
 
-		if ((listModel != null) && (selectionModel != null))
-		{
-			for (int i = minIndex; i <= maxIndex; i++)
-			{
-				if (selectionModel.isSelectedIndex(i))
-				{
-					// Fill authors set with selected elements
-					add(listModel.getElementAt(i));
-				}
-			}
-		}
+	/**
+	 * Copy constructor
+	 * @param filter the filter to copy (authors and filtering state)
+	 */
+	public AuthorListFilter(AuthorListFilter filter)
+	{
+		registry = filter.registry;
+		authors = (BitSet) filter.authors.clone();
+		count = filter.count;
+		filtering = filter.filtering;
 	}
 
 	/**
@@ -89,14 +90,33 @@ public class AuthorListFilter implements Predicate<Message>//, ListDataListener
 	 */
 	public boolean add(String author)
 	{
-		if (author != null)
+		int id = registry.register(author);
+		if ((id >= 0) && !authors.get(id))
 		{
-			return authors.add(author);
+			authors.set(id);
+			count++;
+			return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Adds authors to the authors set
+	 * @param names the authors to add
+	 * @return true if at least one author has been added
+	 */
+	public boolean addAll(Collection<String> names)
+	{
+		boolean added = false;
+		for (String author : names)
+		{
+			added |= add(author);
+		}
+
+		return added;
+	}
+
 	/**
 	 * Removes an author from the authors set
 	 * @param author the author to remove from the set
@@ -104,7 +124,15 @@ public class AuthorListFilter implements Predicate<Message>//, ListDataListener
 	 */
 	public boolean remove(String author)
 	{
-		return authors.remove(author);
+		int id = registry.getId(author);
+		if ((id >= 0) && authors.get(id))
+		{
+			authors.clear(id);
+			count--;
+			return true;
+		}
+
+		return false;
 	}
 
 	/**
@@ -112,15 +140,40 @@ public class AuthorListFilter implements Predicate<Message>//, ListDataListener
 	 */
 	public boolean clear()
 	{
-		if (!authors.isEmpty())
+		if (count > 0)
 		{
 			authors.clear();
+			count = 0;
 			return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Indicates if there is no author in the set
+	 * @return true if no author is registered in this filter
+	 */
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	/**
+	 * Authors accessor
+	 * @return a new set of the authors registered in this filter
+	 */
+	public Set<String> getAuthors()
+	{
+		Set<String> names = new TreeSet<String>();
+		for (int id = authors.nextSetBit(0); id >= 0; id = authors.nextSetBit(id + 1))
+		{
+			names.add(registry.getAuthor(id));
+		}
+
+		return names;
+	}
+
 	/**
 	 * Filtering state accessor
 	 * @return true if filtering is active, false otherwise
@@ -148,23 +201,19 @@ public class AuthorListFilter implements Predicate<Message>//, ListDataListener
 	@Override
 	public boolean test(Message m)
 	{
-		if (authors.isEmpty() || !filtering)
+		if ((count == 0) || !filtering)
 		{
 			// Il n'y aucun auteur à filtrer
 			return true;
 		}
-		if (m != null)
+		if ((m != null) && m.hasAuthor())
 		{
-			for (String author : authors)
+			int id = m.getAuthorId();
+			if (id < 0)
 			{
-				if (m.hasAuthor())
-				{
-					if (m.getAuthor().equals(author))
-					{
-						return true;
-					}
-				}
+				id = registry.register(m);
 			}
+			return authors.get(id);
 		}
 		return false;
 	}
@@ -179,14 +228,7 @@ public class AuthorListFilter implements Predicate<Message>//, ListDataListener
 		StringBuilder sb = new StringBuilder();
 
 		sb.append("Filtering ");
-		for (Iterator<String> it = authors.iterator(); it.hasNext(); )
-		{
-			sb.append(it.next());
-			if (it.hasNext())
-			{
-				sb.append(", ");
-			}
-		}
+		sb.append(String.join(", ", getAuthors()));
 
 		return sb.toString();
 	}
@@ -0,0 +1,119 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of authors assigning a dense integer id (0, 1, 2, ...) to each
+ * distinct author name.
+ * The id of a message's author is stored on the {@link Message} when it is
+ * registered so that filters and indexes can work on integers (e.g. bit sets
+ * or arrays indexed by author id) instead of comparing names.
+ * Messages should be registered into a single registry.
+ * This class is thread safe.
+ * @author x0wass
+ */
+public class AuthorRegistry
+{
+	/**
+	 * Author ids by author name
+	 */
+	private final Map<String, Integer> ids;
+
+	/**
+	 * Author names by author id
+	 */
+	private final List<String> names;
+
+	/**
+	 * Default constructor of an empty registry
+	 */
+	public AuthorRegistry()
+	{
+		ids = new HashMap<String, Integer>();
+		names = new ArrayList<String>();
+	}
+
+	/**
+	 * Registers an author name
+	 * @param author the author name
+	 * @return the id of this author (a new one if it has never been
+	 * registered) or -1 if author is null
+	 */
+	public synchronized int register(String author)
+	{
+		if (author == null)
+		{
+			return -1;
+		}
+
+		Integer id = ids.get(author);
+		if (id != null)
+		{
+			return id.intValue();
+		}
+
+		int newId = names.size();
+		ids.put(author, Integer.valueOf(newId));
+		names.add(author);
+
+		return newId;
+	}
+
+	/**
+	 * Registers the author of a message and stores its id on the message
+	 * (if not already done)
+	 * @param message the message to register
+	 * @return the id of the message's author or -1 if the message has no
+	 * author
+	 */
+	public int register(Message message)
+	{
+		if ((message == null) || !message.hasAuthor())
+		{
+			return -1;
+		}
+
+		int id = message.getAuthorId();
+		if (id < 0)
+		{
+			id = register(message.getAuthor());
+			message.setAuthorId(id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Author id accessor
+	 * @param author the author name
+	 * @return the id of this author or -1 if it has not been registered
+	 */
+	public synchronized int getId(String author)
+	{
+		Integer id = ids.get(author);
+		return id != null ? id.intValue() : -1;
+	}
+
+	/**
+	 * Author name accessor
+	 * @param id the author id
+	 * @return the name of the author with this id
+	 * @throws IndexOutOfBoundsException if no author has this id
+	 */
+	public synchronized String getAuthor(int id)
+	{
+		return names.get(id);
+	}
+
+	/**
+	 * Number of registered authors
+	 * @return the number of registered authors (which is also the next id)
+	 */
+	public synchronized int size()
+	{
+		return names.size();
+	}
+}
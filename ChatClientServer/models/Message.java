@@ -1,12 +1,15 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Vector;
 
 /**
  * Class containin a message sent by the server.
@@ -16,15 +19,23 @@ import java.util.Vector;
  * <li>message's content</li>
  * <li>and eventual message's author</li>
  * </ul>
- * Messages are comparables so they can be compared with
- * {@link #compareTo(Message)}
- * method and also sorted in a collection.
- * Sorting criteria can be changed dynamically with
- * {@link #addOrder(MessageOrder)} and {@link #removeOrder(MessageOrder)}
- * methods
+ * Messages can be sorted in a collection according to {@link MessageOrder}
+ * criteria with a {@link MessageOrdering} comparator.
+ * Messages broadcasted by the server carry a sequence number assigned by the
+ * server (strictly increasing from 1 for a given server instance, whose
+ * epoch is sent in its {@link chat.Capabilities}: a restarted server
+ * numbers its messages from 1 again), which is then their identity within
+ * an epoch: sequenced messages are equal iff they have the same sequence
+ * number, and
+ * messages without sequence number (0) are compared by date, content and
+ * author.
+ * The date is held as epoch millis and formatted with an immutable
+ * {@link DateTimeFormatter} once per message (and once per second across
+ * messages). Messages are still serialized with a {@link Date} date field
+ * so that they can be exchanged with previous versions.
  * @author x0wass
  */
-public class Message implements Serializable, Comparable<Message>
+public class Message implements Serializable
 {
 	/**
 	 * Serial version ID for serialization
@@ -71,16 +82,25 @@ public class Message implements Serializable, Comparable<Message>
 	}
 
 	/**
-	 * Comparison critera set (initialized to empty).
-	 * This collection should contain only one and only one instance of each
-	 * possible {@link MessageOrder} in any possible order.
+	 * Serialized fields: the date is serialized as a {@link Date}
 	 */
-	protected static Vector<MessageOrder> orders = new Vector<MessageOrder>();
+	private static final ObjectStreamField[] serialPersistentFields =
+	{
+		new ObjectStreamField("date", Date.class),
+		new ObjectStreamField("content", String.class),
+		new ObjectStreamField("author", String.class),
+		new ObjectStreamField("sequence", Long.TYPE)
+	};
+
+	/**
+	 * Sequence number assigned by the server (or 0 if none)
+	 */
+	private long sequence;
 
 	/**
-	 * Message receiving date
+	 * Message receiving date (epoch millis)
 	 */
-	private Date date;
+	private long date;
 
 	/**
 	 * Message content
@@ -95,24 +115,89 @@ public class Message implements Serializable, Comparable<Message>
 	private String author;
 
 	/**
-	 * Date format to use to print message date
+	 * Id of the author assigned by an {@link AuthorRegistry} plus one (0 when
+	 * the author has not been registered, which is also the case of
+	 * deserialized messages)
 	 */
-	protected static SimpleDateFormat dateFormat =
-	    new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+	private transient int authorId;
 
 	/**
-	 * Constructor
-	 * @param date message receiving date
+	 * Formatted date (computed on first use)
+	 */
+	private transient String formattedDate;
+
+	/**
+	 * Date formatter to use to print message date
+	 */
+	private static final DateTimeFormatter dateFormatter =
+	    DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	/**
+	 * Last formatted second shared by all messages (messages mostly arrive
+	 * in time order so that consecutive messages share their formatted date)
+	 */
+	private static volatile FormattedSecond lastFormatted = new FormattedSecond(Long.MIN_VALUE, null);
+
+	/**
+	 * Constructor of a sequenced message
+	 * @param sequence the sequence number assigned by the server (or 0 if
+	 * none)
+	 * @param time message receiving date (epoch millis)
 	 * @param content message content
 	 * @param author message author (may be null on server's messages)
+	 * @throws IllegalArgumentException if sequence is negative
 	 */
-	public Message(Date date, String content, String author)
+	public Message(long sequence, long time, String content, String author)
 	{
-		// date should never be null
-		this.date = (date != null ? date : Calendar.getInstance().getTime());
+		if (sequence < 0)
+		{
+			throw new IllegalArgumentException("Message: negative sequence "
+				+ sequence);
+		}
+		this.sequence = sequence;
+		date = time;
 		// content should never be null
 		this.content = (content != null ? content : new String());
 		this.author = author;
+		authorId = 0;
+		formattedDate = null;
+	}
+
+	/**
+	 * Constructor
+	 * @param time message receiving date (epoch millis)
+	 * @param content message content
+	 * @param author message author (may be null on server's messages)
+	 */
+	public Message(long time, String content, String author)
+	{
+		this(0, time, content, author);
+	}
+
+	/**
+	 * Constructor
+	 * @param date message receiving date (current date if null)
+	 * @param content message content
+	 * @param author message author (may be null on server's messages)
+	 */
+	public Message(Date date, String content, String author)
+	{
+		// date should never be null
+		this(date != null ? date.getTime() : System.currentTimeMillis(), content, author);
+	}
+
+	/**
+	 * Constructor for subclasses providing date, content and author through
+	 * their accessors (such as messages stored in a {@link MessageLog})
+	 */
+	protected Message()
+	{
+		sequence = 0;
+		date = 0;
+		content = null;
+		author = null;
+		authorId = 0;
+		formattedDate = null;
 	}
 
 	/**
@@ -129,8 +214,7 @@ public class Message implements Serializable, Comparable<Message>
 	 * Constructor with no date (current date is then used as message's date)
 	 * @param content message content
 	 * @param author message author (may be null on server's messages)
-	 * @see Calendar#getInstance()
-	 * @see Calendar#getTime()
+	 * @see System#currentTimeMillis()
 	 */
 	public Message(String content, String author)
 	{
@@ -140,8 +224,7 @@ public class Message implements Serializable, Comparable<Message>
 	/**
 	 * Constructor with only content. (author is null and date will be set to current date)
 	 * @param content message content
-	 * @see Calendar#getInstance()
-	 * @see Calendar#getTime()
+	 * @see System#currentTimeMillis()
 	 */
 	public Message(String content)
 	{
@@ -150,20 +233,56 @@ public class Message implements Serializable, Comparable<Message>
 
 	/**
 	 * Message date accessor
-	 * @return the receiving date of the message
+	 * @return a new date containing the receiving date of the message
 	 */
 	public Date getDate()
+	{
+		return new Date(getTime());
+	}
+
+	/**
+	 * Sequence number accessor
+	 * @return the sequence number assigned by the server or 0 if the message
+	 * has none
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Copy of this message with a sequence number
+	 * @param newSequence the sequence number to assign
+	 * @return a new message with the same date, content and author and with
+	 * this sequence number
+	 */
+	public Message withSequence(long newSequence)
+	{
+		return new Message(newSequence, getTime(), getContent(), getAuthor());
+	}
+
+	/**
+	 * Message time accessor
+	 * @return the receiving date of the message (epoch millis)
+	 */
+	public long getTime()
 	{
 		return date;
 	}
 
 	/**
 	 * Formatted date string accessor
-	 * @return formatted string of the message's date
+	 * @return formatted string of the message's date (computed once)
 	 */
 	public String getFormattedDate()
 	{
-		return dateFormat.format(date);
+		String formatted = formattedDate;
+		if (formatted == null)
+		{
+			formatted = format(getTime());
+			formattedDate = formatted;
+		}
+		return formatted;
 	}
 
 	/**
@@ -184,38 +303,83 @@ public class Message implements Serializable, Comparable<Message>
 		return author;
 	}
 
+	/**
+	 * Author id accessor
+	 * @return the id assigned to the author by an {@link AuthorRegistry} or -1
+	 * if the author has not been registered (or if there is no author)
+	 */
+	public int getAuthorId()
+	{
+		return authorId - 1;
+	}
+
+	/**
+	 * Author id setter (used by {@link AuthorRegistry})
+	 * @param id the id assigned to the author
+	 */
+	void setAuthorId(int id)
+	{
+		authorId = id + 1;
+	}
+
 	/**
 	 * Indicates if a message has an author
 	 * @return true if the messag has an author, false otherwise
 	 */
 	public boolean hasAuthor()
 	{
-		return author != null;
+		return getAuthor() != null;
 	}
 
 	/**
 	 * Date formatter accessor
-	 * @return the formatted used to format date
+	 * @return the (immutable and thread safe) formatter used to format dates
+	 */
+	public static DateTimeFormatter getDateFormatter()
+	{
+		return dateFormatter;
+	}
+
+	/**
+	 * Formats a date, reusing the last formatted string when in the same
+	 * second (thread safe)
+	 * @param time the date to format (epoch millis)
+	 * @return the formatted date
 	 */
-	public static SimpleDateFormat getDateFormat()
+	private static String format(long time)
 	{
-		return dateFormat;
+		long second = Math.floorDiv(time, 1000L);
+		FormattedSecond last = lastFormatted;
+		if (last.second == second)
+		{
+			return last.formatted;
+		}
+		String formatted = dateFormatter.format(Instant.ofEpochMilli(time));
+		lastFormatted = new FormattedSecond(second, formatted);
+		return formatted;
 	}
 
 	/**
 	 * Message hashcode.
 	 * Can be used in {@link HashSet} for instance.
-	 * @return a hash value based on date, author and content hashcodes.
+	 * @return a hash value based on the sequence number if any, or on date,
+	 * author and content hashcodes otherwise.
 	 */
 	@Override
 	public int hashCode()
 	{
+		long id = getSequence();
+		if (id > 0)
+		{
+			return Long.hashCode(id);
+		}
 		final int prime = 31;
-		int hash = date.hashCode();
-		hash = (prime * hash) + content.hashCode();
-		if (author != null)
+		int hash = Long.hashCode(getTime());
+		hash = (prime * hash) + getContent().hashCode();
+		String name = getAuthor();
+		if (name != null)
 		{
-			hash = (prime * hash) + author.hashCode();
+			hash = (prime * hash) + name.hashCode();
 		}
 		return hash;
 	}
@@ -223,8 +387,9 @@ public class Message implements Serializable, Comparable<Message>
 	/**
 	 * Message comparison with another object
 	 * @param the other object to compare
-	 * @return true if the other object is also a Message and has the same date,
-	 * content and author
+	 * @return true if the other object is also a Message and has the same
+	 * sequence number, or if both have no sequence number and have the same
+	 * date, content and author
 	 */
 	@Override
 	public boolean equals(Object obj)
@@ -243,17 +408,27 @@ public class Message implements Serializable, Comparable<Message>
 		{
 			Message m = (Message) obj;
 
-			if (date.equals(m.date))
+			if (getSequence() != m.getSequence())
+			{
+				return false;
+			}
+			if (getSequence() > 0)
+			{
+				return true;
+			}
+
+			if (getTime() == m.getTime())
 			{
-				if (content.equals(m.content))
+				if (getContent().equals(m.getContent()))
 				{
-					if (author != null)
+					String name = getAuthor();
+					if (name != null)
 					{
-						return author.equals(m.author);
+						return name.equals(m.getAuthor());
 					}
 					else
 					{
-						return m.author == null;
+						return m.getAuthor() == null;
 					}
 				}
 			}
@@ -272,169 +447,77 @@ public class Message implements Serializable, Comparable<Message>
 	{
 		StringBuffer sb = new StringBuffer("[");
 
-		sb.append(dateFormat.format(date));
+		sb.append(getFormattedDate());
 		sb.append("] ");
-		if (author != null)
+		String name = getAuthor();
+		if (name != null)
 		{
-			sb.append(author);
+			sb.append(name);
 			sb.append(" : ");
 		}
-		sb.append(content);
+		sb.append(getContent());
 
 		return sb.toString();
 	}
 
 	/**
-	 * String representation of current order criteria
-	 * @return a new string representing current sorting criteria
+	 * Serializes this message with a {@link Date} date field
+	 * @param out the stream to write to
+	 * @throws IOException if an I/O error occurs
 	 */
-	public static String toStringOrder()
+	private void writeObject(ObjectOutputStream out) throws IOException
 	{
-		StringBuilder sb = new StringBuilder();
-		sb.append("{");
-		for (Iterator<MessageOrder> it = orders.iterator(); it.hasNext(); )
-		{
-			sb.append(it.next().toString());
-			if (it.hasNext())
-			{
-				sb.append(", ");
-			}
-		}
-		sb.append("}");
-
-		return sb.toString();
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("date", getDate());
+		fields.put("content", getContent());
+		fields.put("author", getAuthor());
+		fields.put("sequence", getSequence());
+		out.writeFields();
 	}
 
 	/**
-	 * 3 Way comparison with other message using compare criteria stored in
-	 * {@link #orders}
-	 * @param m the message to compare to
-	 * @return -1 if the current message is considered smaller as message m
-	 * according to current order criteria stored in {@link #orders}, 0 if
-	 * current message is considered equal and +1 if current message is
-	 * considered bigger
+	 * Deserializes a message with a {@link Date} date field
+	 * @param in the stream to read from
+	 * @throws IOException if an I/O error occurs
+	 * @throws ClassNotFoundException if a class of a field can't be found
 	 */
-	@Override
-	public int compareTo(Message m)
+	private void readObject(ObjectInputStream in)
+	    throws IOException, ClassNotFoundException
 	{
-		// Default order is no order : all messages are equal
-		int compare = 0;
-
-		if (!orders.isEmpty())
-		{
-			for (Iterator<MessageOrder> it = orders.iterator(); it.hasNext();)
-			{
-				MessageOrder criterium = it.next();
-				switch (criterium)
-				{
-					case AUTHOR:
-						if (author != null)
-						{
-							if(m.author != null)
-							{
-								compare = author.compareTo(m.author);
-							}
-							else
-							{
-								/*
-								 * A message with an non null author
-								 * will be considered as bigger than
-								 * a message without author
-								 */
-								compare = 1;
-							}
-						}
-						else // author == null
-						{
-							if (m.author != null)
-							{
-								/*
-								 * A message without author will be considered
-								 * as smaller than a message with author
-								 */
-								compare = -1;
-							}
-							else
-							{
-								compare = 0;
-							}
-						}
-						break;
-					case DATE:
-						compare = date.compareTo(m.date);
-						break;
-					case CONTENT:
-						compare = content.compareTo(m.content);
-						break;
-					default:
-						break;
-				}
-				/*
-				 * If current criterium is enough to differentiate messages then
-				 * break
-				 */
-				if (compare != 0)
-				{
-					break;
-				}
-			}
-			/*
-			 * Compare loop ended without returning, all critera
-			 * compared to 0 which means messages are equal
-			 */
-		}
-
-		return compare;
+		ObjectInputStream.GetField fields = in.readFields();
+		Date readDate = (Date) fields.get("date", null);
+		String readContent = (String) fields.get("content", null);
+		date = (readDate != null ? readDate.getTime() : System.currentTimeMillis());
+		content = (readContent != null ? readContent : new String());
+		author = (String) fields.get("author", null);
+		// messages serialized by previous versions have no sequence number
+		sequence = Math.max(0L, fields.get("sequence", 0L));
 	}
 
 	/**
-	 * Add order criterium to criteria in {@link #orders} iff not already
-	 * present
-	 * @param o the criterium to add
-	 * @return true if such criterium was not already present and has been added
-	 * to {@link #orders}, false otherwise
+	 * A second (since epoch) and its formatted string
 	 */
-	public static boolean addOrder(MessageOrder o)
+	private static final class FormattedSecond
 	{
-		if (o != null)
-		{
-			if (!orders.contains(o))
-			{
-				return orders.add(o);
-			}
-		}
-		return false;
-	}
+		/**
+		 * Seconds since epoch
+		 */
+		final long second;
 
-	/**
-	 * Remove order criterium from criteria in {@link #orders}
-	 * @param o the criterium to remove
-	 * @return true if the criterium has been removed from criteria,
-	 * false otherwise
-	 */
-	public static boolean removeOrder(MessageOrder o)
-	{
-		if (o != null)
+		/**
+		 * Formatted date of this second
+		 */
+		final String formatted;
+
+		/**
+		 * Constructor
+		 * @param second the seconds since epoch
+		 * @param formatted the formatted date of this second
+		 */
+		FormattedSecond(long second, String formatted)
 		{
-			return orders.remove(o);
+			this.second = second;
+			this.formatted = formatted;
 		}
-		return false;
-	}
-
-	/**
-	 * Current number of criteria in {@link #orders}
-	 * @return le number of criteria in {@link #orders}
-	 */
-	public static int orderSize()
-	{
-		return orders.size();
-	}
-
-	/**
-	 * Clear all criteria in {@link #orders}
-	 */
-	public static void clearOrders()
-	{
-		orders.clear();
 	}
 }
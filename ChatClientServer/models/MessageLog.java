@@ -0,0 +1,933 @@
+package models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Append-only log of all received {@link Message}s.
+ * Messages are stored column wise in fixed size segments: each segment holds
+ * an array of sequence numbers, an array of dates (epoch millis), an array of
+ * author ids (assigned by an {@link AuthorRegistry}) and the UTF-8 encoded
+ * contents of its messages in a single byte arena indexed by an array of end
+ * offsets. A stored message then costs 24 bytes plus its encoded content
+ * instead of a {@link Message} and a {@link String} objects (about 80 bytes
+ * plus the content). Messages returned by the log are flyweights decoding
+ * their fields from the columns on demand: they are neither cached nor
+ * identical from one call to the next, but equal (as messages) to each
+ * other. A flyweight only holds its log and index and resolves its segment
+ * through the log's current directory, so that it does not retain a heap
+ * segment once spilled.
+ * When a spill file is used, only the last {@link #HEAP_SEGMENTS} full
+ * segments (and the segment being filled) stay on the heap: older segments
+ * are appended to the spill file and read through a read only memory mapping
+ * of their region, so that heap size does not depend on history length
+ * (the directory, holding the mapping of each spilled segment, being the
+ * only in-heap index of spilled messages).
+ * The spill file is a new temporary file (readable by its owner only on
+ * POSIX file systems) opened with {@link StandardOpenOption#DELETE_ON_CLOSE}
+ * so that it is deleted by {@link #close()} even when some of its regions
+ * are still mapped (deleting a mapped file fails on some platforms).
+ * Segments' columns are never moved nor modified once written, so that:
+ * <ul>
+ * <li>a single writer thread can {@link #append(Message)} without any lock
+ * (a message is published by the volatile write of {@link #size})</li>
+ * <li>any thread can take a {@link #snapshot()}: an immutable
+ * {@link List} of the messages appended so far, which can be sorted,
+ * filtered or searched while new messages are appended, without copying
+ * messages nor blocking the writer</li>
+ * </ul>
+ * @author x0wass
+ */
+public class MessageLog
+{
+	/**
+	 * Number of bits of the position of a message within its segment
+	 */
+	private static final int SEGMENT_BITS = 10;
+
+	/**
+	 * Number of messages per segment
+	 */
+	public static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+	/**
+	 * Mask turning a message index into its position within its segment
+	 */
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/**
+	 * Number of full segments kept on the heap before being spilled
+	 */
+	public static final int HEAP_SEGMENTS = 16;
+
+	/**
+	 * Initial number of segments of {@link #segments}
+	 */
+	private static final int INITIAL_SEGMENTS = 16;
+
+	/**
+	 * Initial size (in bytes) of a segment's contents arena
+	 */
+	private static final int INITIAL_ARENA_SIZE = SEGMENT_SIZE * 32;
+
+	/**
+	 * Estimated size (in bytes) of an array header
+	 */
+	private static final int ARRAY_HEADER = 16;
+
+	/**
+	 * Estimated size (in bytes) of a spilled segment on the heap (the
+	 * segment itself and its mapped buffer object)
+	 */
+	private static final int MAPPED_SEGMENT_SIZE = 96;
+
+	/**
+	 * Offset of the sequence numbers column in a spilled segment
+	 */
+	private static final int SEQUENCES_OFFSET = 0;
+
+	/**
+	 * Offset of the dates column in a spilled segment
+	 */
+	private static final int DATES_OFFSET = SEQUENCES_OFFSET + (8 * SEGMENT_SIZE);
+
+	/**
+	 * Offset of the authors column in a spilled segment
+	 */
+	private static final int AUTHORS_OFFSET = DATES_OFFSET + (8 * SEGMENT_SIZE);
+
+	/**
+	 * Offset of the contents end offsets column in a spilled segment
+	 */
+	private static final int ENDS_OFFSET = AUTHORS_OFFSET + (4 * SEGMENT_SIZE);
+
+	/**
+	 * Offset of the contents arena in a spilled segment
+	 */
+	private static final int CONTENTS_OFFSET = ENDS_OFFSET + (4 * SEGMENT_SIZE);
+
+	/**
+	 * Prefix of spill files names
+	 */
+	private static final String SPILL_PREFIX = "ChatClient-";
+
+	/**
+	 * Suffix of spill files names
+	 */
+	private static final String SPILL_SUFFIX = ".messages";
+
+	/**
+	 * Registry assigning ids to authors of stored messages
+	 */
+	private final AuthorRegistry registry;
+
+	/**
+	 * Segments directory. Replaced by a copy when full or when a segment is
+	 * spilled, so a directory read by a reader always contains the segments
+	 * of the messages it can see.
+	 */
+	private volatile Segment[] segments;
+
+	/**
+	 * Number of appended messages (written by the writer thread only, after
+	 * the message and its segment)
+	 */
+	private volatile int size;
+
+	/**
+	 * Directory of the file to spill old segments into, or null if segments
+	 * should stay on the heap
+	 */
+	private final Path spillDirectory;
+
+	/**
+	 * Channel of the spill file (opened on first spill by the writer thread,
+	 * closed by {@link #close()}), set while holding this log's lock
+	 */
+	private volatile FileChannel spillChannel;
+
+	/**
+	 * Size of the spill file (writer thread only)
+	 */
+	private long spillSize;
+
+	/**
+	 * Number of spilled segments
+	 */
+	private volatile int spilledSegments;
+
+	/**
+	 * Error which disabled spilling, or null
+	 */
+	private volatile IOException spillError;
+
+	/**
+	 * Closed state: the spill file has been closed (and deleted) and no
+	 * more segments are spilled, set while holding this log's lock
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Constructor of an empty log keeping all segments on the heap
+	 * @param registry the registry assigning ids to authors of messages
+	 */
+	public MessageLog(AuthorRegistry registry)
+	{
+		this(registry, null);
+	}
+
+	/**
+	 * Constructor of an empty log spilling old segments into a file
+	 * @param registry the registry assigning ids to authors of messages
+	 * @param spillDirectory the directory in which a new temporary file is
+	 * created on first spill to spill old segments into (deleted by
+	 * {@link #close()}), or null to keep all segments on the heap
+	 */
+	public MessageLog(AuthorRegistry registry, Path spillDirectory)
+	{
+		this.registry = registry;
+		this.spillDirectory = spillDirectory;
+		segments = new Segment[INITIAL_SEGMENTS];
+		size = 0;
+		spillChannel = null;
+		spillSize = 0;
+		spilledSegments = 0;
+		spillError = null;
+		closed = false;
+	}
+
+	/**
+	 * Default constructor of an empty log with its own authors registry
+	 */
+	public MessageLog()
+	{
+		this(new AuthorRegistry());
+	}
+
+	/**
+	 * Appends a message to the log (writer thread only)
+	 * @param message the message to append
+	 * @throws NullPointerException if message is null
+	 */
+	public void append(Message message)
+	{
+		if (message == null)
+		{
+			throw new NullPointerException("MessageLog: null message");
+		}
+
+		int index = size;
+		int segmentIndex = index >>> SEGMENT_BITS;
+		Segment[] directory = segments;
+		if (segmentIndex == directory.length)
+		{
+			directory = Arrays.copyOf(directory, directory.length * 2);
+		}
+		if (directory[segmentIndex] == null)
+		{
+			directory[segmentIndex] = new HeapSegment();
+		}
+		HeapSegment segment = (HeapSegment) directory[segmentIndex];
+		int position = index & SEGMENT_MASK;
+		segment.sequences[position] = message.getSequence();
+		segment.dates[position] = message.getTime();
+		segment.authors[position] = registry.register(message);
+		segment.append(position, message.getContent().getBytes(StandardCharsets.UTF_8));
+		if (position == SEGMENT_MASK)
+		{
+			segment.trim();
+			directory = spill(directory, segmentIndex - HEAP_SEGMENTS);
+		}
+
+		/*
+		 * Publish the (evt new) directory then the message
+		 */
+		segments = directory;
+		size = index + 1;
+	}
+
+	/**
+	 * Number of appended messages
+	 * @return the number of messages appended so far
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Message accessor
+	 * @param index the index of the message
+	 * @return the message at this index
+	 * @throws IndexOutOfBoundsException if there is no message at this index
+	 */
+	public Message get(int index)
+	{
+		int count = size;
+		if ((index < 0) || (index >= count))
+		{
+			throw new IndexOutOfBoundsException("MessageLog: index " + index
+			    + " out of bounds for size " + count);
+		}
+		return new StoredMessage(this, index);
+	}
+
+	/**
+	 * Takes a snapshot of the log
+	 * @return an immutable list of the messages appended so far
+	 */
+	public List<Message> snapshot()
+	{
+		return new Snapshot(this, size);
+	}
+
+	/**
+	 * Segment of a published message (resolved through the current
+	 * directory, which always contains the segments of published messages)
+	 * @param index the index of the message (less than {@link #size})
+	 * @return the segment (on the heap or spilled) containing this message
+	 */
+	private Segment segmentOf(int index)
+	{
+		return segments[index >>> SEGMENT_BITS];
+	}
+
+	/**
+	 * Estimated heap memory used by the log's segments
+	 * @return the estimated size (in bytes) of the log's in-heap columns,
+	 * arenas and directory (authors names excepted since they belong to the
+	 * registry)
+	 */
+	public long getMemoryUsage()
+	{
+		Segment[] directory = segments;
+		long usage = ARRAY_HEADER + (8L * directory.length);
+		for (Segment segment : directory)
+		{
+			if (segment != null)
+			{
+				usage += segment.getMemoryUsage();
+			}
+		}
+
+		return usage;
+	}
+
+	/**
+	 * Average heap memory used per stored message
+	 * @return the estimated number of heap bytes per message, or 0 if the
+	 * log is empty
+	 */
+	public double getBytesPerMessage()
+	{
+		int count = size;
+		return count > 0 ? (double) getMemoryUsage() / count : 0.0;
+	}
+
+	/**
+	 * Number of spilled messages
+	 * @return the number of messages read from the spill file
+	 */
+	public int getSpilledMessages()
+	{
+		return spilledSegments * SEGMENT_SIZE;
+	}
+
+	/**
+	 * Spill error accessor
+	 * @return the error which disabled spilling, or null if spilling works
+	 * (or is not used)
+	 */
+	public IOException getSpillError()
+	{
+		return spillError;
+	}
+
+	/**
+	 * Closes the spill file (if any), which is then deleted (once unmapped
+	 * on platforms which can't delete mapped files). Spilled messages can
+	 * still be read as long as their mappings are referenced, and messages
+	 * appended afterwards stay on the heap.
+	 * Can be called by any thread, more than once.
+	 * @throws IOException if the spill file can't be closed
+	 */
+	public void close() throws IOException
+	{
+		FileChannel channel;
+		synchronized (this)
+		{
+			closed = true;
+			channel = spillChannel;
+		}
+		if (channel != null)
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Spills a heap segment into the spill file (writer thread only). Spilling
+	 * is disabled after the first error, segments then stay on the heap.
+	 * @param directory the segments directory
+	 * @param segmentIndex the index of the segment to spill
+	 * @return the directory to publish: a copy of directory in which the
+	 * segment has been replaced by its mapped counterpart, or directory
+	 * itself if nothing has been spilled
+	 */
+	private Segment[] spill(Segment[] directory, int segmentIndex)
+	{
+		if ((spillDirectory == null) || (spillError != null) || closed
+			|| (segmentIndex < 0))
+		{
+			return directory;
+		}
+
+		HeapSegment segment = (HeapSegment) directory[segmentIndex];
+		try
+		{
+			FileChannel channel = spillChannel;
+			if (channel == null)
+			{
+				channel = openSpillFile();
+			}
+
+			/*
+			 * Write the columns then the arena at the end of the file and map
+			 * them back
+			 */
+			byte[] contents = segment.contents;
+			ByteBuffer buffer = ByteBuffer.allocate(CONTENTS_OFFSET + contents.length);
+			buffer.asLongBuffer().put(segment.sequences);
+			buffer.position(DATES_OFFSET);
+			buffer.asLongBuffer().put(segment.dates);
+			buffer.position(AUTHORS_OFFSET);
+			buffer.asIntBuffer().put(segment.authors);
+			buffer.position(ENDS_OFFSET);
+			buffer.asIntBuffer().put(segment.ends);
+			buffer.position(CONTENTS_OFFSET);
+			buffer.put(contents);
+			buffer.flip();
+			long offset = spillSize;
+			long position = offset;
+			while (buffer.hasRemaining())
+			{
+				position += channel.write(buffer, position);
+			}
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+			                                       offset,
+			                                       position - offset);
+			spillSize = position;
+
+			Segment[] spilled = Arrays.copyOf(directory, directory.length);
+			spilled[segmentIndex] = new MappedSegment(mapping, offset);
+			spilledSegments++;
+			return spilled;
+		}
+		catch (IOException e)
+		{
+			spillError = e;
+			return directory;
+		}
+	}
+
+	/**
+	 * Creates and opens a new spill file (writer thread only)
+	 * @return the channel of the spill file, deleted when closed
+	 * @throws IOException if the spill file can't be created or opened, or
+	 * if this log has been closed meanwhile
+	 */
+	private FileChannel openSpillFile() throws IOException
+	{
+		Path spillFile = Files.createTempFile(spillDirectory, SPILL_PREFIX, SPILL_SUFFIX);
+		FileChannel channel;
+		try
+		{
+			channel = FileChannel.open(spillFile,
+			                           StandardOpenOption.READ,
+			                           StandardOpenOption.WRITE,
+			                           StandardOpenOption.DELETE_ON_CLOSE);
+		}
+		catch (IOException e)
+		{
+			Files.deleteIfExists(spillFile);
+			throw e;
+		}
+
+		/*
+		 * Checking the closed state and publishing the channel atomically
+		 * ensures that either close() closes the channel or the channel is
+		 * closed here
+		 */
+		synchronized (this)
+		{
+			if (!closed)
+			{
+				spillChannel = channel;
+				return channel;
+			}
+		}
+		channel.close();
+		throw new IOException("MessageLog: closed");
+	}
+
+	/**
+	 * Columns of {@link #SEGMENT_SIZE} messages
+	 */
+	private abstract class Segment
+	{
+		/**
+		 * Sequence number of a message
+		 * @param position the position of the message within this segment
+		 * @return the sequence number of the message (or 0 if none)
+		 */
+		abstract long getSequence(int position);
+
+		/**
+		 * Date of a message
+		 * @param position the position of the message within this segment
+		 * @return the date (epoch millis) of the message
+		 */
+		abstract long getDate(int position);
+
+		/**
+		 * Author id of a message
+		 * @param position the position of the message within this segment
+		 * @return the author id of the message or -1 if it has no author
+		 */
+		abstract int getAuthorId(int position);
+
+		/**
+		 * Decodes the content of a message
+		 * @param position the position of the message within this segment
+		 * @return the decoded content
+		 */
+		abstract String getContent(int position);
+
+		/**
+		 * Estimated heap memory used by this segment
+		 * @return the estimated size (in bytes) of this segment on the heap
+		 */
+		abstract long getMemoryUsage();
+
+		/**
+		 * Author name of a message
+		 * @param position the position of the message within this segment
+		 * @return the author's name or null if the message has no author
+		 */
+		String getAuthor(int position)
+		{
+			int id = getAuthorId(position);
+			return id >= 0 ? registry.getAuthor(id) : null;
+		}
+	}
+
+	/**
+	 * Segment whose columns are on the heap. Columns are written by the
+	 * writer thread only, before the messages are published by
+	 * {@link MessageLog#size}.
+	 */
+	private final class HeapSegment extends Segment
+	{
+		/**
+		 * Messages sequence numbers (or 0)
+		 */
+		final long[] sequences = new long[SEGMENT_SIZE];
+
+		/**
+		 * Messages dates (epoch millis)
+		 */
+		final long[] dates = new long[SEGMENT_SIZE];
+
+		/**
+		 * Messages authors ids (or -1 for messages without author)
+		 */
+		final int[] authors = new int[SEGMENT_SIZE];
+
+		/**
+		 * End offsets of messages contents within {@link #contents}
+		 */
+		final int[] ends = new int[SEGMENT_SIZE];
+
+		/**
+		 * UTF-8 encoded contents of messages. Replaced by a larger (or
+		 * trimmed) copy when needed, so that an arena read by a reader always
+		 * contains the contents of the messages it can see.
+		 */
+		volatile byte[] contents = new byte[INITIAL_ARENA_SIZE];
+
+		/**
+		 * Number of used bytes in {@link #contents} (writer thread only)
+		 */
+		int contentsSize = 0;
+
+		/**
+		 * Appends an encoded content to the arena
+		 * @param position the position of the message within this segment
+		 * @param bytes the UTF-8 encoded content
+		 */
+		void append(int position, byte[] bytes)
+		{
+			byte[] arena = contents;
+			int end = contentsSize + bytes.length;
+			if (end > arena.length)
+			{
+				arena = Arrays.copyOf(arena, Math.max(end, arena.length * 2));
+			}
+			System.arraycopy(bytes, 0, arena, contentsSize, bytes.length);
+			contents = arena;
+			contentsSize = end;
+			ends[position] = end;
+		}
+
+		/**
+		 * Trims the arena to its used size once the segment is full
+		 */
+		void trim()
+		{
+			if (contentsSize < contents.length)
+			{
+				contents = Arrays.copyOf(contents, contentsSize);
+			}
+		}
+
+		/**
+		 * Sequence number of a message
+		 * @param position the position of the message within this segment
+		 * @return the sequence number of the message (or 0 if none)
+		 */
+		@Override
+		long getSequence(int position)
+		{
+			return sequences[position];
+		}
+
+		/**
+		 * Date of a message
+		 * @param position the position of the message within this segment
+		 * @return the date (epoch millis) of the message
+		 */
+		@Override
+		long getDate(int position)
+		{
+			return dates[position];
+		}
+
+		/**
+		 * Author id of a message
+		 * @param position the position of the message within this segment
+		 * @return the author id of the message or -1 if it has no author
+		 */
+		@Override
+		int getAuthorId(int position)
+		{
+			return authors[position];
+		}
+
+		/**
+		 * Decodes the content of a message
+		 * @param position the position of the message within this segment
+		 * @return the decoded content
+		 */
+		@Override
+		String getContent(int position)
+		{
+			int start = (position == 0 ? 0 : ends[position - 1]);
+			return new String(contents, start, ends[position] - start, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Estimated heap memory used by this segment
+		 * @return the estimated size (in bytes) of this segment on the heap
+		 */
+		@Override
+		long getMemoryUsage()
+		{
+			return (5L * ARRAY_HEADER) + (24L * SEGMENT_SIZE) + contents.length;
+		}
+	}
+
+	/**
+	 * Full segment spilled into the spill file and read through a read only
+	 * mapping of its region (using absolute accesses only, so that the
+	 * mapping can be shared by reader threads)
+	 */
+	private final class MappedSegment extends Segment
+	{
+		/**
+		 * Mapping of the segment's region of the spill file
+		 */
+		private final MappedByteBuffer mapping;
+
+		/**
+		 * Offset of the segment's region in the spill file
+		 */
+		private final long offset;
+
+		/**
+		 * Mapped segment constructor
+		 * @param mapping the mapping of the segment's region
+		 * @param offset the offset of the segment's region in the spill file
+		 */
+		MappedSegment(MappedByteBuffer mapping, long offset)
+		{
+			this.mapping = mapping;
+			this.offset = offset;
+		}
+
+		/**
+		 * Sequence number of a message
+		 * @param position the position of the message within this segment
+		 * @return the sequence number of the message (or 0 if none)
+		 */
+		@Override
+		long getSequence(int position)
+		{
+			return mapping.getLong(SEQUENCES_OFFSET + (8 * position));
+		}
+
+		/**
+		 * Date of a message
+		 * @param position the position of the message within this segment
+		 * @return the date (epoch millis) of the message
+		 */
+		@Override
+		long getDate(int position)
+		{
+			return mapping.getLong(DATES_OFFSET + (8 * position));
+		}
+
+		/**
+		 * Author id of a message
+		 * @param position the position of the message within this segment
+		 * @return the author id of the message or -1 if it has no author
+		 */
+		@Override
+		int getAuthorId(int position)
+		{
+			return mapping.getInt(AUTHORS_OFFSET + (4 * position));
+		}
+
+		/**
+		 * Decodes the content of a message
+		 * @param position the position of the message within this segment
+		 * @return the decoded content
+		 */
+		@Override
+		String getContent(int position)
+		{
+			int start = (position == 0 ? 0 : mapping.getInt(ENDS_OFFSET + (4 * (position - 1))));
+			int end = mapping.getInt(ENDS_OFFSET + (4 * position));
+			byte[] bytes = new byte[end - start];
+			mapping.get(CONTENTS_OFFSET + start, bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Estimated heap memory used by this segment
+		 * @return the estimated size (in bytes) of this segment on the heap
+		 */
+		@Override
+		long getMemoryUsage()
+		{
+			return MAPPED_SEGMENT_SIZE;
+		}
+
+		/**
+		 * String representation of this segment
+		 * @return the region of the spill file of this segment
+		 */
+		@Override
+		public String toString()
+		{
+			return "MappedSegment@" + offset + "+" + mapping.capacity();
+		}
+	}
+
+	/**
+	 * Flyweight message reading its fields from the columns of the segment
+	 * currently holding it in its log.
+	 * Serialized as a plain {@link Message}.
+	 */
+	private static final class StoredMessage extends Message
+	{
+		/**
+		 * Serial version UID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The log containing this message
+		 */
+		private final transient MessageLog log;
+
+		/**
+		 * Index of this message within {@link #log}
+		 */
+		private final transient int index;
+
+		/**
+		 * Flyweight constructor
+		 * @param log the log containing the message
+		 * @param index the index of the (published) message within log
+		 */
+		StoredMessage(MessageLog log, int index)
+		{
+			this.log = log;
+			this.index = index;
+		}
+
+		/**
+		 * Segment accessor
+		 * @return the segment currently holding this message in {@link #log}
+		 */
+		private Segment segment()
+		{
+			return log.segmentOf(index);
+		}
+
+		/**
+		 * Position accessor
+		 * @return the position of this message within its segment
+		 */
+		private int position()
+		{
+			return index & SEGMENT_MASK;
+		}
+
+		/**
+		 * Sequence number accessor
+		 * @return the sequence number read from the sequences column
+		 */
+		@Override
+		public long getSequence()
+		{
+			return segment().getSequence(position());
+		}
+
+		/**
+		 * Message time accessor
+		 * @return the date (epoch millis) read from the dates column
+		 */
+		@Override
+		public long getTime()
+		{
+			return segment().getDate(position());
+		}
+
+		/**
+		 * Message content accessor
+		 * @return a new string decoded from the contents arena
+		 */
+		@Override
+		public String getContent()
+		{
+			return segment().getContent(position());
+		}
+
+		/**
+		 * Message author accessor
+		 * @return the author's name or null if there is no author
+		 */
+		@Override
+		public String getAuthor()
+		{
+			return segment().getAuthor(position());
+		}
+
+		/**
+		 * Author id accessor
+		 * @return the id of the author or -1 if there is no author
+		 */
+		@Override
+		public int getAuthorId()
+		{
+			return segment().getAuthorId(position());
+		}
+
+		/**
+		 * Indicates if a message has an author
+		 * @return true if the message has an author, false otherwise
+		 */
+		@Override
+		public boolean hasAuthor()
+		{
+			return segment().getAuthorId(position()) >= 0;
+		}
+
+		/**
+		 * Replaces this flyweight by a plain message when serialized
+		 * @return a plain message with the same sequence, date, content and
+		 * author
+		 */
+		private Object writeReplace()
+		{
+			return new Message(getSequence(), getTime(), getContent(), getAuthor());
+		}
+	}
+
+	/**
+	 * Immutable list of the first messages of the log
+	 */
+	private static class Snapshot extends AbstractList<Message>
+	    implements RandomAccess
+	{
+		/**
+		 * The log of the messages
+		 */
+		private final MessageLog log;
+
+		/**
+		 * Number of messages of the snapshot
+		 */
+		private final int size;
+
+		/**
+		 * Snapshot constructor
+		 * @param log the log of the messages
+		 * @param size the number of (published) messages of the snapshot
+		 */
+		Snapshot(MessageLog log, int size)
+		{
+			this.log = log;
+			this.size = size;
+		}
+
+		/**
+		 * Message accessor
+		 * @param index the index of the message
+		 * @return the message at this index
+		 * @throws IndexOutOfBoundsException if there is no message at this
+		 * index in this snapshot
+		 */
+		@Override
+		public Message get(int index)
+		{
+			if ((index < 0) || (index >= size))
+			{
+				throw new IndexOutOfBoundsException("MessageLog: index " + index
+				    + " out of bounds for size " + size);
+			}
+			return new StoredMessage(log, index);
+		}
+
+		/**
+		 * Snapshot size
+		 * @return the number of messages in this snapshot
+		 */
+		@Override
+		public int size()
+		{
+			return size;
+		}
+	}
+}
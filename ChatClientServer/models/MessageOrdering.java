@@ -0,0 +1,238 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import models.Message.MessageOrder;
+
+/**
+ * Immutable ordering of {@link Message}s: an ordered list of unique
+ * {@link MessageOrder} criteria, the first criterium differentiating two
+ * messages deciding their order.
+ * Each ordering compiles its criteria once into a {@link Comparator} chain
+ * based on key extractors (epoch millis for dates) so that comparisons
+ * neither iterate over criteria nor switch on them. Orderings being
+ * immutable, they (and their comparators) can be used by several threads,
+ * and each view of messages can have its own ordering.
+ * Criteria semantics:
+ * <ul>
+ * <li>{@link MessageOrder#AUTHOR}: authors' names, messages without author
+ * being smaller than messages with author</li>
+ * <li>{@link MessageOrder#DATE}: messages' dates</li>
+ * <li>{@link MessageOrder#CONTENT}: messages' contents</li>
+ * </ul>
+ * Without any criterium all messages are considered equal.
+ * @author x0wass
+ */
+public final class MessageOrdering
+{
+	/**
+	 * Ordering without any criterium
+	 */
+	public static final MessageOrdering NONE =
+	    new MessageOrdering(Collections.<MessageOrder>emptyList());
+
+	/**
+	 * Comparison criteria (unmodifiable)
+	 */
+	private final List<MessageOrder> criteria;
+
+	/**
+	 * Comparator compiled from {@link #criteria}
+	 */
+	private final Comparator<Message> comparator;
+
+	/**
+	 * Private constructor
+	 * @param criteria the comparison criteria (unique)
+	 */
+	private MessageOrdering(List<MessageOrder> criteria)
+	{
+		this.criteria = Collections.unmodifiableList(new ArrayList<MessageOrder>(criteria));
+		comparator = compile(this.criteria);
+	}
+
+	/**
+	 * Creates an ordering
+	 * @param criteria the comparison criteria (duplicated and null criteria
+	 * are ignored)
+	 * @return the ordering with these criteria
+	 */
+	public static MessageOrdering of(MessageOrder... criteria)
+	{
+		MessageOrdering ordering = NONE;
+		for (MessageOrder criterium : criteria)
+		{
+			ordering = ordering.with(criterium);
+		}
+		return ordering;
+	}
+
+	/**
+	 * Creates an ordering with an additional criterium (iff not already
+	 * present) as last criterium
+	 * @param criterium the criterium to add
+	 * @return a new ordering with this criterium, or this ordering if
+	 * criterium is null or already present
+	 */
+	public MessageOrdering with(MessageOrder criterium)
+	{
+		if ((criterium == null) || criteria.contains(criterium))
+		{
+			return this;
+		}
+		List<MessageOrder> newCriteria = new ArrayList<MessageOrder>(criteria);
+		newCriteria.add(criterium);
+		return new MessageOrdering(newCriteria);
+	}
+
+	/**
+	 * Creates an ordering without a criterium
+	 * @param criterium the criterium to remove
+	 * @return a new ordering without this criterium, or this ordering if
+	 * criterium is not present
+	 */
+	public MessageOrdering without(MessageOrder criterium)
+	{
+		if (!criteria.contains(criterium))
+		{
+			return this;
+		}
+		List<MessageOrder> newCriteria = new ArrayList<MessageOrder>(criteria);
+		newCriteria.remove(criterium);
+		return (newCriteria.isEmpty() ? NONE : new MessageOrdering(newCriteria));
+	}
+
+	/**
+	 * Criteria accessor
+	 * @return the unmodifiable list of comparison criteria
+	 */
+	public List<MessageOrder> getCriteria()
+	{
+		return criteria;
+	}
+
+	/**
+	 * Number of criteria
+	 * @return the number of comparison criteria
+	 */
+	public int size()
+	{
+		return criteria.size();
+	}
+
+	/**
+	 * Indicates if there is no criterium
+	 * @return true if all messages are considered equal by this ordering
+	 */
+	public boolean isEmpty()
+	{
+		return criteria.isEmpty();
+	}
+
+	/**
+	 * Compiled comparator accessor
+	 * @return the comparator of messages according to this ordering
+	 */
+	public Comparator<Message> comparator()
+	{
+		return comparator;
+	}
+
+	/**
+	 * Ordering hashcode
+	 * @return a hash value based on criteria
+	 */
+	@Override
+	public int hashCode()
+	{
+		return criteria.hashCode();
+	}
+
+	/**
+	 * Ordering comparison with another object
+	 * @param obj the other object to compare
+	 * @return true if the other object is also an ordering with the same
+	 * criteria in the same order
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (obj == this)
+		{
+			return true;
+		}
+		if (obj instanceof MessageOrdering)
+		{
+			return criteria.equals(((MessageOrdering) obj).criteria);
+		}
+		return false;
+	}
+
+	/**
+	 * String representation of criteria
+	 * @return a new string representing criteria, such as "{Author, Date}"
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{");
+		for (Iterator<MessageOrder> it = criteria.iterator(); it.hasNext(); )
+		{
+			sb.append(it.next().toString());
+			if (it.hasNext())
+			{
+				sb.append(", ");
+			}
+		}
+		sb.append("}");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Compiles criteria into a comparator chain
+	 * @param criteria the comparison criteria
+	 * @return the comparator of messages according to criteria
+	 */
+	private static Comparator<Message> compile(List<MessageOrder> criteria)
+	{
+		Comparator<Message> chain = null;
+		for (MessageOrder criterium : criteria)
+		{
+			Comparator<Message> next = criteriumComparator(criterium);
+			chain = (chain == null ? next : chain.thenComparing(next));
+		}
+
+		if (chain == null)
+		{
+			// Default order is no order : all messages are equal
+			return (Message m1, Message m2) -> 0;
+		}
+		return chain;
+	}
+
+	/**
+	 * Comparator of a single criterium
+	 * @param criterium the criterium
+	 * @return the comparator of messages according to this criterium
+	 */
+	private static Comparator<Message> criteriumComparator(MessageOrder criterium)
+	{
+		switch (criterium)
+		{
+			case AUTHOR:
+				return Comparator.comparing(Message::getAuthor,
+				                            Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+			case DATE:
+				return Comparator.comparingLong(Message::getTime);
+			case CONTENT:
+				return Comparator.comparing(Message::getContent);
+		}
+		throw new AssertionError("MessageOrdering: unknown order: " + criterium);
+	}
+}
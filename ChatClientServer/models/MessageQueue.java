@@ -0,0 +1,457 @@
+package models;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import metrics.Gauge;
+
+/**
+ * Bounded queue handing decoded {@link Message}s from the thread reading the
+ * server to the thread feeding a {@link MessagesHandler}, without any pipe or
+ * serialization in between.
+ * This queue is a lock free single producer / single consumer ring buffer:
+ * exactly one thread may {@link #put(Message)} and exactly one thread may
+ * {@link #take()}. What happens when the queue is full is decided by its
+ * {@link OverflowPolicy}.
+ * Once {@link #close()}d, the consumer still gets remaining messages then
+ * null.
+ * Messages dropped (or skipped) because of the policy are handed to an
+ * optional discard listener, so that the producer can forget it has
+ * delivered them.
+ * @author x0wass
+ */
+public class MessageQueue
+{
+	/**
+	 * Policy applied when a message is put into a full queue
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * The producer waits until the consumer catches up (no message is
+		 * lost, the server connection is slowed down instead)
+		 */
+		BLOCK,
+		/**
+		 * The oldest pending message is dropped to make room for the new one
+		 */
+		DROP_OLDEST,
+		/**
+		 * New messages are dropped while the queue is full, then replaced
+		 * by a single "N messages skipped" message once there is room again
+		 */
+		COLLAPSE;
+	}
+
+	/**
+	 * Default queue capacity
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Maximum delay (in ms) of a waiting producer or consumer before
+	 * checking the queue again
+	 */
+	private static final long CLOSE_CHECK_DELAY = 100;
+
+	/**
+	 * Ring buffer slots (consumed slots keep their message until they are
+	 * reused)
+	 */
+	private final AtomicReferenceArray<Message> slots;
+
+	/**
+	 * Mask turning a position into a slot index (capacity - 1)
+	 */
+	private final int mask;
+
+	/**
+	 * Overflow policy
+	 */
+	private final OverflowPolicy policy;
+
+	/**
+	 * Position of the next message to take. Advanced by the consumer, and by
+	 * the producer when dropping the oldest message, hence with CAS.
+	 */
+	private final AtomicLong head;
+
+	/**
+	 * Position of the next message to put (only advanced by the producer)
+	 */
+	private volatile long tail;
+
+	/**
+	 * Highest number of pending messages (only written by the producer)
+	 */
+	private volatile long highWaterMark;
+
+	/**
+	 * Number of dropped (or skipped) messages (only written by the producer)
+	 */
+	private volatile long dropped;
+
+	/**
+	 * Number of messages skipped since last "skipped" message (written by
+	 * the producer with {@link OverflowPolicy#COLLAPSE}, and by the consumer
+	 * once the queue is closed)
+	 */
+	private volatile long skipped;
+
+	/**
+	 * Listener of the messages dropped or skipped by the producer (or null)
+	 */
+	private volatile Consumer<Message> discardListener;
+
+	/**
+	 * Producer thread waiting for room (or null)
+	 */
+	private volatile Thread waitingProducer;
+
+	/**
+	 * Consumer thread waiting for messages (or null)
+	 */
+	private volatile Thread waitingConsumer;
+
+	/**
+	 * Closed state: no more messages will be put into this queue
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Constructor
+	 * @param capacity the maximum number of pending messages (rounded up to a
+	 * power of two)
+	 * @param policy the policy applied when the queue is full
+	 */
+	public MessageQueue(int capacity, OverflowPolicy policy)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<Message>(size);
+		mask = size - 1;
+		this.policy = policy;
+		head = new AtomicLong(0);
+		tail = 0;
+		highWaterMark = 0;
+		dropped = 0;
+		skipped = 0;
+		discardListener = null;
+		waitingProducer = null;
+		waitingConsumer = null;
+		closed = false;
+	}
+
+	/**
+	 * Constructor with {@link OverflowPolicy#BLOCK} policy
+	 * @param capacity the maximum number of pending messages
+	 */
+	public MessageQueue(int capacity)
+	{
+		this(capacity, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Default constructor with {@link #DEFAULT_CAPACITY} and
+	 * {@link OverflowPolicy#BLOCK} policy
+	 */
+	public MessageQueue()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Sets the listener of discarded messages
+	 * @param listener the listener called (by the producer thread) with each
+	 * message dropped or skipped because the queue was full, or null
+	 */
+	public void setDiscardListener(Consumer<Message> listener)
+	{
+		discardListener = listener;
+	}
+
+	/**
+	 * Hands a dropped or skipped message to the {@link #discardListener} (if
+	 * any)
+	 * @param message the discarded message
+	 */
+	private void discarded(Message message)
+	{
+		Consumer<Message> listener = discardListener;
+		if ((listener != null) && (message != null))
+		{
+			listener.accept(message);
+		}
+	}
+
+	/**
+	 * Puts a message into the queue (producer thread only). When the queue
+	 * is full the message is handled according to the {@link #policy}.
+	 * @param message the message to put
+	 * @return true if the message has been queued (or dropped according to
+	 * the policy), false if the message is null or the queue has been closed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean put(Message message) throws InterruptedException
+	{
+		if ((message == null) || closed)
+		{
+			return false;
+		}
+
+		long t = tail;
+		int capacity = slots.length();
+
+		/*
+		 * Full queue handling according to policy
+		 */
+		while ((t - head.get()) >= capacity)
+		{
+			switch (policy)
+			{
+				case DROP_OLDEST:
+					long h = head.get();
+					Message oldest = slots.get((int) h & mask);
+					if (((t - h) >= capacity) && head.compareAndSet(h, h + 1))
+					{
+						dropped++;
+						discarded(oldest);
+					}
+					break;
+				case COLLAPSE:
+					skipped++;
+					dropped++;
+					discarded(message);
+					return true;
+				case BLOCK:
+				default:
+					if (!awaitRoom(t, 1))
+					{
+						return false;
+					}
+					break;
+			}
+		}
+
+		/*
+		 * Skipped messages are reported before the new message (which
+		 * needs one more slot)
+		 */
+		if (skipped > 0)
+		{
+			if ((t + 1 - head.get()) >= capacity)
+			{
+				skipped++;
+				dropped++;
+				discarded(message);
+				return true;
+			}
+			slots.set((int) t & mask, new Message(skipped + " messages skipped"));
+			skipped = 0;
+			t++;
+		}
+
+		slots.set((int) t & mask, message);
+		tail = t + 1;
+
+		long depth = t + 1 - head.get();
+		if (depth > highWaterMark)
+		{
+			highWaterMark = depth;
+		}
+
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the consumer has made room in the queue
+	 * @param t the position of the next message to put
+	 * @param count the number of slots needed
+	 * @return true if there is room, false if the queue has been closed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean awaitRoom(long t, int count) throws InterruptedException
+	{
+		int capacity = slots.length();
+		waitingProducer = Thread.currentThread();
+		try
+		{
+			while ((t + count - head.get()) > capacity)
+			{
+				if (closed)
+				{
+					return false;
+				}
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CLOSE_CHECK_DELAY));
+				if (Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+			}
+			return true;
+		}
+		finally
+		{
+			waitingProducer = null;
+		}
+	}
+
+	/**
+	 * Takes the next message from the queue, waiting for one if necessary
+	 * (consumer thread only)
+	 * @return the next message or null if the queue has been closed and all
+	 * messages have been consumed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Message take() throws InterruptedException
+	{
+		while (true)
+		{
+			long h = head.get();
+			if (h < tail)
+			{
+				/*
+				 * The slot is read before advancing head: if the producer
+				 * dropped this message in the meantime, CAS fails and we
+				 * try again with the next one
+				 */
+				Message message = slots.get((int) h & mask);
+				if (head.compareAndSet(h, h + 1))
+				{
+					/*
+					 * A blocked producer is only woken up once half of the
+					 * queue is free so that it puts messages in batches
+					 */
+					Thread producer = waitingProducer;
+					if ((producer != null) && ((tail - h - 1) <= (slots.length() >> 1)))
+					{
+						LockSupport.unpark(producer);
+					}
+					return message;
+				}
+				continue;
+			}
+
+			if (closed)
+			{
+				if (head.get() < tail)
+				{
+					continue;
+				}
+				/*
+				 * Messages skipped right before closing are still reported
+				 */
+				long lastSkipped = skipped;
+				if (lastSkipped > 0)
+				{
+					skipped = 0;
+					return new Message(lastSkipped + " messages skipped");
+				}
+				return null;
+			}
+
+			waitingConsumer = Thread.currentThread();
+			if ((head.get() >= tail) && !closed)
+			{
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CLOSE_CHECK_DELAY));
+			}
+			waitingConsumer = null;
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Closes this queue: no more messages can be put and the consumer will
+	 * get null once all pending messages have been taken
+	 */
+	public void close()
+	{
+		closed = true;
+
+		Thread producer = waitingProducer;
+		if (producer != null)
+		{
+			LockSupport.unpark(producer);
+		}
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Closed state accessor
+	 * @return true if this queue has been closed
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Number of pending messages
+	 * @return the number of messages waiting to be taken
+	 */
+	public int size()
+	{
+		long depth = tail - head.get();
+		return (int) Math.max(0, Math.min(depth, slots.length()));
+	}
+
+	/**
+	 * Capacity accessor
+	 * @return the maximum number of pending messages
+	 */
+	public int getCapacity()
+	{
+		return slots.length();
+	}
+
+	/**
+	 * Overflow policy accessor
+	 * @return the policy applied when the queue is full
+	 */
+	public OverflowPolicy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Depth gauge
+	 * @return a gauge of the number of pending messages
+	 */
+	public Gauge getDepth()
+	{
+		return new Gauge("queue depth", this::size);
+	}
+
+	/**
+	 * High water mark gauge
+	 * @return a gauge of the highest number of pending messages so far
+	 */
+	public Gauge getHighWaterMark()
+	{
+		return new Gauge("queue high water mark", () -> highWaterMark);
+	}
+
+	/**
+	 * Dropped messages gauge
+	 * @return a gauge of the number of messages dropped (or skipped) because
+	 * the queue was full
+	 */
+	public Gauge getDropped()
+	{
+		return new Gauge("queue dropped messages", () -> dropped);
+	}
+}
@@ -0,0 +1,510 @@
+package models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+import models.Message.MessageOrder;
+
+/**
+ * Parallel sort of large sets of {@link Message}s.
+ * Instead of comparing messages (which compares {@link java.util.Date}s and
+ * {@link String}s) sort keys are precomputed once per message:
+ * <ul>
+ * <li>epoch millis for {@link MessageOrder#DATE}</li>
+ * <li>author rank (in authors' names order) for {@link MessageOrder#AUTHOR},
+ * computed from author ids when messages have been registered in an
+ * {@link AuthorRegistry}</li>
+ * <li>a prefix key (first 4 chars) for {@link MessageOrder#CONTENT}, contents
+ * being compared (and decoded once per sort) only when their prefixes are
+ * equal</li>
+ * </ul>
+ * Message indices are then sorted by a fork/join merge sort comparing these
+ * primitive keys. Messages considered equal by the criteria are kept in
+ * ascending positions order, so the result is the same as a stable sort with
+ * {@link MessageOrdering#comparator()}.
+ * @author x0wass
+ */
+public final class MessageSorter
+{
+	/**
+	 * Number of messages above which {@link #sort} is worth using instead of
+	 * a sequential comparator sort
+	 */
+	public static final int THRESHOLD = 16 * 1024;
+
+	/**
+	 * Number of messages under which sub-sorts are not forked anymore
+	 */
+	private static final int FORK_THRESHOLD = 8 * 1024;
+
+	/**
+	 * Number of messages under which sub-sorts use an insertion sort
+	 */
+	private static final int INSERTION_THRESHOLD = 32;
+
+	/**
+	 * Number of chars of contents prefix keys
+	 */
+	private static final int PREFIX_CHARS = Long.SIZE / Character.SIZE;
+
+	/**
+	 * All messages
+	 */
+	private final List<Message> source;
+
+	/**
+	 * Positions in {@link #source} of messages to sort (also used to break
+	 * ties)
+	 */
+	private final int[] positions;
+
+	/**
+	 * Sort criteria
+	 */
+	private final MessageOrder[] criteria;
+
+	/**
+	 * Date keys (or null if not needed)
+	 */
+	private final long[] dates;
+
+	/**
+	 * Author keys (or null if not needed)
+	 */
+	private final int[] authors;
+
+	/**
+	 * Content prefix keys (or null if not needed)
+	 */
+	private final long[] prefixes;
+
+	/**
+	 * Contents of messages whose prefix keys are equal to another one's,
+	 * decoded on their first full comparison (or null if not needed).
+	 * Concurrent sub-sorts may both decode the same content, strings being
+	 * immutable either one can be cached.
+	 */
+	private final String[] contents;
+
+	/**
+	 * Cancellation check (may be null)
+	 */
+	private final BooleanSupplier cancelled;
+
+	/**
+	 * Private constructor computing sort keys
+	 * @param source all messages
+	 * @param positions positions in source of the messages to sort
+	 * @param criteria sort criteria
+	 * @param cancelled cancellation check (may be null)
+	 */
+	private MessageSorter(List<Message> source,
+	                      int[] positions,
+	                      List<MessageOrder> criteria,
+	                      BooleanSupplier cancelled)
+	{
+		/*
+		 * Messages are resolved only while computing sort keys
+		 */
+		int n = positions.length;
+		Message[] messages = new Message[n];
+		for (int i = 0; i < n; i++)
+		{
+			messages[i] = source.get(positions[i]);
+		}
+		this.source = source;
+		this.positions = positions;
+		this.criteria = criteria.toArray(new MessageOrder[criteria.size()]);
+		this.cancelled = cancelled;
+		dates = (criteria.contains(MessageOrder.DATE) ? dateKeys(messages) : null);
+		authors = (criteria.contains(MessageOrder.AUTHOR) ? authorKeys(messages) : null);
+		prefixes = (criteria.contains(MessageOrder.CONTENT) ? prefixKeys(messages) : null);
+		contents = (prefixes != null ? new String[n] : null);
+	}
+
+	/**
+	 * Sorts messages according to criteria
+	 * @param source all messages
+	 * @param positions ascending positions in source of the messages to sort
+	 * (not modified)
+	 * @param ordering sort criteria
+	 * @param pool the fork/join pool running the sort
+	 * @param cancelled cancellation check (may be null)
+	 * @return the positions of the messages in sorted order
+	 * @throws CancellationException if the sort has been cancelled
+	 */
+	public static int[] sort(List<Message> source,
+	                         int[] positions,
+	                         MessageOrdering ordering,
+	                         ForkJoinPool pool,
+	                         BooleanSupplier cancelled)
+	{
+		if (ordering.isEmpty())
+		{
+			return positions.clone();
+		}
+
+		MessageSorter sorter = new MessageSorter(source, positions, ordering.getCriteria(), cancelled);
+		int n = positions.length;
+		int[] indices = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			indices[i] = i;
+		}
+		pool.invoke(sorter.new MergeSort(indices, new int[n], 0, n));
+
+		int[] sorted = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			sorted[i] = positions[indices[i]];
+		}
+		return sorted;
+	}
+
+	/**
+	 * Sorts messages according to criteria in the common fork/join pool
+	 * @param source all messages
+	 * @param positions ascending positions in source of the messages to sort
+	 * (not modified)
+	 * @param ordering sort criteria
+	 * @param cancelled cancellation check (may be null)
+	 * @return the positions of the messages in sorted order
+	 * @throws CancellationException if the sort has been cancelled
+	 */
+	public static int[] sort(List<Message> source,
+	                         int[] positions,
+	                         MessageOrdering ordering,
+	                         BooleanSupplier cancelled)
+	{
+		return sort(source, positions, ordering, ForkJoinPool.commonPool(), cancelled);
+	}
+
+	/**
+	 * Compares two messages (by index in {@link #positions}) using sort keys
+	 * @param i the index of the first message
+	 * @param j the index of the second message
+	 * @return a negative value, zero or a positive value if the first message
+	 * is smaller, equal or bigger than the second one
+	 */
+	private int compare(int i, int j)
+	{
+		for (MessageOrder criterium : criteria)
+		{
+			int compare = 0;
+			switch (criterium)
+			{
+				case AUTHOR:
+					compare = Integer.compare(authors[i], authors[j]);
+					break;
+				case DATE:
+					compare = Long.compare(dates[i], dates[j]);
+					break;
+				case CONTENT:
+					compare = Long.compareUnsigned(prefixes[i], prefixes[j]);
+					if (compare == 0)
+					{
+						compare = content(i).compareTo(content(j));
+					}
+					break;
+				default:
+					break;
+			}
+			if (compare != 0)
+			{
+				return compare;
+			}
+		}
+
+		return Integer.compare(positions[i], positions[j]);
+	}
+
+	/**
+	 * Content accessor, decoding each content at most once per sort (up to
+	 * concurrent decodings)
+	 * @param i the index of the message
+	 * @return the content of the message
+	 */
+	private String content(int i)
+	{
+		String content = contents[i];
+		if (content == null)
+		{
+			content = source.get(positions[i]).getContent();
+			contents[i] = content;
+		}
+		return content;
+	}
+
+	/**
+	 * Throws a {@link CancellationException} if the sort has been cancelled
+	 */
+	private void checkCancelled()
+	{
+		if ((cancelled != null) && cancelled.getAsBoolean())
+		{
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * Fork/join merge sort of a range of message indices
+	 */
+	private class MergeSort extends RecursiveAction
+	{
+		/**
+		 * Serial version ID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Indices to sort
+		 */
+		private final int[] indices;
+
+		/**
+		 * Temporary indices used to merge
+		 */
+		private final int[] buffer;
+
+		/**
+		 * First index of the range
+		 */
+		private final int low;
+
+		/**
+		 * Index after the last one of the range
+		 */
+		private final int high;
+
+		/**
+		 * Constructor
+		 * @param indices indices to sort
+		 * @param buffer temporary indices used to merge (as large as indices)
+		 * @param low first index of the range
+		 * @param high index after the last one of the range
+		 */
+		MergeSort(int[] indices, int[] buffer, int low, int high)
+		{
+			this.indices = indices;
+			this.buffer = buffer;
+			this.low = low;
+			this.high = high;
+		}
+
+		/**
+		 * Sorts the range: halves are sorted (in parallel when large
+		 * enough) then merged
+		 */
+		@Override
+		protected void compute()
+		{
+			checkCancelled();
+			int middle = (low + high) >>> 1;
+			if ((high - low) > FORK_THRESHOLD)
+			{
+				invokeAll(new MergeSort(indices, buffer, low, middle),
+				          new MergeSort(indices, buffer, middle, high));
+				merge(indices, buffer, low, middle, high);
+			}
+			else
+			{
+				sequentialSort(indices, buffer, low, high);
+			}
+		}
+	}
+
+	/**
+	 * Sequential merge sort of a range of message indices
+	 * @param indices indices to sort
+	 * @param buffer temporary indices used to merge
+	 * @param low first index of the range
+	 * @param high index after the last one of the range
+	 */
+	private void sequentialSort(int[] indices, int[] buffer, int low, int high)
+	{
+		if ((high - low) <= INSERTION_THRESHOLD)
+		{
+			for (int i = low + 1; i < high; i++)
+			{
+				int index = indices[i];
+				int j = i - 1;
+				while ((j >= low) && (compare(indices[j], index) > 0))
+				{
+					indices[j + 1] = indices[j];
+					j--;
+				}
+				indices[j + 1] = index;
+			}
+			return;
+		}
+
+		int middle = (low + high) >>> 1;
+		sequentialSort(indices, buffer, low, middle);
+		sequentialSort(indices, buffer, middle, high);
+		merge(indices, buffer, low, middle, high);
+	}
+
+	/**
+	 * Merges two sorted adjacent ranges of message indices
+	 * @param indices indices to merge
+	 * @param buffer temporary indices
+	 * @param low first index of the first range
+	 * @param middle first index of the second range
+	 * @param high index after the last one of the second range
+	 */
+	private void merge(int[] indices, int[] buffer, int low, int middle, int high)
+	{
+		/*
+		 * Already ordered ranges need no merge
+		 */
+		if (compare(indices[middle - 1], indices[middle]) <= 0)
+		{
+			return;
+		}
+
+		System.arraycopy(indices, low, buffer, low, high - low);
+		int i = low;
+		int j = middle;
+		for (int k = low; k < high; k++)
+		{
+			if ((j >= high) || ((i < middle) && (compare(buffer[i], buffer[j]) <= 0)))
+			{
+				indices[k] = buffer[i++];
+			}
+			else
+			{
+				indices[k] = buffer[j++];
+			}
+		}
+	}
+
+	/**
+	 * Computes date keys
+	 * @param messages the messages
+	 * @return the epoch millis of each message
+	 */
+	private static long[] dateKeys(Message[] messages)
+	{
+		long[] keys = new long[messages.length];
+		for (int i = 0; i < messages.length; i++)
+		{
+			keys[i] = messages[i].getTime();
+		}
+		return keys;
+	}
+
+	/**
+	 * Computes author keys
+	 * @param messages the messages
+	 * @return the rank of each message's author in authors' names order
+	 * (messages without author being first)
+	 */
+	private static int[] authorKeys(Message[] messages)
+	{
+		/*
+		 * Collect author ids: registered ids when available, otherwise
+		 * temporary ids (after registered ones) assigned by name
+		 */
+		int maxId = -1;
+		for (Message message : messages)
+		{
+			maxId = Math.max(maxId, message.getAuthorId());
+		}
+		int[] ids = new int[messages.length];
+		String[] names = new String[Math.max(16, maxId + 1)];
+		Map<String, Integer> unregistered = new HashMap<String, Integer>();
+		int idCount = maxId + 1;
+		for (int i = 0; i < messages.length; i++)
+		{
+			Message message = messages[i];
+			if (!message.hasAuthor())
+			{
+				ids[i] = -1;
+				continue;
+			}
+			int id = message.getAuthorId();
+			if (id < 0)
+			{
+				Integer tempId = unregistered.get(message.getAuthor());
+				if (tempId == null)
+				{
+					tempId = Integer.valueOf(idCount++);
+					unregistered.put(message.getAuthor(), tempId);
+				}
+				id = tempId.intValue();
+			}
+			if (id >= names.length)
+			{
+				names = Arrays.copyOf(names, Math.max(id + 1, names.length * 2));
+			}
+			names[id] = message.getAuthor();
+			ids[i] = id;
+		}
+
+		/*
+		 * Rank ids by name (ranks start at 1, 0 being for no author, and
+		 * ids having the same name have the same rank)
+		 */
+		Integer[] byName = new Integer[idCount];
+		int distinct = 0;
+		for (int id = 0; id < idCount; id++)
+		{
+			if (names[id] != null)
+			{
+				byName[distinct++] = Integer.valueOf(id);
+			}
+		}
+		String[] sortedNames = names;
+		Arrays.sort(byName, 0, distinct, (Integer a, Integer b) ->
+			sortedNames[a.intValue()].compareTo(sortedNames[b.intValue()]));
+		int[] ranks = new int[idCount];
+		int rank = 0;
+		for (int r = 0; r < distinct; r++)
+		{
+			int id = byName[r].intValue();
+			if ((r == 0) || !names[id].equals(names[byName[r - 1].intValue()]))
+			{
+				rank++;
+			}
+			ranks[id] = rank;
+		}
+
+		for (int i = 0; i < ids.length; i++)
+		{
+			ids[i] = (ids[i] >= 0 ? ranks[ids[i]] : 0);
+		}
+		return ids;
+	}
+
+	/**
+	 * Computes content prefix keys
+	 * @param messages the messages
+	 * @return the first chars of each message's content packed in a long
+	 * (to be compared as unsigned values)
+	 */
+	private static long[] prefixKeys(Message[] messages)
+	{
+		long[] keys = new long[messages.length];
+		for (int i = 0; i < messages.length; i++)
+		{
+			String content = messages[i].getContent();
+			long key = 0;
+			for (int c = 0; c < PREFIX_CHARS; c++)
+			{
+				key <<= Character.SIZE;
+				if (c < content.length())
+				{
+					key |= content.charAt(c);
+				}
+			}
+			keys[i] = key;
+		}
+		return keys;
+	}
+}
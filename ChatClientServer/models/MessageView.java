@@ -0,0 +1,440 @@
+package models;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * Ordered and filtered view on a list of all received {@link Message}s.
+ * The view keeps the positions (in the source list) of displayed messages
+ * which are updated incrementally as messages are received: each new message
+ * accepted by the filter is inserted at its binary searched position
+ * according to the current order (or appended when there is no order). The
+ * view is fully rebuilt only when the order changes. When the filter
+ * changes, messages can be added to the view with {@link #merge(List, int[])}
+ * (e.g. from an {@link AuthorIndex}) or removed with
+ * {@link #removeRejected()} without scanning all received messages.
+ * Displayed messages are resolved from the last source list given to the
+ * view only when they are accessed, so that a view costs an int per
+ * displayed message whatever the kind of source messages (such as
+ * {@link MessageLog} flyweights).
+ * The view also tracks how many messages of the source list it has already
+ * processed so that it can be updated with several new messages at once.
+ * This class is not thread safe.
+ * @author x0wass
+ */
+public class MessageView
+{
+	/**
+	 * A message resolved once with its position in the source list, used
+	 * while sorting selected messages
+	 */
+	private static class Entry
+	{
+		/**
+		 * The resolved message
+		 */
+		final Message message;
+
+		/**
+		 * The position of the message in the source list
+		 */
+		final int position;
+
+		/**
+		 * Entry constructor
+		 * @param message the resolved message
+		 * @param position the position of the message in the source list
+		 */
+		Entry(Message message, int position)
+		{
+			this.message = message;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Last source list given to this view, resolving displayed messages
+	 */
+	private List<Message> source;
+
+	/**
+	 * Positions in {@link #source} of displayed messages (filtered and
+	 * sorted), only the first {@link #size} ones being used
+	 */
+	private int[] positions;
+
+	/**
+	 * Number of displayed messages
+	 */
+	private int size;
+
+	/**
+	 * Unmodifiable list of displayed messages backed by {@link #positions}
+	 */
+	private final List<Message> messages;
+
+	/**
+	 * Order of displayed messages (or null for arrival order)
+	 */
+	private Comparator<Message> order;
+
+	/**
+	 * Order of entries: {@link #order} then arrival order
+	 */
+	private Comparator<Entry> entryOrder;
+
+	/**
+	 * Filter of displayed messages
+	 */
+	private Predicate<Message> filter;
+
+	/**
+	 * Number of messages of the source list processed by this view
+	 */
+	private int applied;
+
+	/**
+	 * Constructor of an empty view
+	 * @param order the order of displayed messages (or null for arrival
+	 * order)
+	 * @param filter the filter of displayed messages
+	 */
+	public MessageView(Comparator<Message> order, Predicate<Message> filter)
+	{
+		source = Collections.<Message>emptyList();
+		positions = new int[16];
+		size = 0;
+		messages = new DisplayedMessages();
+		setOrder(order);
+		this.filter = filter;
+		applied = 0;
+	}
+
+	/**
+	 * Order setter. The view needs to be {@link #rebuild(List)} afterwards.
+	 * @param order the new order of displayed messages (or null for arrival
+	 * order)
+	 */
+	public void setOrder(Comparator<Message> order)
+	{
+		this.order = order;
+		Comparator<Entry> byPosition = Comparator.comparingInt((Entry e) -> e.position);
+		if (order != null)
+		{
+			entryOrder = Comparator.comparing((Entry e) -> e.message, order)
+				.thenComparing(byPosition);
+		}
+		else
+		{
+			entryOrder = byPosition;
+		}
+	}
+
+	/**
+	 * Filter setter. The view needs to be {@link #rebuild(List)} (or
+	 * {@link #merge(List, int[])}d and/or {@link #removeRejected()})
+	 * afterwards.
+	 * @param filter the new filter of displayed messages
+	 */
+	public void setFilter(Predicate<Message> filter)
+	{
+		this.filter = filter;
+	}
+
+	/**
+	 * Displayed messages accessor
+	 * @return an unmodifiable list of displayed messages, resolved from the
+	 * source list on each access
+	 */
+	public List<Message> getMessages()
+	{
+		return messages;
+	}
+
+	/**
+	 * Number of processed source messages
+	 * @return the number of messages of the source list already processed
+	 */
+	public int getApplied()
+	{
+		return applied;
+	}
+
+	/**
+	 * Inserts the next message of the source list in the view (if accepted by
+	 * the filter) at its position according to current order. Messages
+	 * considered equal by the order are kept in arrival order.
+	 * @param source all received messages (containing at least
+	 * {@link #getApplied()} + 1 messages)
+	 * @return the index of the inserted message in the view or -1 if the
+	 * message has been filtered out
+	 */
+	public int insert(List<Message> source)
+	{
+		this.source = source;
+		int position = applied++;
+		Message message = source.get(position);
+		if ((filter != null) && !filter.test(message))
+		{
+			return -1;
+		}
+
+		int index = size;
+		if (order != null)
+		{
+			/*
+			 * Binary search of the first displayed message bigger than the
+			 * new one
+			 */
+			int low = 0;
+			int high = size;
+			while (low < high)
+			{
+				int middle = (low + high) >>> 1;
+				if (order.compare(source.get(positions[middle]), message) <= 0)
+				{
+					low = middle + 1;
+				}
+				else
+				{
+					high = middle;
+				}
+			}
+			index = low;
+		}
+
+		if (size == positions.length)
+		{
+			positions = Arrays.copyOf(positions, Math.max(16, 2 * size));
+		}
+		System.arraycopy(positions, index, positions, index + 1, size - index);
+		positions[index] = position;
+		size++;
+		return index;
+	}
+
+	/**
+	 * Fully rebuilds the view from all source messages with current order
+	 * and filter
+	 * @param source all received messages
+	 * @return the displayed messages
+	 */
+	public List<Message> rebuild(List<Message> source)
+	{
+		int[] accepted = new int[source.size()];
+		int count = 0;
+		for (int position = 0; position < accepted.length; position++)
+		{
+			if ((filter == null) || filter.test(source.get(position)))
+			{
+				accepted[count++] = position;
+			}
+		}
+		this.source = source;
+		positions = select(source, accepted, count);
+		size = count;
+		applied = source.size();
+
+		return messages;
+	}
+
+	/**
+	 * Fully rebuilds the view from selected source messages with current
+	 * order (selected messages are supposed to be accepted by the filter)
+	 * @param source all received messages
+	 * @param positions the ascending positions of selected messages in
+	 * source (not modified)
+	 * @return the displayed messages
+	 */
+	public List<Message> rebuild(List<Message> source, int[] positions)
+	{
+		this.source = source;
+		this.positions = select(source, positions.clone(), positions.length);
+		size = positions.length;
+		applied = source.size();
+
+		return messages;
+	}
+
+	/**
+	 * Fully rebuilds the view from selected source messages already sorted
+	 * according to current order (e.g. by a {@link MessageSorter}) and
+	 * accepted by the filter
+	 * @param source all received messages
+	 * @param sortedPositions the positions of selected messages in source in
+	 * display order (kept by the view, and so not to be modified afterwards)
+	 * @return the displayed messages
+	 */
+	public List<Message> rebuildSorted(List<Message> source, int[] sortedPositions)
+	{
+		this.source = source;
+		positions = sortedPositions;
+		size = sortedPositions.length;
+		applied = source.size();
+
+		return messages;
+	}
+
+	/**
+	 * Adds source messages to the view (e.g. when the filter accepts more
+	 * messages) by merging them with displayed messages. Costs
+	 * O(d log d + v) where d is the number of added messages and v the
+	 * number of displayed messages.
+	 * @param source all received messages
+	 * @param positions the ascending positions of messages to add in source
+	 * (lower than {@link #getApplied()} and not already displayed, not
+	 * modified)
+	 * @return the displayed messages
+	 */
+	public List<Message> merge(List<Message> source, int[] positions)
+	{
+		this.source = source;
+		if (positions.length == 0)
+		{
+			return messages;
+		}
+
+		int[] added = select(source, positions.clone(), positions.length);
+		int[] merged = new int[size + added.length];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		if (order != null)
+		{
+			/*
+			 * Each message is resolved once while merging
+			 */
+			Message displayed = (size > 0 ? source.get(this.positions[0]) : null);
+			Message addition = source.get(added[0]);
+			while ((i < size) && (j < added.length))
+			{
+				int compare = order.compare(displayed, addition);
+				if ((compare < 0) || ((compare == 0) && (this.positions[i] < added[j])))
+				{
+					merged[k++] = this.positions[i++];
+					displayed = (i < size ? source.get(this.positions[i]) : null);
+				}
+				else
+				{
+					merged[k++] = added[j++];
+					addition = (j < added.length ? source.get(added[j]) : null);
+				}
+			}
+		}
+		else
+		{
+			while ((i < size) && (j < added.length))
+			{
+				merged[k++] = (this.positions[i] < added[j] ? this.positions[i++] : added[j++]);
+			}
+		}
+		System.arraycopy(this.positions, i, merged, k, size - i);
+		k += size - i;
+		System.arraycopy(added, j, merged, k, added.length - j);
+		this.positions = merged;
+		size = merged.length;
+
+		return messages;
+	}
+
+	/**
+	 * Removes displayed messages rejected by the filter (e.g. when the
+	 * filter accepts less messages). Costs O(v) where v is the number of
+	 * displayed messages.
+	 * @return the displayed messages
+	 */
+	public List<Message> removeRejected()
+	{
+		if (filter != null)
+		{
+			int kept = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if (filter.test(source.get(positions[i])))
+				{
+					positions[kept++] = positions[i];
+				}
+			}
+			size = kept;
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Clears displayed messages. Source messages already processed are not
+	 * displayed again.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Sorts selected source messages according to {@link #entryOrder}. Each
+	 * message is resolved once during the sort and then dropped.
+	 * @param source all received messages
+	 * @param selected the ascending positions of selected messages in source
+	 * (sorted in place)
+	 * @param count the number of selected positions
+	 * @return selected
+	 */
+	private int[] select(List<Message> source, int[] selected, int count)
+	{
+		if ((order != null) && (count > 1))
+		{
+			Entry[] entries = new Entry[count];
+			for (int i = 0; i < count; i++)
+			{
+				entries[i] = new Entry(source.get(selected[i]), selected[i]);
+			}
+			Arrays.sort(entries, entryOrder);
+			for (int i = 0; i < count; i++)
+			{
+				selected[i] = entries[i].position;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Unmodifiable list of displayed messages resolving their positions in
+	 * {@link MessageView#source} on each access
+	 */
+	private class DisplayedMessages extends AbstractList<Message>
+	    implements RandomAccess
+	{
+		/**
+		 * Displayed message accessor
+		 * @param index the index of the message in the view
+		 * @return the message at this index
+		 * @throws IndexOutOfBoundsException if there is no message at this
+		 * index in the view
+		 */
+		@Override
+		public Message get(int index)
+		{
+			if ((index < 0) || (index >= size))
+			{
+				throw new IndexOutOfBoundsException("MessageView: index " + index
+				    + " out of bounds for size " + size);
+			}
+			return source.get(positions[index]);
+		}
+
+		/**
+		 * View size
+		 * @return the number of displayed messages
+		 */
+		@Override
+		public int size()
+		{
+			return size;
+		}
+	}
+}
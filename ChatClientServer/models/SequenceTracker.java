@@ -0,0 +1,282 @@
+package models;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of the sequence numbers of the {@link Message}s already received,
+ * used to drop duplicates (such as messages replayed by a catch up).
+ * Sequence numbers are stored as a high-water mark (the greatest sequence
+ * number received) plus the sparse set of missing ranges below it (the gaps),
+ * so that the tracker stays compact whatever the number of messages: in
+ * general messages arrive in order and there is at most one gap (the
+ * messages sent before this client connected) until a catch up fills it.
+ * Checking a message above the high-water mark or when there is no gap
+ * costs O(1), and O(log(gaps)) otherwise.
+ * This class is thread safe (it is fed by a single thread in general, while
+ * other threads read its state to request catch ups).
+ * @author x0wass
+ */
+public class SequenceTracker
+{
+	/**
+	 * First received sequence number (0 if none)
+	 */
+	private long first;
+
+	/**
+	 * Greatest received sequence number (0 if none)
+	 */
+	private long highWater;
+
+	/**
+	 * Missing ranges below {@link #highWater}: first missing sequence number
+	 * mapped to last missing sequence number (inclusive)
+	 */
+	private final TreeMap<Long, Long> gaps;
+
+	/**
+	 * Number of missing sequence numbers below {@link #highWater}
+	 */
+	private long missing;
+
+	/**
+	 * Number of duplicates rejected by {@link #add(long)}
+	 */
+	private long duplicates;
+
+	/**
+	 * Default constructor of an empty tracker
+	 */
+	public SequenceTracker()
+	{
+		first = 0;
+		highWater = 0;
+		gaps = new TreeMap<Long, Long>();
+		missing = 0;
+		duplicates = 0;
+	}
+
+	/**
+	 * Records a sequence number
+	 * @param sequence the sequence number to record (a value less or equal to
+	 * 0 denotes a message without sequence number)
+	 * @return true if the sequence number had not been received yet (or if
+	 * there is no sequence number), false if it is a duplicate
+	 */
+	public synchronized boolean add(long sequence)
+	{
+		if (sequence <= 0)
+		{
+			return true;
+		}
+		if (first == 0)
+		{
+			first = sequence;
+		}
+
+		if (sequence > highWater)
+		{
+			if (sequence > (highWater + 1))
+			{
+				gaps.put(Long.valueOf(highWater + 1), Long.valueOf(sequence - 1));
+				missing += sequence - highWater - 1;
+			}
+			highWater = sequence;
+			return true;
+		}
+
+		if (gaps.isEmpty())
+		{
+			duplicates++;
+			return false;
+		}
+
+		Map.Entry<Long, Long> gap = gaps.floorEntry(Long.valueOf(sequence));
+		if ((gap == null) || (gap.getValue().longValue() < sequence))
+		{
+			duplicates++;
+			return false;
+		}
+
+		/*
+		 * Remove sequence from its gap (evt splitting it)
+		 */
+		long first = gap.getKey().longValue();
+		long last = gap.getValue().longValue();
+		gaps.remove(gap.getKey());
+		if (first < sequence)
+		{
+			gaps.put(Long.valueOf(first), Long.valueOf(sequence - 1));
+		}
+		if (sequence < last)
+		{
+			gaps.put(Long.valueOf(sequence + 1), Long.valueOf(last));
+		}
+		missing--;
+		return true;
+	}
+
+	/**
+	 * Forgets a received sequence number (such as the one of a message
+	 * discarded before being delivered) so that it is missing again
+	 * @param sequence the sequence number to forget
+	 * @return true if the sequence number had been received, false otherwise
+	 */
+	public synchronized boolean remove(long sequence)
+	{
+		if (!contains(sequence))
+		{
+			return false;
+		}
+
+		/*
+		 * Opens a gap on sequence, merged with the adjacent gaps
+		 */
+		long first = sequence;
+		long last = sequence;
+		Map.Entry<Long, Long> before = gaps.lowerEntry(Long.valueOf(sequence));
+		if ((before != null) && (before.getValue().longValue() == (sequence - 1)))
+		{
+			first = before.getKey().longValue();
+			gaps.remove(before.getKey());
+		}
+		Long after = gaps.remove(Long.valueOf(sequence + 1));
+		if (after != null)
+		{
+			last = after.longValue();
+		}
+
+		if (sequence == highWater)
+		{
+			/*
+			 * No gap above the high-water mark: lower it below the gap
+			 */
+			missing -= sequence - first;
+			highWater = first - 1;
+		}
+		else
+		{
+			gaps.put(Long.valueOf(first), Long.valueOf(last));
+			missing++;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a sequence number has already been received
+	 * @param sequence the sequence number to check
+	 * @return true if this sequence number has been received
+	 */
+	public synchronized boolean contains(long sequence)
+	{
+		if ((sequence <= 0) || (sequence > highWater))
+		{
+			return false;
+		}
+		Map.Entry<Long, Long> gap = gaps.floorEntry(Long.valueOf(sequence));
+		return (gap == null) || (gap.getValue().longValue() < sequence);
+	}
+
+	/**
+	 * First sequence number accessor
+	 * @return the first received sequence number (0 if none): the messages
+	 * preceding it were sent before we started receiving messages
+	 */
+	public synchronized long getFirst()
+	{
+		return first;
+	}
+
+	/**
+	 * High-water mark accessor
+	 * @return the greatest received sequence number (0 if none)
+	 */
+	public synchronized long getHighWater()
+	{
+		return highWater;
+	}
+
+	/**
+	 * Contiguous sequence numbers accessor
+	 * @return the greatest sequence number such that all sequence numbers up
+	 * to it have been received (0 if the first one is missing)
+	 */
+	public synchronized long getContiguous()
+	{
+		return gaps.isEmpty() ? highWater : gaps.firstKey().longValue() - 1;
+	}
+
+	/**
+	 * Contiguous sequence numbers from a first one accessor
+	 * @param first the first sequence number of interest (such as the first
+	 * one received, so that earlier gaps are ignored)
+	 * @return the greatest sequence number such that all sequence numbers from
+	 * first up to it have been received (first - 1 if first is missing)
+	 */
+	public synchronized long getContiguousFrom(long first)
+	{
+		first = Math.max(first, 1);
+		if (first > highWater)
+		{
+			return first - 1;
+		}
+		Map.Entry<Long, Long> gap = gaps.floorEntry(Long.valueOf(first));
+		if ((gap != null) && (gap.getValue().longValue() >= first))
+		{
+			return first - 1;
+		}
+		gap = gaps.higherEntry(Long.valueOf(first));
+		return gap == null ? highWater : gap.getKey().longValue() - 1;
+	}
+
+	/**
+	 * Gaps accessor
+	 * @return the number of missing ranges below the high-water mark
+	 */
+	public synchronized int getGapCount()
+	{
+		return gaps.size();
+	}
+
+	/**
+	 * Missing sequence numbers accessor
+	 * @return the number of missing sequence numbers below the high-water mark
+	 */
+	public synchronized long getMissing()
+	{
+		return missing;
+	}
+
+	/**
+	 * Duplicates accessor
+	 * @return the number of duplicates rejected so far
+	 */
+	public synchronized long getDuplicates()
+	{
+		return duplicates;
+	}
+
+	/**
+	 * Clears all recorded sequence numbers (such as when the server
+	 * restarted numbering its messages)
+	 */
+	public synchronized void clear()
+	{
+		first = 0;
+		highWater = 0;
+		gaps.clear();
+		missing = 0;
+	}
+
+	/**
+	 * String representation of the tracker
+	 * @return a string containing the high-water mark, gaps and duplicates
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return "sequences up to " + highWater + ", " + missing + " missing in "
+			+ gaps.size() + " gaps, " + duplicates + " duplicates";
+	}
+}
@@ -1,19 +1,26 @@
 package models.messagesRunners;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.OptionalDataException;
 import java.io.StreamCorruptedException;
 import java.util.logging.Logger;
 
+import chat.AuthorPool;
 import chat.Failure;
+import chat.MessageCodec;
 import models.Message;
 import models.MessagesHandler;
 
 /**
  * Helper class to handle Object messages ({@link Message}) between server and GUI clients.
- * to be used in any GUI Client
+ * to be used in any GUI Client.
+ * Messages can be received either as serialized objects or as
+ * {@link MessageCodec} frames: the kind of stream is detected from its header.
+ * Authors of received messages are canonicalized with an {@link AuthorPool}.
  * @author x0wass
  */
 public class ObjectMessagesRunner extends AbstractMessagesRunner implements Runnable
@@ -21,10 +28,24 @@ public class ObjectMessagesRunner extends AbstractMessagesRunner implements Runn
 	/**
 	 * Object input stream. Used to read {@link Message}s on the
 	 * {@link AbstractClientFrame#inPipe} and display these messages in the
-	 * {@link AbstractClientFrame#document}
+	 * {@link AbstractClientFrame#document}.
+	 * Its back references table is cleared each time the writer resets its
+	 * stream (see {@link chat.ResetPolicy})
 	 */
 	private ObjectInputStream inOIS;
 
+	/**
+	 * Binary frames decoder. Used instead of {@link #inOIS} to read
+	 * {@link Message}s when the {@link AbstractMessagesRunner#inPipe} contains
+	 * {@link MessageCodec} frames
+	 */
+	private MessageCodec.Decoder inDecoder;
+
+	/**
+	 * Pool of canonical authors names of read messages
+	 */
+	private final AuthorPool authorPool;
+
 	/**
 	 * Constructor
 	 * @param messagesHandler The class responsible for didplaying messages anec evt users
@@ -36,11 +57,13 @@ public class ObjectMessagesRunner extends AbstractMessagesRunner implements Runn
 	                            Logger parentLogger)
 	{
 		super(messagesHandler, commonRun, parentLogger);
+		authorPool = new AuthorPool();
 	}
 
 	/**
 	 * Run loop :
-	 * 	- Creates an {@link ObjectInputStream} to read Message objects from
+	 * 	- Creates an {@link ObjectInputStream} (or a {@link MessageCodec.Decoder})
+	 * 	to read Message objects from
 	 * 	{@link AbstractMessagesRunner#inPipe} then enters loop to
 	 * 	- reads {@link Message}s object from the {@link ObjectInputStream}
 	 * 	- adds message to {@link AbstractMessagesRunner#messagesHandler}
@@ -50,11 +73,22 @@ public class ObjectMessagesRunner extends AbstractMessagesRunner implements Runn
 	@Override
 	public void run()
 	{
-		//  create an ObjectInputStream on the #inPipe to be able to read
+		//  create an ObjectInputStream (or a MessageCodec.Decoder when the
+		// #inPipe starts with a codec header) on the #inPipe to be able to read
 		// Message objects
 		try
 		{
-			inOIS = new ObjectInputStream(inPipe);
+			InputStream bufferedIn = new BufferedInputStream(inPipe);
+			if (MessageCodec.isCodecStream(bufferedIn))
+			{
+				inOIS = null;
+				inDecoder = new MessageCodec.Decoder(bufferedIn, authorPool);
+			}
+			else
+			{
+				inDecoder = null;
+				inOIS = new ObjectInputStream(bufferedIn);
+			}
 		}
 		catch (StreamCorruptedException sce)
 		{
@@ -75,10 +109,17 @@ public class ObjectMessagesRunner extends AbstractMessagesRunner implements Runn
 		while(commonRun.booleanValue())
 		{
 			Message message = null;
-			//  Read message from inOIS
+			//  Read message from inOIS (or inDecoder)
 			try
 			{
-				message = (Message)inOIS.readObject();
+				if (inDecoder != null)
+				{
+					message = inDecoder.readMessage();
+				}
+				else
+				{
+					message = authorPool.intern((Message)inOIS.readObject());
+				}
 			}
 			catch (ClassNotFoundException | InvalidClassException |
 			       StreamCorruptedException | OptionalDataException e)
@@ -126,10 +167,18 @@ public class ObjectMessagesRunner extends AbstractMessagesRunner implements Runn
 	@Override
 	public void cleanup()
 	{
+		logger.info("ObjectMessagesRunner: " + authorPool);
 		logger.info("closing object input stream ... ");
 		try
 		{
-			inOIS.close();
+			if (inDecoder != null)
+			{
+				inDecoder.close();
+			}
+			else if (inOIS != null)
+			{
+				inOIS.close();
+			}
 		}
 		catch (IOException e)
 		{
@@ -0,0 +1,132 @@
+package models.messagesRunners;
+
+import java.util.logging.Logger;
+
+import models.Message;
+import models.MessageQueue;
+import models.MessagesHandler;
+
+/**
+ * Helper class to handle {@link Message}s delivered in-process by the
+ * chat client through a {@link MessageQueue}: messages are decoded only once
+ * (by the client reading the server) and handed as is to the
+ * {@link AbstractMessagesRunner#messagesHandler}.
+ * to be used in any GUI Client.
+ * A flood of messages that the GUI can't keep up with is collapsed into
+ * "N messages skipped" messages once {@link #QUEUE_CAPACITY} messages are
+ * pending, rather than filling the heap.
+ * @author x0wass
+ */
+public class QueueMessagesRunner extends AbstractMessagesRunner
+{
+	/**
+	 * Capacity of the {@link #queue} (large enough for a full catch up)
+	 */
+	public static final int QUEUE_CAPACITY = 64 * 1024;
+
+	/**
+	 * Queue containing messages decoded by the client
+	 */
+	private final MessageQueue queue;
+
+	/**
+	 * Lock guarding the change of {@link AbstractMessagesRunner#commonRun}
+	 * at the end of the run loop (commonRun itself is a replaced and shared
+	 * Boolean, unfit to be locked)
+	 */
+	private final Object runStateLock;
+
+	/**
+	 * Constructor
+	 * @param messagesHandler The class responsible for didplaying messages anec evt users
+	 * @param commonRun The commonRun flag to use with multiple threads
+	 * @param parentLogger The caller's logger
+	 */
+	public QueueMessagesRunner(MessagesHandler messagesHandler,
+	                           Boolean commonRun,
+	                           Logger parentLogger)
+	{
+		super(messagesHandler, commonRun, parentLogger);
+		queue = new MessageQueue(QUEUE_CAPACITY, MessageQueue.OverflowPolicy.COLLAPSE);
+		runStateLock = new Object();
+	}
+
+	/**
+	 * {@link #queue} accessor to connect to a chat client
+	 * @return The {@link #queue}
+	 */
+	public MessageQueue getQueue()
+	{
+		return queue;
+	}
+
+	/**
+	 * Run loop :
+	 * 	- takes {@link Message}s from the {@link #queue} until it is closed
+	 * 	- adds message to {@link AbstractMessagesRunner#messagesHandler}
+	 * 	- evt adds new userName to {@link AbstractMessagesRunner#messagesHandler}
+	 * 	- tells {@link AbstractMessagesRunner#messagesHandler} to {@link MessagesHandler#updateMessages}
+	 */
+	@Override
+	public void run()
+	{
+		while (commonRun.booleanValue())
+		{
+			Message message = null;
+			try
+			{
+				message = queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				logger.warning("QueueMessagesRunner: interrupted while waiting "
+				    + "for messages");
+				break;
+			}
+
+			if (message == null)
+			{
+				logger.info("QueueMessagesRunner: queue closed");
+				break;
+			}
+
+			//  Add the current message to the #messagesHandler list
+			messagesHandler.addMessage(message);
+
+			//  Update #messagesHandler with evt new author
+			String author = message.getAuthor();
+			if ((author != null) && (author.length() > 0))
+			{
+				messagesHandler.addUserName(author);
+			}
+
+			//  update all messages on #messagesHandler
+			messagesHandler.updateMessages();
+		}
+
+		if (commonRun.booleanValue())
+		{
+			logger.info("QueueMessagesRunner::run's end: changing run state at the end ... ");
+			synchronized (runStateLock)
+			{
+				commonRun = Boolean.FALSE;
+			}
+		}
+
+		cleanup();
+	}
+
+	/**
+	 * Cleanup: close queue and streams
+	 */
+	@Override
+	public void cleanup()
+	{
+		logger.info("closing messages queue ... ");
+		queue.close();
+		logger.info("QueueMessagesRunner: " + queue.getHighWaterMark() + ", "
+			+ queue.getDropped());
+
+		super.cleanup();
+	}
+}
@@ -12,6 +12,8 @@ package models;
  * <li>{@link models.AuthorListFilter} a class implementing a
  * {@link java.util.function.Predicate} on the {@link models.Message}s and used
  * to filter Message streams with authors registered in the filter</li>
+ * <li>{@link models.AuthorRegistry} a class assigning dense integer ids
+ * to authors so that messages can be filtered and indexed by author id</li>
  * <li>{@link models.OSCheck} a class to check the nature of the Operating
  * System</li>
  * </ul>